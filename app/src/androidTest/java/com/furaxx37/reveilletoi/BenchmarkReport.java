@@ -0,0 +1,24 @@
+package com.furaxx37.reveilletoi;
+
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.util.Log;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+/**
+ * Publishes a benchmark's numbers to logcat and to the instrumentation output.
+ * Benchmarks report timings rather than assert on them, as emulators and CI
+ * machines are too noisy for wall-clock comparisons.
+ */
+final class BenchmarkReport {
+
+    private BenchmarkReport() {
+    }
+
+    static void report(String tag, String message) {
+        Log.i(tag, message);
+        Bundle status = new Bundle();
+        status.putString(Instrumentation.REPORT_KEY_STREAMRESULT, tag + ": " + message + "\n");
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+    }
+}
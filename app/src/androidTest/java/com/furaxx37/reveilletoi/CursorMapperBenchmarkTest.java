@@ -0,0 +1,124 @@
+package com.furaxx37.reveilletoi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Debug;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Reports time and allocations per row when reading a 10k-alarm table through
+ * the summary and full projections, against the replaced approach: every
+ * column selected and each index looked up again for every row.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CursorMapperBenchmarkTest {
+
+    private static final String TAG = "CursorMapperBenchmark";
+    private static final String DATABASE_NAME = "cursor_mapper_test.db";
+    private static final int ALARMS = 10_000;
+
+    private Context context;
+    private DatabaseHelper databaseHelper;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        databaseHelper = new DatabaseHelper(context, DATABASE_NAME);
+        List<Alarm> alarms = new ArrayList<>(ALARMS);
+        for (int i = 0; i < ALARMS; i++) {
+            alarms.add(new Alarm(i / 60 % 24, i % 60, "mapper " + i));
+        }
+        databaseHelper.insertAlarms(alarms);
+    }
+
+    @After
+    public void tearDown() {
+        databaseHelper.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation") // Allocation counting is deprecated but still works on ART
+    public void projectionsAgainstPerRowLookups() {
+        // Warm the connection and the page cache
+        List<Alarm> perRow = readPerRow();
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        long start = System.nanoTime();
+        perRow = readPerRow();
+        long perRowNs = System.nanoTime() - start;
+        int perRowAllocs = Debug.getThreadAllocCount();
+        int perRowBytes = Debug.getThreadAllocSize();
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        start = System.nanoTime();
+        List<Alarm> full = databaseHelper.getAllAlarms();
+        long fullNs = System.nanoTime() - start;
+        int fullAllocs = Debug.getThreadAllocCount();
+        int fullBytes = Debug.getThreadAllocSize();
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        start = System.nanoTime();
+        List<Alarm> summaries = databaseHelper.getAlarmSummaries();
+        long summaryNs = System.nanoTime() - start;
+        int summaryAllocs = Debug.getThreadAllocCount();
+        int summaryBytes = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+
+        BenchmarkReport.report(TAG, ALARMS + " rows, per row: every column with lookups " +
+            perRowNs / ALARMS + " ns, " + perRowAllocs / ALARMS + " allocations, " + perRowBytes / ALARMS +
+            " bytes; full projection " + fullNs / ALARMS + " ns, " + fullAllocs / ALARMS + " allocations, " +
+            fullBytes / ALARMS + " bytes; summary " + summaryNs / ALARMS + " ns, " +
+            summaryAllocs / ALARMS + " allocations, " + summaryBytes / ALARMS + " bytes");
+
+        assertEquals(ALARMS, perRow.size());
+        assertEquals(ALARMS, full.size());
+        assertEquals(ALARMS, summaries.size());
+        for (int i = 0; i < ALARMS; i++) {
+            Alarm expected = perRow.get(i);
+            assertEquals(expected.getId(), full.get(i).getId());
+            assertEquals(expected.getLabel(), full.get(i).getLabel());
+            assertEquals(expected.getId(), summaries.get(i).getId());
+            assertEquals(expected.getHour(), summaries.get(i).getHour());
+            assertEquals(expected.getMinute(), summaries.get(i).getMinute());
+            assertNull(summaries.get(i).getLabel());
+        }
+    }
+
+    // The replaced approach: SELECT * and getColumnIndexOrThrow for every column of every row
+    private List<Alarm> readPerRow() {
+        List<Alarm> alarms = new ArrayList<>();
+        Cursor cursor = databaseHelper.getReadableDatabase().query("alarms", null, null, null, null, null,
+            "hour ASC, minute ASC, id ASC");
+        try {
+            while (cursor.moveToNext()) {
+                Alarm alarm = new Alarm(cursor.getInt(cursor.getColumnIndexOrThrow("hour")),
+                    cursor.getInt(cursor.getColumnIndexOrThrow("minute")),
+                    cursor.getString(cursor.getColumnIndexOrThrow("label")),
+                    cursor.getInt(cursor.getColumnIndexOrThrow("enabled")) == 1,
+                    cursor.getString(cursor.getColumnIndexOrThrow("ringtone_uri")));
+                alarm.setId(cursor.getLong(cursor.getColumnIndexOrThrow("id")));
+                alarm.setCreatedAt(cursor.getLong(cursor.getColumnIndexOrThrow("created_at")));
+                alarms.add(alarm);
+            }
+        } finally {
+            cursor.close();
+        }
+        return alarms;
+    }
+}
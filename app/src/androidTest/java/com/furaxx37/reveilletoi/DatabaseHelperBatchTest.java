@@ -0,0 +1,108 @@
+package com.furaxx37.reveilletoi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Checks the per-item results of the batch methods, and reports their
+ * throughput against calling the single-alarm methods in a loop. Runs on a
+ * database of its own.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseHelperBatchTest {
+
+    private static final String TAG = "DatabaseHelperBatch";
+    private static final String DATABASE_NAME = "batch_test.db";
+    private static final int ALARMS = 500;
+
+    private Context context;
+    private DatabaseHelper databaseHelper;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        databaseHelper = new DatabaseHelper(context, DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        databaseHelper.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void batchResultsMatchInputOrder() {
+        long[] ids = databaseHelper.insertAlarms(newAlarms(3));
+        List<Long> toggled = new ArrayList<>();
+        for (long id : ids) {
+            assertNotEquals(-1, id);
+            toggled.add(id);
+        }
+
+        toggled.add(Long.MAX_VALUE); // never inserted
+        boolean[] enabled = databaseHelper.setEnabled(toggled, false);
+        assertTrue(enabled[0] && enabled[1] && enabled[2]);
+        assertFalse(enabled[3]);
+        assertFalse(databaseHelper.getAlarm(ids[1]).isEnabled());
+
+        boolean[] deleted = databaseHelper.deleteAlarms(toggled);
+        assertTrue(deleted[0] && deleted[1] && deleted[2]);
+        assertFalse(deleted[3]);
+        assertNull(databaseHelper.getAlarm(ids[0]));
+    }
+
+    @Test
+    public void batchThroughputAgainstLoop() {
+        long start = System.nanoTime();
+        List<Long> loopIds = new ArrayList<>(ALARMS);
+        for (Alarm alarm : newAlarms(ALARMS)) {
+            loopIds.add(databaseHelper.insertAlarm(alarm));
+        }
+        for (long id : loopIds) {
+            databaseHelper.setAlarmEnabled(id, false);
+        }
+        for (long id : loopIds) {
+            databaseHelper.deleteAlarm(id);
+        }
+        long loopNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<Long> batchIds = new ArrayList<>(ALARMS);
+        for (long id : databaseHelper.insertAlarms(newAlarms(ALARMS))) {
+            batchIds.add(id);
+        }
+        databaseHelper.setEnabled(batchIds, false);
+        databaseHelper.deleteAlarms(batchIds);
+        long batchNs = System.nanoTime() - start;
+
+        BenchmarkReport.report(TAG, ALARMS + " alarms inserted, disabled and deleted: " +
+            alarmsPerSecond(loopNs) + " alarms/s in a loop, " + alarmsPerSecond(batchNs) + " alarms/s batched");
+        assertEquals(0, databaseHelper.getAlarmCount());
+    }
+
+    private static List<Alarm> newAlarms(int count) {
+        List<Alarm> alarms = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            alarms.add(new Alarm(i / 60 % 24, i % 60, "batch " + i));
+        }
+        return alarms;
+    }
+
+    private static long alarmsPerSecond(long nanos) {
+        return ALARMS * 1_000_000_000L / Math.max(1, nanos);
+    }
+}
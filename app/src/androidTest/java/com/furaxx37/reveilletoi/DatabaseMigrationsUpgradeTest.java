@@ -0,0 +1,112 @@
+package com.furaxx37.reveilletoi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.io.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Upgrades a 50k-row version 1 database to the current schema, then drains
+ * the backfills, and checks the data survived. The schema step and the
+ * backfill are timed separately and reported.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseMigrationsUpgradeTest {
+
+    private static final String TAG = "DatabaseMigrationsUpgrade";
+    private static final int ROWS = 50_000;
+
+    // Schema as shipped in version 1
+    private static final String CREATE_TABLE_ALARMS_V1 =
+        "CREATE TABLE alarms (id INTEGER PRIMARY KEY AUTOINCREMENT, hour INTEGER NOT NULL, " +
+        "minute INTEGER NOT NULL, label TEXT, enabled INTEGER DEFAULT 1, ringtone_uri TEXT, " +
+        "created_at INTEGER DEFAULT (strftime('%s','now')))";
+
+    private File file;
+    private SQLiteDatabase db;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        file = context.getDatabasePath("migration_test.db");
+        SQLiteDatabase.deleteDatabase(file);
+        file.getParentFile().mkdirs();
+        db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        db.execSQL(CREATE_TABLE_ALARMS_V1);
+
+        SQLiteStatement insert = db.compileStatement(
+            "INSERT INTO alarms (hour, minute, label, enabled) VALUES (?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ROWS; i++) {
+                insert.bindLong(1, i / 60 % 24);
+                insert.bindLong(2, i % 60);
+                insert.bindString(3, "alarm " + i);
+                insert.bindLong(4, i % 2);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+        db.setVersion(1);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        SQLiteDatabase.deleteDatabase(file);
+    }
+
+    @Test
+    public void upgradesFiftyThousandRowsWithoutLosingData() {
+        long start = SystemClock.elapsedRealtime();
+        db.beginTransaction();
+        try {
+            DatabaseMigrations.upgrade(db, 1, DatabaseHelper.DATABASE_VERSION);
+            db.setVersion(DatabaseHelper.DATABASE_VERSION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        long schemaMs = SystemClock.elapsedRealtime() - start;
+        boolean deferred = DatabaseMigrations.hasPendingBackfills(db);
+
+        start = SystemClock.elapsedRealtime();
+        int batches = 0;
+        while (DatabaseMigrations.runBackfillBatch(db)) {
+            batches++;
+        }
+        long backfillMs = SystemClock.elapsedRealtime() - start;
+
+        BenchmarkReport.report(TAG, ROWS + " rows: schema steps " + schemaMs + " ms, backfill " + backfillMs +
+            " ms in " + batches + " batches");
+        // Opening the database must not pay for the rows: they are left to the backfill
+        assertTrue(deferred);
+        assertTrue("backfill ran in " + batches + " batches", batches >= ROWS / DatabaseMigrations.BACKFILL_BATCH_SIZE);
+
+        assertEquals(ROWS, DatabaseUtils.queryNumEntries(db, "alarms"));
+        assertEquals(ROWS / 2, DatabaseUtils.queryNumEntries(db, "alarms", "enabled = 1"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "alarms", "next_trigger_at IS NULL"));
+        assertEquals(ROWS, DatabaseUtils.queryNumEntries(db, "alarms", "repeat_days = 0"));
+        assertEquals(ROWS, DatabaseUtils.queryNumEntries(db, "alarms_fts"));
+        assertEquals(1, DatabaseUtils.longForQuery(db,
+            "SELECT COUNT(*) FROM alarms_fts WHERE label MATCH '12345'", null));
+        assertEquals("alarm 12345", DatabaseUtils.stringForQuery(db,
+            "SELECT label FROM alarms WHERE hour = 13 AND minute = 45 AND id = 12346", null));
+        assertFalse(DatabaseMigrations.hasPendingBackfills(db));
+    }
+}
@@ -0,0 +1,103 @@
+package com.furaxx37.reveilletoi;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares finding the next alarm through {@link MinuteOfDayIndex} with the
+ * approach it replaced: loading the alarms sorted by SQL and building a
+ * Calendar for each. Timings are reported, not asserted.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NextAlarmBenchmarkTest {
+
+    private static final String TAG = "NextAlarmBenchmark";
+    private static final String DATABASE_NAME = "next_alarm_test.db";
+    private static final int ALARMS = 1000;
+    private static final int SQL_ITERATIONS = 20;
+    private static final int INDEX_ITERATIONS = 100_000;
+
+    private Context context;
+    private DatabaseHelper databaseHelper;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        databaseHelper = new DatabaseHelper(context, DATABASE_NAME);
+        List<Alarm> alarms = new ArrayList<>(ALARMS);
+        for (int i = 0; i < ALARMS; i++) {
+            alarms.add(new Alarm(i * 7 / 60 % 24, i * 7 % 60, "benchmark " + i));
+        }
+        databaseHelper.insertAlarms(alarms);
+    }
+
+    @After
+    public void tearDown() {
+        databaseHelper.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void indexAgainstSqlAndCalendar() {
+        long now = System.currentTimeMillis();
+        int minuteOfDay = TriggerTimeEngine.forDefaultZone().minuteOfDay(now);
+
+        long start = System.nanoTime();
+        long calendarNext = 0;
+        for (int i = 0; i < SQL_ITERATIONS; i++) {
+            calendarNext = nextWithCalendar(databaseHelper.getEnabledAlarms(), now);
+        }
+        long sqlNs = (System.nanoTime() - start) / SQL_ITERATIONS;
+
+        start = System.nanoTime();
+        MinuteOfDayIndex index = new MinuteOfDayIndex();
+        for (Alarm alarm : databaseHelper.getEnabledAlarmSummaries()) {
+            index.put(alarm.getId(), MinuteOfDayIndex.minuteOfDay(alarm.getHour(), alarm.getMinute()),
+                alarm.getRepeatDays());
+        }
+        long buildNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int next = 0;
+        for (int i = 0; i < INDEX_ITERATIONS; i++) {
+            next = index.nextAfter((minuteOfDay + i) % MinuteOfDayIndex.MINUTES_PER_DAY);
+        }
+        long indexNs = (System.nanoTime() - start) / INDEX_ITERATIONS;
+        next = index.nextAfter(minuteOfDay);
+
+        BenchmarkReport.report(TAG, ALARMS + " alarms: SQL + Calendar " + sqlNs / 1000 + " us per lookup, index built in " +
+            buildNs / 1000 + " us, then " + indexNs + " ns per lookup");
+        Calendar expected = Calendar.getInstance();
+        expected.setTimeInMillis(calendarNext);
+        assertEquals(expected.get(Calendar.HOUR_OF_DAY) * 60 + expected.get(Calendar.MINUTE), next);
+    }
+
+    // The replaced approach: a Calendar per alarm, keeping the earliest trigger
+    private static long nextWithCalendar(List<Alarm> alarms, long now) {
+        long earliest = Long.MAX_VALUE;
+        for (Alarm alarm : alarms) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(now);
+            calendar.set(Calendar.HOUR_OF_DAY, alarm.getHour());
+            calendar.set(Calendar.MINUTE, alarm.getMinute());
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            if (calendar.getTimeInMillis() <= now) {
+                calendar.add(Calendar.DAY_OF_MONTH, 1);
+            }
+            earliest = Math.min(earliest, calendar.getTimeInMillis());
+        }
+        return earliest;
+    }
+}
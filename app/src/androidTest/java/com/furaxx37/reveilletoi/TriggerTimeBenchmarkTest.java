@@ -0,0 +1,130 @@
+package com.furaxx37.reveilletoi;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares {@link TriggerTimeEngine} with the Calendar code it replaced, and
+ * its cached offset windows with an engine that starts cold on every call.
+ * Timings are reported, not asserted.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TriggerTimeBenchmarkTest {
+
+    private static final String TAG = "TriggerTimeBenchmark";
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Europe/Paris");
+    // 2024-03-04 00:00 in Paris, four weeks before the spring-forward jump
+    private static final long NOW = 1709506800000L;
+    // 2024-03-31 02:30 in Paris as local millis, skipped by the jump
+    private static final long GAP_LOCAL = 19813 * TriggerTimeEngine.DAY_MS + 150 * TriggerTimeEngine.MINUTE_MS;
+    private static final int ALARMS = 1000;
+    private static final int ROUNDS = 20;
+    private static final int CONVERSIONS = 100_000;
+
+    @Test
+    public void engineAgainstCalendar() {
+        TriggerTimeEngine engine = new TriggerTimeEngine(ZONE, TriggerTimeEngine.SYSTEM_CLOCK);
+        long[] expected = new long[ALARMS];
+        long[] cached = new long[ALARMS];
+        long[] cold = new long[ALARMS];
+
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < ALARMS; i++) {
+                expected[i] = nextWithCalendar(hour(i), minute(i), NOW);
+            }
+        }
+        long calendarNs = (System.nanoTime() - start) / ROUNDS / ALARMS;
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < ALARMS; i++) {
+                cached[i] = engine.nextTriggerAfter(hour(i), minute(i), Recurrence.EVERY_DAY, NOW);
+            }
+        }
+        long cachedNs = (System.nanoTime() - start) / ROUNDS / ALARMS;
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < ALARMS; i++) {
+                cold[i] = new TriggerTimeEngine(ZONE, TriggerTimeEngine.SYSTEM_CLOCK)
+                    .nextTriggerAfter(hour(i), minute(i), Recurrence.EVERY_DAY, NOW);
+            }
+        }
+        long coldNs = (System.nanoTime() - start) / ROUNDS / ALARMS;
+
+        BenchmarkReport.report(TAG, "next trigger: Calendar " + calendarNs + " ns, engine " + cachedNs +
+            " ns, engine without cached windows " + coldNs + " ns");
+        for (int i = 0; i < ALARMS; i++) {
+            assertEquals(expected[i], cached[i]);
+            assertEquals(expected[i], cold[i]);
+        }
+    }
+
+    @Test
+    public void cachedWindowsNextToATransition() {
+        TriggerTimeEngine engine = new TriggerTimeEngine(ZONE, TriggerTimeEngine.SYSTEM_CLOCK);
+        // Two hours either side of the jump, so every conversion sees both offsets
+        long from = GAP_LOCAL - 2 * 60 * TriggerTimeEngine.MINUTE_MS;
+        int minutes = 4 * 60;
+        long[] cached = new long[minutes];
+        long[] away = new long[minutes];
+        long[] cold = new long[minutes];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < CONVERSIONS; i++) {
+            cached[i % minutes] = engine.localToUtc(from + (i % minutes) * TriggerTimeEngine.MINUTE_MS);
+        }
+        long nearNs = (System.nanoTime() - start) / CONVERSIONS;
+
+        long far = GAP_LOCAL + 60 * TriggerTimeEngine.DAY_MS;
+        start = System.nanoTime();
+        for (int i = 0; i < CONVERSIONS; i++) {
+            away[i % minutes] = engine.localToUtc(far + (i % minutes) * TriggerTimeEngine.MINUTE_MS);
+        }
+        long farNs = (System.nanoTime() - start) / CONVERSIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < CONVERSIONS; i++) {
+            cold[i % minutes] = new TriggerTimeEngine(ZONE, TriggerTimeEngine.SYSTEM_CLOCK)
+                .localToUtc(from + (i % minutes) * TriggerTimeEngine.MINUTE_MS);
+        }
+        long coldNs = (System.nanoTime() - start) / CONVERSIONS;
+
+        BenchmarkReport.report(TAG, "localToUtc: " + nearNs + " ns next to a transition, " + farNs +
+            " ns away from one, " + coldNs + " ns without cached windows");
+        for (int i = 0; i < minutes; i++) {
+            assertEquals(cold[i], cached[i]);
+            assertEquals(new TriggerTimeEngine(ZONE, TriggerTimeEngine.SYSTEM_CLOCK)
+                .localToUtc(far + i * TriggerTimeEngine.MINUTE_MS), away[i]);
+        }
+    }
+
+    private static int hour(int i) {
+        return i * 7 / 60 % 24;
+    }
+
+    private static int minute(int i) {
+        return i * 7 % 60;
+    }
+
+    // The replaced approach: a Calendar per alarm, moved to tomorrow once today's time has passed
+    private static long nextWithCalendar(int hour, int minute, long now) {
+        Calendar calendar = new GregorianCalendar(ZONE);
+        calendar.setTimeInMillis(now);
+        calendar.set(Calendar.HOUR_OF_DAY, hour);
+        calendar.set(Calendar.MINUTE, minute);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        if (calendar.getTimeInMillis() <= now) {
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        return calendar.getTimeInMillis();
+    }
+}
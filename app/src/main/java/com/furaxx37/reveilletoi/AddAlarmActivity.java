@@ -5,6 +5,7 @@ import android.os.Bundle;
 import android.widget.Button;
 import android.widget.TimePicker;
 import androidx.appcompat.app.AppCompatActivity;
+import com.google.android.material.chip.Chip;
 import com.google.android.material.textfield.TextInputEditText;
 
 public class AddAlarmActivity extends AppCompatActivity {
@@ -12,11 +13,18 @@ public class AddAlarmActivity extends AppCompatActivity {
     public static final String EXTRA_ALARM = "extra_alarm";
     public static final String EXTRA_IS_EDIT = "extra_is_edit";
     
+    // Day chips in Recurrence bit order, Monday first
+    private static final int[] DAY_CHIP_IDS = {
+            R.id.chip_monday, R.id.chip_tuesday, R.id.chip_wednesday, R.id.chip_thursday,
+            R.id.chip_friday, R.id.chip_saturday, R.id.chip_sunday
+    };
+    
     private TimePicker timePicker;
     private TextInputEditText labelEditText;
     private Button saveButton;
     private Button cancelButton;
     private Button ringtoneButton;
+    private final Chip[] dayChips = new Chip[DAY_CHIP_IDS.length];
     
     private Alarm currentAlarm;
     private boolean isEditMode = false;
@@ -38,6 +46,9 @@ public class AddAlarmActivity extends AppCompatActivity {
         saveButton = findViewById(R.id.save_button);
         cancelButton = findViewById(R.id.cancel_button);
         ringtoneButton = findViewById(R.id.ringtone_button);
+        for (int i = 0; i < DAY_CHIP_IDS.length; i++) {
+            dayChips[i] = findViewById(DAY_CHIP_IDS[i]);
+        }
         
         // Set 24-hour format
         timePicker.setIs24HourView(true);
@@ -75,6 +86,9 @@ public class AddAlarmActivity extends AppCompatActivity {
                 timePicker.setCurrentMinute(currentAlarm.getMinute());
             }
             labelEditText.setText(currentAlarm.getLabel());
+            for (int i = 0; i < dayChips.length; i++) {
+                dayChips[i].setChecked((currentAlarm.getRepeatDays() & (1 << i)) != 0);
+            }
             selectedRingtoneUri = currentAlarm.getRingtoneUri();
             updateRingtoneButtonText();
         }
@@ -101,6 +115,18 @@ public class AddAlarmActivity extends AppCompatActivity {
         currentAlarm.setLabel(label);
         currentAlarm.setRingtoneUri(selectedRingtoneUri);
         
+        // No day selected means the alarm fires once
+        int repeatDays = Recurrence.ONE_SHOT;
+        for (int i = 0; i < dayChips.length; i++) {
+            if (dayChips[i].isChecked()) {
+                repeatDays |= 1 << i;
+            }
+        }
+        currentAlarm.setRepeatDays(repeatDays);
+        
+        // Decode the ringtone now so the alarm doesn't have to when it rings
+        RingtoneCache.getInstance(this).prepareAsync(selectedRingtoneUri);
+        
         // If it's a new alarm, set creation time and enable it
         if (!isEditMode) {
             currentAlarm.setCreatedAt(System.currentTimeMillis());
@@ -10,6 +10,9 @@ public class Alarm implements Serializable {
     private boolean enabled;
     private String ringtoneUri;
     private long createdAt;
+    private long nextTriggerAt;
+    // Recurrence day bits, 0 for a one-shot alarm
+    private int repeatDays;
 
     public Alarm() {
         this.createdAt = System.currentTimeMillis();
@@ -34,6 +37,18 @@ public class Alarm implements Serializable {
         this.ringtoneUri = ringtoneUri;
     }
 
+    public Alarm(Alarm other) {
+        this.id = other.id;
+        this.hour = other.hour;
+        this.minute = other.minute;
+        this.label = other.label;
+        this.enabled = other.enabled;
+        this.ringtoneUri = other.ringtoneUri;
+        this.createdAt = other.createdAt;
+        this.nextTriggerAt = other.nextTriggerAt;
+        this.repeatDays = other.repeatDays;
+    }
+
     // Getters
     public long getId() {
         return id;
@@ -63,6 +78,14 @@ public class Alarm implements Serializable {
         return createdAt;
     }
 
+    public long getNextTriggerAt() {
+        return nextTriggerAt;
+    }
+
+    public int getRepeatDays() {
+        return repeatDays;
+    }
+
     // Setters
     public void setId(long id) {
         this.id = id;
@@ -92,24 +115,39 @@ public class Alarm implements Serializable {
         this.createdAt = createdAt;
     }
 
+    public void setNextTriggerAt(long nextTriggerAt) {
+        this.nextTriggerAt = nextTriggerAt;
+    }
+
+    public void setRepeatDays(int repeatDays) {
+        this.repeatDays = repeatDays;
+    }
+
     // Utility methods
     public String getFormattedTime() {
         return String.format("%02d:%02d", hour, minute);
     }
 
-    public String getTimeInMillis() {
-        java.util.Calendar calendar = java.util.Calendar.getInstance();
-        calendar.set(java.util.Calendar.HOUR_OF_DAY, hour);
-        calendar.set(java.util.Calendar.MINUTE, minute);
-        calendar.set(java.util.Calendar.SECOND, 0);
-        calendar.set(java.util.Calendar.MILLISECOND, 0);
-        
-        // If the time has already passed today, schedule for tomorrow
-        if (calendar.getTimeInMillis() <= System.currentTimeMillis()) {
-            calendar.add(java.util.Calendar.DAY_OF_MONTH, 1);
-        }
-        
-        return String.valueOf(calendar.getTimeInMillis());
+    /**
+     * Whether the alarm repeats on some days of the week rather than firing once
+     */
+    public boolean isRepeating() {
+        return Recurrence.isRepeating(repeatDays);
+    }
+
+    /**
+     * Next time strictly after {@code now} at which this alarm should fire
+     */
+    public long nextTriggerAfter(long now) {
+        return nextTriggerAfter(now, TriggerTimeEngine.forDefaultZone());
+    }
+
+    /**
+     * Same as {@link #nextTriggerAfter(long)} with an engine fetched once by the
+     * caller, for loops over many alarms
+     */
+    public long nextTriggerAfter(long now, TriggerTimeEngine engine) {
+        return engine.nextTriggerAfter(hour, minute, repeatDays, now);
     }
 
     @Override
@@ -1,5 +1,6 @@
 package com.furaxx37.reveilletoi;
 
+import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.view.View;
@@ -10,7 +11,6 @@ import androidx.appcompat.app.AppCompatActivity;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
-import java.util.Calendar;
 
 public class AlarmActivity extends AppCompatActivity {
     
@@ -20,9 +20,11 @@ public class AlarmActivity extends AppCompatActivity {
     private Button dismissButton;
     private Button snoozeButton;
     
-    private long alarmId;
-    private String alarmLabel;
-    private String ringtoneUri;
+    // Every alarm of the firing session, in parallel arrays
+    private long[] alarmIds = new long[0];
+    private String[] alarmLabels = new String[0];
+    private String[] ringtoneUris = new String[0];
+    private long[] firedAt = new long[0];
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -57,18 +59,40 @@ public class AlarmActivity extends AppCompatActivity {
 
     private void handleIntent() {
         Intent intent = getIntent();
-        alarmId = intent.getLongExtra("alarm_id", -1);
-        alarmLabel = intent.getStringExtra("alarm_label");
-        ringtoneUri = intent.getStringExtra("ringtone_uri");
+        long[] ids = intent.getLongArrayExtra("alarm_ids");
+        String[] labels = intent.getStringArrayExtra("alarm_labels");
+        String[] ringtones = intent.getStringArrayExtra("ringtone_uris");
+        long[] fired = intent.getLongArrayExtra("fired_at");
+        if (ids != null && labels != null && ringtones != null && fired != null) {
+            alarmIds = ids;
+            alarmLabels = labels;
+            ringtoneUris = ringtones;
+            firedAt = fired;
+        }
         
-        // Set label text
-        if (alarmLabel != null && !alarmLabel.isEmpty()) {
-            labelText.setText(alarmLabel);
-            labelText.setVisibility(View.VISIBLE);
-        } else {
-            labelText.setText("Alarme");
-            labelText.setVisibility(View.VISIBLE);
+        // One line per alarm of the session
+        StringBuilder text = new StringBuilder();
+        for (String label : alarmLabels) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(label != null && !label.isEmpty() ? label : "Alarme");
         }
+        labelText.setText(text.length() > 0 ? text : "Alarme");
+        labelText.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Title for a firing session: the label of a single alarm, or a count
+     */
+    static String sessionTitle(String[] labels) {
+        if (labels == null || labels.length == 0) {
+            return "Alarme";
+        }
+        if (labels.length == 1) {
+            return labels[0] != null && !labels[0].isEmpty() ? labels[0] : "Alarme";
+        }
+        return labels.length + " alarmes";
     }
 
     private void setupListeners() {
@@ -87,37 +111,40 @@ public class AlarmActivity extends AppCompatActivity {
     }
 
     private void dismissAlarm() {
-        // Stop the alarm service
-        Intent serviceIntent = new Intent(this, AlarmService.class);
-        stopService(serviceIntent);
+        FiringHistory firingHistory = FiringHistory.getInstance(this);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < alarmIds.length; i++) {
+            firingHistory.recordDismissed(alarmIds[i], firedAt[i], now);
+        }
+        
+        stopSessionAlarms();
         
         // Close the activity
         finish();
     }
 
     private void snoozeAlarm() {
-        // Stop current alarm
-        Intent serviceIntent = new Intent(this, AlarmService.class);
-        stopService(serviceIntent);
-        
-        // Schedule snooze (5 minutes)
-        // Stop current alarm and schedule snooze using AlarmManager from MainActivity
-        AlarmManager alarmManager = new AlarmManager(this);
-        long snoozeTime = System.currentTimeMillis() + (5 * 60 * 1000); // 5 minutes
-        
-        // Calculate hour and minute for snooze time
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTimeInMillis(snoozeTime);
+        FiringHistory firingHistory = FiringHistory.getInstance(this);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < alarmIds.length; i++) {
+            firingHistory.recordSnoozed(alarmIds[i], firedAt[i], now);
+        }
         
-        Alarm snoozeAlarm = new Alarm();
-        snoozeAlarm.setId(alarmId);
-        snoozeAlarm.setLabel(alarmLabel + " (Répétition)");
-        snoozeAlarm.setRingtoneUri(ringtoneUri);
-        snoozeAlarm.setEnabled(true);
-        snoozeAlarm.setHour(calendar.get(Calendar.HOUR_OF_DAY));
-        snoozeAlarm.setMinute(calendar.get(Calendar.MINUTE));
+        // Stop current alarm
+        stopSessionAlarms();
         
-        alarmManager.setAlarm(snoozeAlarm);
+        // Snooze every alarm of the session (5 minutes) next to its regular trigger
+        final Context appContext = getApplicationContext();
+        final long snoozeTime = now + (5 * 60 * 1000); // 5 minutes
+        final long[] snoozedIds = alarmIds;
+        final String[] snoozedLabels = alarmLabels;
+        final String[] snoozedRingtones = ringtoneUris;
+        IoExecutor.getInstance().write(() -> {
+            for (int i = 0; i < snoozedIds.length; i++) {
+                AlarmScheduler.scheduleSnooze(appContext, snoozedIds[i], snoozedLabels[i] + " (Répétition)",
+                        snoozedRingtones[i], snoozeTime);
+            }
+        });
         
         // Show snooze message
         android.widget.Toast.makeText(this, "Alarme reportée de 5 minutes", 
@@ -127,6 +154,14 @@ public class AlarmActivity extends AppCompatActivity {
         finish();
     }
 
+    // Stop the alarms shown here; ones that fired since keep ringing
+    private void stopSessionAlarms() {
+        Intent serviceIntent = new Intent(this, AlarmService.class);
+        serviceIntent.setAction(AlarmService.ACTION_REMOVE);
+        serviceIntent.putExtra("alarm_ids", alarmIds);
+        startService(serviceIntent);
+    }
+
     @Override
     public void onBackPressed() {
         // Prevent back button from closing alarm
@@ -11,8 +11,18 @@ import java.util.List;
 
 public class AlarmAdapter extends RecyclerView.Adapter<AlarmAdapter.AlarmViewHolder> {
     
+    // Alarms fetched per page
+    public static final int PAGE_SIZE = 50;
+    // Start fetching the next page when this close to the end of what is loaded
+    private static final int PREFETCH_DISTANCE = 10;
+    
     private List<Alarm> alarms;
     private OnAlarmInteractionListener listener;
+    private PageLoader pageLoader;
+    private boolean hasMorePages;
+    private boolean loadingPage;
+    // Bumped on every reload so pages requested before it are dropped
+    private int generation;
 
     public interface OnAlarmInteractionListener {
         void onAlarmToggle(Alarm alarm, boolean enabled);
@@ -20,11 +30,27 @@ public class AlarmAdapter extends RecyclerView.Adapter<AlarmAdapter.AlarmViewHol
         void onAlarmEdit(Alarm alarm);
     }
 
+    /**
+     * Supplies the alarm list one page at a time. Implementations answer through
+     * {@link #appendPage(List)}.
+     */
+    public interface PageLoader {
+        /**
+         * Load up to {@code limit} alarms sorting after {@code lastLoaded}, or the
+         * first page when it is null. May answer asynchronously.
+         */
+        void loadPage(Alarm lastLoaded, int limit);
+    }
+
     public AlarmAdapter(List<Alarm> alarms, OnAlarmInteractionListener listener) {
         this.alarms = alarms;
         this.listener = listener;
     }
 
+    public void setPageLoader(PageLoader pageLoader) {
+        this.pageLoader = pageLoader;
+    }
+
     @NonNull
     @Override
     public AlarmViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -37,6 +63,11 @@ public class AlarmAdapter extends RecyclerView.Adapter<AlarmAdapter.AlarmViewHol
     public void onBindViewHolder(@NonNull AlarmViewHolder holder, int position) {
         Alarm alarm = alarms.get(position);
         holder.bind(alarm);
+        
+        if (position >= alarms.size() - PREFETCH_DISTANCE) {
+            // Can't change the data set while the RecyclerView is laying out
+            holder.itemView.post(this::requestNextPage);
+        }
     }
 
     @Override
@@ -49,6 +80,60 @@ public class AlarmAdapter extends RecyclerView.Adapter<AlarmAdapter.AlarmViewHol
         notifyDataSetChanged();
     }
 
+    /**
+     * Drop everything loaded so far and fetch the first page again
+     */
+    public void reload() {
+        generation++;
+        alarms.clear();
+        notifyDataSetChanged();
+        hasMorePages = true;
+        loadingPage = false;
+        requestNextPage();
+    }
+
+    /**
+     * Replace the list with a fixed set of alarms, such as search results. Paging stops
+     * until the next {@link #reload()}.
+     */
+    public void showAlarms(List<Alarm> results) {
+        generation++;
+        alarms.clear();
+        alarms.addAll(results);
+        hasMorePages = false;
+        loadingPage = false;
+        notifyDataSetChanged();
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Append a page delivered by the PageLoader for the given generation.
+     * A short page marks the end of the list; pages from an earlier generation are ignored.
+     */
+    public void appendPage(int pageGeneration, List<Alarm> page) {
+        if (pageGeneration != generation) {
+            return;
+        }
+        loadingPage = false;
+        hasMorePages = page.size() >= PAGE_SIZE;
+        if (!page.isEmpty()) {
+            int start = alarms.size();
+            alarms.addAll(page);
+            notifyItemRangeInserted(start, page.size());
+        }
+    }
+
+    private void requestNextPage() {
+        if (pageLoader == null || loadingPage || !hasMorePages) {
+            return;
+        }
+        loadingPage = true;
+        pageLoader.loadPage(alarms.isEmpty() ? null : alarms.get(alarms.size() - 1), PAGE_SIZE);
+    }
+
     public void addAlarm(Alarm alarm) {
         alarms.add(alarm);
         notifyItemInserted(alarms.size() - 1);
@@ -61,6 +146,66 @@ public class AlarmAdapter extends RecyclerView.Adapter<AlarmAdapter.AlarmViewHol
         }
     }
 
+    /**
+     * Insert or move an alarm to its sorted position among the loaded rows.
+     * Alarms sorting past the last loaded row are left for a later page.
+     */
+    public void upsertAlarm(Alarm alarm) {
+        int oldPosition = indexOf(alarm.getId());
+        if (oldPosition >= 0) {
+            alarms.remove(oldPosition);
+        }
+        
+        int newPosition = 0;
+        while (newPosition < alarms.size() && compare(alarms.get(newPosition), alarm) < 0) {
+            newPosition++;
+        }
+        
+        if (newPosition == alarms.size() && hasMorePages) {
+            if (oldPosition >= 0) {
+                notifyItemRemoved(oldPosition);
+            }
+            return;
+        }
+        
+        alarms.add(newPosition, alarm);
+        if (oldPosition == newPosition) {
+            notifyItemChanged(newPosition);
+        } else if (oldPosition >= 0) {
+            notifyItemMoved(oldPosition, newPosition);
+            notifyItemChanged(newPosition);
+        } else {
+            notifyItemInserted(newPosition);
+        }
+    }
+
+    /**
+     * Remove the loaded alarm with the given id, if any
+     */
+    public void removeAlarmById(long alarmId) {
+        removeAlarm(indexOf(alarmId));
+    }
+
+    private int indexOf(long alarmId) {
+        for (int i = 0; i < alarms.size(); i++) {
+            if (alarms.get(i).getId() == alarmId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Same order as the database list query: hour, minute, then id
+    private static int compare(Alarm a, Alarm b) {
+        if (a.getHour() != b.getHour()) {
+            return a.getHour() < b.getHour() ? -1 : 1;
+        }
+        if (a.getMinute() != b.getMinute()) {
+            return a.getMinute() < b.getMinute() ? -1 : 1;
+        }
+        return Long.compare(a.getId(), b.getId());
+    }
+
     class AlarmViewHolder extends RecyclerView.ViewHolder {
         private TextView timeText;
         private TextView labelText;
@@ -78,6 +223,8 @@ public class AlarmAdapter extends RecyclerView.Adapter<AlarmAdapter.AlarmViewHol
         public void bind(Alarm alarm) {
             timeText.setText(alarm.getFormattedTime());
             labelText.setText(alarm.getLabel().isEmpty() ? "Alarme" : alarm.getLabel());
+            // Detach the previous row's listener before restoring this row's state
+            alarmSwitch.setOnCheckedChangeListener(null);
             alarmSwitch.setChecked(alarm.isEnabled());
 
             // Set alpha based on enabled state
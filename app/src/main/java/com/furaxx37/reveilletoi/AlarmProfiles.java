@@ -0,0 +1,242 @@
+package com.furaxx37.reveilletoi;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Named groups of alarms that are switched on and off together, such as
+ * "weekday", "weekend" or "holiday". Methods belong on the {@link IoExecutor} writer.
+ */
+public final class AlarmProfiles {
+
+    private static final String TAG = "AlarmProfiles";
+
+    static final String TABLE_PROFILES = "alarm_profiles";
+    static final String TABLE_PROFILE_MEMBERS = "alarm_profile_members";
+
+    static final String CREATE_TABLE_PROFILES =
+        "CREATE TABLE IF NOT EXISTS " + TABLE_PROFILES + " (" +
+        "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+        "name TEXT NOT NULL, " +
+        "active INTEGER NOT NULL DEFAULT 0)";
+
+    static final String CREATE_TABLE_PROFILE_MEMBERS =
+        "CREATE TABLE IF NOT EXISTS " + TABLE_PROFILE_MEMBERS + " (" +
+        "profile_id INTEGER NOT NULL, " +
+        "alarm_id INTEGER NOT NULL, " +
+        "PRIMARY KEY (profile_id, alarm_id))";
+
+    // For the delete trigger and for finding an alarm's profiles
+    static final String CREATE_INDEX_PROFILE_MEMBERS_ALARM =
+        "CREATE INDEX IF NOT EXISTS idx_alarm_profile_members_alarm ON " + TABLE_PROFILE_MEMBERS + " (alarm_id)";
+
+    static final String CREATE_TRIGGER_PROFILE_MEMBERS_ALARM_DELETE =
+        "CREATE TRIGGER IF NOT EXISTS alarm_profile_members_alarm_delete AFTER DELETE ON alarms BEGIN " +
+        "DELETE FROM " + TABLE_PROFILE_MEMBERS + " WHERE alarm_id = old.id; END";
+
+    static final String CREATE_TRIGGER_PROFILE_MEMBERS_PROFILE_DELETE =
+        "CREATE TRIGGER IF NOT EXISTS alarm_profile_members_profile_delete AFTER DELETE ON " +
+        TABLE_PROFILES + " BEGIN " +
+        "DELETE FROM " + TABLE_PROFILE_MEMBERS + " WHERE profile_id = old.id; END";
+
+    // Enabled alarms of other active profiles that the target doesn't contain
+    private static final String SQL_SELECT_TO_DISABLE =
+        "SELECT DISTINCT a.id FROM alarms a " +
+        "JOIN " + TABLE_PROFILE_MEMBERS + " m ON m.alarm_id = a.id " +
+        "JOIN " + TABLE_PROFILES + " p ON p.id = m.profile_id " +
+        "WHERE p.active = 1 AND p.id != ?1 AND a.enabled = 1 AND a.id NOT IN " +
+        "(SELECT alarm_id FROM " + TABLE_PROFILE_MEMBERS + " WHERE profile_id = ?1)";
+
+    // Disabled alarms of the target
+    private static final String SQL_SELECT_TO_ENABLE =
+        "SELECT a.id FROM alarms a " +
+        "JOIN " + TABLE_PROFILE_MEMBERS + " m ON m.alarm_id = a.id " +
+        "WHERE m.profile_id = ? AND a.enabled = 0";
+
+    private static final String SQL_SET_ENABLED = "UPDATE alarms SET enabled = ? WHERE id = ?";
+
+    private static final String SQL_INSERT_MEMBER =
+        "INSERT OR IGNORE INTO " + TABLE_PROFILE_MEMBERS + " (profile_id, alarm_id) VALUES (?, ?)";
+
+    private static volatile AlarmProfiles instance;
+
+    private final DatabaseHelper databaseHelper;
+
+    /**
+     * A profile and how many alarms it holds
+     */
+    public static final class Profile {
+        public final long id;
+        public final String name;
+        public final boolean active;
+        public final int alarmCount;
+
+        Profile(long id, String name, boolean active, int alarmCount) {
+            this.id = id;
+            this.name = name;
+            this.active = active;
+            this.alarmCount = alarmCount;
+        }
+    }
+
+    /**
+     * Ids of the alarms a switch turned on and off
+     */
+    public static final class Switch {
+        public final long[] enabled;
+        public final long[] disabled;
+
+        Switch(long[] enabled, long[] disabled) {
+            this.enabled = enabled;
+            this.disabled = disabled;
+        }
+    }
+
+    public static AlarmProfiles getInstance(Context context) {
+        if (instance == null) {
+            synchronized (AlarmProfiles.class) {
+                if (instance == null) {
+                    instance = new AlarmProfiles(DatabaseHelper.getInstance(context));
+                }
+            }
+        }
+        return instance;
+    }
+
+    private AlarmProfiles(DatabaseHelper databaseHelper) {
+        this.databaseHelper = databaseHelper;
+    }
+
+    /**
+     * Create the profile tables. Called from DatabaseHelper.onCreate.
+     */
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE_PROFILES);
+        db.execSQL(CREATE_TABLE_PROFILE_MEMBERS);
+        db.execSQL(CREATE_INDEX_PROFILE_MEMBERS_ALARM);
+        db.execSQL(CREATE_TRIGGER_PROFILE_MEMBERS_ALARM_DELETE);
+        db.execSQL(CREATE_TRIGGER_PROFILE_MEMBERS_PROFILE_DELETE);
+    }
+
+    /**
+     * Every profile, by name
+     */
+    public List<Profile> getProfiles() {
+        List<Profile> profiles = new ArrayList<>();
+        Cursor cursor = null;
+        try {
+            cursor = databaseHelper.getReadableDatabase().rawQuery(
+                "SELECT p.id, p.name, p.active, COUNT(m.alarm_id) FROM " + TABLE_PROFILES + " p " +
+                "LEFT JOIN " + TABLE_PROFILE_MEMBERS + " m ON m.profile_id = p.id " +
+                "GROUP BY p.id ORDER BY p.name COLLATE NOCASE", null);
+            while (cursor.moveToNext()) {
+                profiles.add(new Profile(cursor.getLong(0), cursor.getString(1),
+                    cursor.getInt(2) == 1, cursor.getInt(3)));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading profiles", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return profiles;
+    }
+
+    /**
+     * Create a profile holding the given alarms. Returns its id, or -1 on failure.
+     */
+    public long createProfile(String name, Collection<Long> alarmIds) {
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        SQLiteStatement insertMember = null;
+        db.beginTransactionNonExclusive();
+        try {
+            ContentValues values = new ContentValues();
+            values.put("name", name);
+            long profileId = db.insertOrThrow(TABLE_PROFILES, null, values);
+
+            insertMember = db.compileStatement(SQL_INSERT_MEMBER);
+            for (Long alarmId : alarmIds) {
+                insertMember.bindLong(1, profileId);
+                insertMember.bindLong(2, alarmId);
+                insertMember.executeInsert();
+            }
+            db.setTransactionSuccessful();
+            Log.d(TAG, "Created profile " + profileId + " with " + alarmIds.size() + " alarms");
+            return profileId;
+        } catch (Exception e) {
+            Log.e(TAG, "Error creating profile", e);
+            return -1;
+        } finally {
+            db.endTransaction();
+            if (insertMember != null) {
+                insertMember.close();
+            }
+        }
+    }
+
+    /**
+     * Make a profile the active one, in one transaction. Its alarms are enabled
+     * and those of the previously active profile it doesn't share disabled;
+     * alarms outside any profile are left alone. Only rows whose state flips
+     * are written. Returns the alarms whose enabled state changed, or null on
+     * failure.
+     */
+    Switch switchTo(long profileId) {
+        String[] args = {String.valueOf(profileId)};
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        SQLiteStatement setEnabled = null;
+        db.beginTransactionNonExclusive();
+        try {
+            long[] toDisable = queryIds(db, SQL_SELECT_TO_DISABLE, args);
+            long[] toEnable = queryIds(db, SQL_SELECT_TO_ENABLE, args);
+
+            setEnabled = db.compileStatement(SQL_SET_ENABLED);
+            setEnabled.bindLong(1, 0);
+            for (long alarmId : toDisable) {
+                setEnabled.bindLong(2, alarmId);
+                setEnabled.executeUpdateDelete();
+            }
+            setEnabled.bindLong(1, 1);
+            for (long alarmId : toEnable) {
+                setEnabled.bindLong(2, alarmId);
+                setEnabled.executeUpdateDelete();
+            }
+
+            db.execSQL("UPDATE " + TABLE_PROFILES + " SET active = (id = ?)", new Object[]{profileId});
+            db.setTransactionSuccessful();
+            Log.d(TAG, "Switched to profile " + profileId + ": " + toEnable.length + " enabled, " +
+                toDisable.length + " disabled");
+            return new Switch(toEnable, toDisable);
+        } catch (Exception e) {
+            Log.e(TAG, "Error switching profile", e);
+            return null;
+        } finally {
+            db.endTransaction();
+            if (setEnabled != null) {
+                setEnabled.close();
+            }
+        }
+    }
+
+    private static long[] queryIds(SQLiteDatabase db, String sql, String[] args) {
+        Cursor cursor = db.rawQuery(sql, args);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            int i = 0;
+            while (cursor.moveToNext()) {
+                ids[i++] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -4,6 +4,8 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
 
 public class AlarmReceiver extends BroadcastReceiver {
     
@@ -13,18 +15,119 @@ public class AlarmReceiver extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
         Log.d(TAG, "Alarm received!");
         
-        // Get alarm data from intent
+        if (AlarmScheduler.ACTION_DISPATCH.equals(intent.getAction())) {
+            dispatch(context);
+            return;
+        }
+        if (AlarmScheduler.ACTION_WARMUP.equals(intent.getAction())) {
+            warmUp(context);
+            return;
+        }
+        
+        // Per-alarm intent registered before the scheduler armed only the next alarm
         long alarmId = intent.getLongExtra("alarm_id", -1);
         String alarmLabel = intent.getStringExtra("alarm_label");
         String ringtoneUri = intent.getStringExtra("ringtone_uri");
+        long now = System.currentTimeMillis();
+        fire(context, new long[]{alarmId}, new String[]{alarmLabel}, new String[]{ringtoneUri}, now, now);
+    }
+    
+    // Have the service prepare the next alarm's ringtone ahead of its trigger
+    private void warmUp(Context context) {
+        final Context appContext = context.getApplicationContext();
+        final PendingResult pendingResult = goAsync();
+        IoExecutor.getInstance().urgent(() -> {
+            try {
+                TriggerQueue.Entry head = AlarmScheduler.takeWarmup(appContext);
+                if (head == null) {
+                    return;
+                }
+                Intent serviceIntent = new Intent(appContext, AlarmService.class);
+                serviceIntent.setAction(AlarmService.ACTION_WARMUP);
+                serviceIntent.putExtra("ringtone_uri", head.ringtoneUri);
+                serviceIntent.putExtra("scheduled_at", head.triggerAt);
+                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
+                    appContext.startForegroundService(serviceIntent);
+                } else {
+                    appContext.startService(serviceIntent);
+                }
+            } finally {
+                pendingResult.finish();
+            }
+        });
+    }
+    
+    // Fire every due alarm as one session and re-arm for the next one, off the main
+    // thread and without waiting for backfills, imports or profile switches. The
+    // database writes that follow are queued on the writer.
+    private void dispatch(Context context) {
+        final Context appContext = context.getApplicationContext();
+        final PendingResult pendingResult = goAsync();
+        IoExecutor.getInstance().urgent(() -> {
+            try {
+                long now = System.currentTimeMillis();
+                List<TriggerQueue.Entry> requeued = new ArrayList<>();
+                List<TriggerQueue.Entry> due = AlarmScheduler.dispatchDue(appContext, now, requeued);
+                if (due.isEmpty()) {
+                    return;
+                }
+                FiringHistory.getInstance(appContext).recordWakeup(now, due.size());
+                
+                long[] alarmIds = new long[due.size()];
+                String[] alarmLabels = new String[due.size()];
+                String[] ringtoneUris = new String[due.size()];
+                for (int i = 0; i < alarmIds.length; i++) {
+                    alarmIds[i] = due.get(i).alarmId;
+                    alarmLabels[i] = due.get(i).label;
+                    ringtoneUris[i] = due.get(i).ringtoneUri;
+                }
+                fire(appContext, alarmIds, alarmLabels, ringtoneUris, due.get(0).triggerAt, now);
+                
+                // Before unlock the database can't be written; a one-shot alarm is then left
+                // enabled for its next hh:mm, and the stored triggers are fixed by the next load
+                if (AlarmSnapshot.isUserUnlocked(appContext)) {
+                    IoExecutor.getInstance().write(() -> storeFired(appContext, due, requeued));
+                }
+            } finally {
+                pendingResult.finish();
+            }
+        });
+    }
+    
+    // Runs on the writer, like every other write, so it can't interleave with a user's toggle
+    private static void storeFired(Context context, List<TriggerQueue.Entry> due, List<TriggerQueue.Entry> requeued) {
+        for (TriggerQueue.Entry entry : due) {
+            // A one-shot alarm is done once it has fired
+            if (!entry.snooze && !Recurrence.isRepeating(entry.repeatDays)) {
+                AlarmRepository.getInstance(context).setAlarmEnabled(entry.alarmId, false);
+            }
+        }
+        // Keep the rows of repeating alarms that fired on their next trigger
+        if (!requeued.isEmpty()) {
+            DatabaseHelper.getInstance(context).updateNextTriggers(requeued);
+        }
+    }
+    
+    /**
+     * Start one firing session for alarms that went off together: the service
+     * rings once and the alarm screen lists every alarm
+     */
+    private static void fire(Context context, long[] alarmIds, String[] alarmLabels, String[] ringtoneUris,
+                             long scheduledAt, long firedAt) {
+        Log.d(TAG, "Firing " + alarmIds.length + " alarms, first ID: " + alarmIds[0]);
         
-        Log.d(TAG, "Alarm ID: " + alarmId + ", Label: " + alarmLabel);
+        FiringHistory firingHistory = FiringHistory.getInstance(context);
+        for (long alarmId : alarmIds) {
+            firingHistory.recordFired(alarmId, firedAt);
+        }
         
-        // Start the alarm service to handle the alarm
+        // The service adds them to any ringing session and shows the alarm screen
         Intent serviceIntent = new Intent(context, AlarmService.class);
-        serviceIntent.putExtra("alarm_id", alarmId);
-        serviceIntent.putExtra("alarm_label", alarmLabel);
-        serviceIntent.putExtra("ringtone_uri", ringtoneUri);
+        serviceIntent.putExtra("alarm_ids", alarmIds);
+        serviceIntent.putExtra("alarm_labels", alarmLabels);
+        serviceIntent.putExtra("ringtone_uris", ringtoneUris);
+        serviceIntent.putExtra("scheduled_at", scheduledAt);
+        serviceIntent.putExtra("fired_at", firedAt);
         
         // Start as foreground service for Android 8.0+
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
@@ -32,16 +135,5 @@ public class AlarmReceiver extends BroadcastReceiver {
         } else {
             context.startService(serviceIntent);
         }
-        
-        // Also start the alarm activity to show the alarm screen
-        Intent alarmActivityIntent = new Intent(context, AlarmActivity.class);
-        alarmActivityIntent.putExtra("alarm_id", alarmId);
-        alarmActivityIntent.putExtra("alarm_label", alarmLabel);
-        alarmActivityIntent.putExtra("ringtone_uri", ringtoneUri);
-        alarmActivityIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | 
-                                   Intent.FLAG_ACTIVITY_CLEAR_TOP |
-                                   Intent.FLAG_ACTIVITY_SINGLE_TOP);
-        
-        context.startActivity(alarmActivityIntent);
     }
 }
@@ -0,0 +1,436 @@
+package com.furaxx37.reveilletoi;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LongSparseArray;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Shared, in-memory view of the alarms table. Writes and cache misses do disk
+ * I/O and belong on an {@link IoExecutor} thread.
+ */
+public final class AlarmRepository {
+
+    private static volatile AlarmRepository instance;
+
+    private final DatabaseHelper databaseHelper;
+    private final AlarmSnapshot snapshot;
+    private final AlarmProfiles profiles;
+    // Written after SQLite, so lookups by id never touch the disk. Alarms are copied in and out,
+    // so callers can't mutate cached state by accident.
+    private final LongSparseArray<Alarm> cache = new LongSparseArray<>();
+    // Enabled alarms by minute of day and repeat days, built on first use and kept up to date by every write
+    private MinuteOfDayIndex minuteIndex;
+    // Bumped by every index update, so a build that raced a write is redone
+    private long minuteIndexWrites;
+    // Called on the main thread with each ChangeSet; every published change also queues a snapshot rewrite
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private long version;
+
+    /**
+     * Ids touched by one write, and the repository version after it
+     */
+    public static final class ChangeSet {
+        private static final long[] NONE = new long[0];
+
+        public final long version;
+        public final long[] added;
+        public final long[] updated;
+        public final long[] removed;
+        // Too much changed to list; everything should be reloaded
+        public final boolean reset;
+
+        ChangeSet(long version, long[] added, long[] updated, long[] removed, boolean reset) {
+            this.version = version;
+            this.added = added;
+            this.updated = updated;
+            this.removed = removed;
+            this.reset = reset;
+        }
+    }
+
+    public interface Listener {
+        void onAlarmsChanged(ChangeSet changes);
+    }
+
+    public static AlarmRepository getInstance(Context context) {
+        if (instance == null) {
+            synchronized (AlarmRepository.class) {
+                if (instance == null) {
+                    instance = new AlarmRepository(DatabaseHelper.getInstance(context),
+                            AlarmSnapshot.getInstance(context), AlarmProfiles.getInstance(context));
+                }
+            }
+        }
+        return instance;
+    }
+
+    private AlarmRepository(DatabaseHelper databaseHelper, AlarmSnapshot snapshot, AlarmProfiles profiles) {
+        this.databaseHelper = databaseHelper;
+        this.snapshot = snapshot;
+        this.profiles = profiles;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    // Reads
+
+    /**
+     * Get an alarm by id, from the cache when possible
+     */
+    public Alarm getAlarm(long alarmId) {
+        synchronized (this) {
+            Alarm cached = cache.get(alarmId);
+            if (cached != null) {
+                return new Alarm(cached);
+            }
+        }
+        
+        Alarm alarm = databaseHelper.getAlarm(alarmId);
+        if (alarm != null) {
+            cacheCopy(alarm);
+        }
+        return alarm;
+    }
+
+    /**
+     * Get an alarm only if it is already cached. Never touches the disk.
+     */
+    public synchronized Alarm peekAlarm(long alarmId) {
+        Alarm cached = cache.get(alarmId);
+        return cached != null ? new Alarm(cached) : null;
+    }
+
+    /**
+     * One page of the alarm list, see {@link DatabaseHelper#getAlarmsAfter}
+     */
+    public List<Alarm> getAlarmsAfter(int hour, int minute, long id, int limit) {
+        return cacheAll(databaseHelper.getAlarmsAfter(hour, minute, id, limit));
+    }
+
+    /**
+     * Label search, see {@link DatabaseHelper#searchAlarms}
+     */
+    public List<Alarm> searchAlarms(String query, int limit, CancellationSignal cancellationSignal) {
+        return cacheAll(databaseHelper.searchAlarms(query, limit, cancellationSignal));
+    }
+
+    public List<Alarm> getEnabledAlarms() {
+        return cacheAll(databaseHelper.getEnabledAlarms());
+    }
+
+    /**
+     * When the first enabled alarm strictly after the given day and minute
+     * fires, honouring repeat days, as a minute of the week: day of week
+     * (0 for Monday) * 1440 + hour * 60 + minute. -1 if no alarm is enabled.
+     * The first call builds the index from the database.
+     */
+    public int getNextAlarmInWeek(int dayOfWeek, int minuteOfDay) {
+        ensureMinuteIndex();
+        synchronized (this) {
+            return minuteIndex.nextInWeekAfter(dayOfWeek, minuteOfDay);
+        }
+    }
+
+    /**
+     * Ids of the enabled alarms set for the given time
+     */
+    public long[] getAlarmIdsAt(int hour, int minute) {
+        ensureMinuteIndex();
+        int slot = MinuteOfDayIndex.minuteOfDay(hour, minute);
+        synchronized (this) {
+            long[] ids = new long[minuteIndex.countAt(slot)];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = minuteIndex.idAt(slot, i);
+            }
+            return ids;
+        }
+    }
+
+    // Writes
+
+    public long insertAlarm(Alarm alarm) {
+        long id = databaseHelper.insertAlarm(alarm);
+        if (id != -1) {
+            cacheCopy(alarm);
+            reindex(alarm);
+            publish(new long[]{id}, ChangeSet.NONE, ChangeSet.NONE);
+        }
+        return id;
+    }
+
+    public long[] insertAlarms(List<Alarm> alarms) {
+        long[] ids = databaseHelper.insertAlarms(alarms);
+        List<Long> added = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != -1) {
+                cacheCopy(alarms.get(i));
+                reindex(alarms.get(i));
+                added.add(ids[i]);
+            }
+        }
+        publish(toArray(added), ChangeSet.NONE, ChangeSet.NONE);
+        return ids;
+    }
+
+    public boolean updateAlarm(Alarm alarm) {
+        boolean success = databaseHelper.updateAlarm(alarm);
+        if (success) {
+            cacheCopy(alarm);
+            reindex(alarm);
+            publish(ChangeSet.NONE, new long[]{alarm.getId()}, ChangeSet.NONE);
+        }
+        return success;
+    }
+
+    public boolean setAlarmEnabled(long alarmId, boolean enabled) {
+        boolean success = databaseHelper.setAlarmEnabled(alarmId, enabled);
+        if (success) {
+            setCachedEnabled(alarmId, enabled);
+            reindexEnabled(alarmId, enabled);
+            publish(ChangeSet.NONE, new long[]{alarmId}, ChangeSet.NONE);
+        }
+        return success;
+    }
+
+    public boolean[] setEnabled(Collection<Long> alarmIds, boolean enabled) {
+        boolean[] results = databaseHelper.setEnabled(alarmIds, enabled);
+        List<Long> updated = new ArrayList<>();
+        int i = 0;
+        for (Long alarmId : alarmIds) {
+            if (results[i++]) {
+                setCachedEnabled(alarmId, enabled);
+                reindexEnabled(alarmId, enabled);
+                updated.add(alarmId);
+            }
+        }
+        publish(ChangeSet.NONE, toArray(updated), ChangeSet.NONE);
+        return results;
+    }
+
+    public boolean deleteAlarm(long alarmId) {
+        boolean success = databaseHelper.deleteAlarm(alarmId);
+        if (success) {
+            synchronized (this) {
+                cache.remove(alarmId);
+                unindex(alarmId);
+            }
+            publish(ChangeSet.NONE, ChangeSet.NONE, new long[]{alarmId});
+        }
+        return success;
+    }
+
+    public boolean[] deleteAlarms(Collection<Long> alarmIds) {
+        boolean[] results = databaseHelper.deleteAlarms(alarmIds);
+        List<Long> removed = new ArrayList<>();
+        int i = 0;
+        synchronized (this) {
+            for (Long alarmId : alarmIds) {
+                if (results[i++]) {
+                    cache.remove(alarmId);
+                    unindex(alarmId);
+                    removed.add(alarmId);
+                }
+            }
+        }
+        publish(ChangeSet.NONE, ChangeSet.NONE, toArray(removed));
+        return results;
+    }
+
+    /**
+     * Make a profile the active one, see {@link AlarmProfiles}. The whole switch
+     * is one transaction and publishes one change. Returns the alarms whose
+     * enabled state changed, to hand to the scheduler in one batch, or null on
+     * failure.
+     */
+    public List<Alarm> switchProfile(long profileId) {
+        AlarmProfiles.Switch result = profiles.switchTo(profileId);
+        if (result == null) {
+            return null;
+        }
+        List<Alarm> changed = new ArrayList<>(result.enabled.length + result.disabled.length);
+        long[] updated = new long[result.enabled.length + result.disabled.length];
+        System.arraycopy(result.enabled, 0, updated, 0, result.enabled.length);
+        System.arraycopy(result.disabled, 0, updated, result.enabled.length, result.disabled.length);
+        // One query for the alarms not cached yet, so the passes below stay in memory
+        cacheMissing(updated);
+
+        for (long alarmId : result.enabled) {
+            setCachedEnabled(alarmId, true);
+            reindexEnabled(alarmId, true);
+        }
+        for (long alarmId : result.disabled) {
+            setCachedEnabled(alarmId, false);
+            reindexEnabled(alarmId, false);
+        }
+        for (long alarmId : updated) {
+            Alarm alarm = getAlarm(alarmId);
+            if (alarm != null) {
+                changed.add(alarm);
+            }
+        }
+        publish(ChangeSet.NONE, updated, ChangeSet.NONE);
+        return changed;
+    }
+
+    /**
+     * Drop the cache after a bulk write made directly through DatabaseHelper,
+     * and tell listeners to reload
+     */
+    public void invalidate() {
+        synchronized (this) {
+            cache.clear();
+            minuteIndex = null;
+            minuteIndexWrites++;
+        }
+        publish(ChangeSet.NONE, ChangeSet.NONE, ChangeSet.NONE, true);
+    }
+
+    // Minute index maintenance
+
+    private void ensureMinuteIndex() {
+        while (true) {
+            long startWrites;
+            synchronized (this) {
+                if (minuteIndex != null) {
+                    return;
+                }
+                startWrites = minuteIndexWrites;
+            }
+            
+            MinuteOfDayIndex built = new MinuteOfDayIndex();
+            for (Alarm alarm : databaseHelper.getEnabledAlarmSummaries()) {
+                built.put(alarm.getId(), MinuteOfDayIndex.minuteOfDay(alarm.getHour(), alarm.getMinute()),
+                    alarm.getRepeatDays());
+            }
+            
+            synchronized (this) {
+                if (minuteIndex == null && minuteIndexWrites == startWrites) {
+                    minuteIndex = built;
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized void reindex(Alarm alarm) {
+        minuteIndexWrites++;
+        if (minuteIndex == null) {
+            return;
+        }
+        if (alarm.isEnabled()) {
+            minuteIndex.put(alarm.getId(), MinuteOfDayIndex.minuteOfDay(alarm.getHour(), alarm.getMinute()),
+                alarm.getRepeatDays());
+        } else {
+            minuteIndex.remove(alarm.getId());
+        }
+    }
+
+    private void reindexEnabled(long alarmId, boolean enabled) {
+        if (!enabled) {
+            synchronized (this) {
+                unindex(alarmId);
+            }
+            return;
+        }
+        Alarm alarm = getAlarm(alarmId);
+        if (alarm != null) {
+            reindex(alarm);
+        }
+    }
+
+    // Caller holds the lock
+    private void unindex(long alarmId) {
+        minuteIndexWrites++;
+        if (minuteIndex != null) {
+            minuteIndex.remove(alarmId);
+        }
+    }
+
+    // Cache maintenance
+
+    private synchronized void cacheCopy(Alarm alarm) {
+        cache.put(alarm.getId(), new Alarm(alarm));
+    }
+
+    private List<Alarm> cacheAll(List<Alarm> alarms) {
+        synchronized (this) {
+            for (Alarm alarm : alarms) {
+                cache.put(alarm.getId(), new Alarm(alarm));
+            }
+        }
+        return alarms;
+    }
+
+    private void cacheMissing(long[] alarmIds) {
+        long[] missing = new long[alarmIds.length];
+        int count = 0;
+        synchronized (this) {
+            for (long alarmId : alarmIds) {
+                if (cache.get(alarmId) == null) {
+                    missing[count++] = alarmId;
+                }
+            }
+        }
+        if (count > 0) {
+            cacheAll(databaseHelper.getAlarms(Arrays.copyOf(missing, count)));
+        }
+    }
+
+    private synchronized void setCachedEnabled(long alarmId, boolean enabled) {
+        Alarm cached = cache.get(alarmId);
+        if (cached != null) {
+            cached.setEnabled(enabled);
+        }
+    }
+
+    private void publish(long[] added, long[] updated, long[] removed) {
+        if (added.length == 0 && updated.length == 0 && removed.length == 0) {
+            return;
+        }
+        publish(added, updated, removed, false);
+    }
+
+    private void publish(long[] added, long[] updated, long[] removed, boolean reset) {
+        final ChangeSet changes;
+        synchronized (this) {
+            version++;
+            changes = new ChangeSet(version, added, updated, removed, reset);
+        }
+        snapshot.requestRewrite();
+        
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : listeners) {
+                    listener.onAlarmsChanged(changes);
+                }
+            }
+        });
+    }
+
+    private static long[] toArray(List<Long> ids) {
+        long[] result = new long[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+}
@@ -5,56 +5,567 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
+/**
+ * Keeps the system alarm service armed for the earliest enabled alarm. Methods
+ * may read the database and belong on an {@link IoExecutor} thread.
+ */
 public class AlarmScheduler {
-    
+
+    private static final String TAG = "AlarmScheduler";
+
+    public static final String ACTION_DISPATCH = "com.furaxx37.reveilletoi.action.DISPATCH_ALARMS";
+    public static final String ACTION_WARMUP = "com.furaxx37.reveilletoi.action.WARMUP_ALARMS";
+
+    static final String DISPATCH_SLOT = "dispatch";
+    private static final String WARMUP_SLOT = "warmup";
+    // Request code of the dispatch intent before request codes came from the ledger
+    private static final int LEGACY_DISPATCH_REQUEST_CODE = 0;
+    private static final long NOT_ARMED = SchedulerLedger.NOT_REGISTERED;
+    // Alarms read ahead of the full load by armEarliest
+    private static final int EARLIEST_BATCH = 16;
+    // Snoozes overdue by more than this when the queue is rebuilt are dropped rather than rung
+    private static final long MAX_SNOOZE_OVERDUE_MS = 60 * 60 * 1000L;
+    private static final int DEADLINE_CHECK_INTERVAL = 64;
+
+    // Guards queue and ledger
+    private static final Object lock = new Object();
+    // Every upcoming trigger; only the head is registered, through one dispatch PendingIntent
+    private static final TriggerQueue queue = new TriggerQueue();
+    // What is registered with the system, created on first use
+    private static SchedulerLedger ledger;
+    // Moved triggers a deadline stopped finishLoading from storing; the next call stores them
+    private static final List<TriggerQueue.Entry> unstored = new ArrayList<>();
+
+    /**
+     * Registers a slot with the system alarm service and records it in the ledger
+     */
+    interface Registrar {
+        void register(String slot, String action, long triggerAt, boolean allowWhileIdle);
+    }
+
     public static void scheduleAlarm(Context context, Alarm alarm) {
+        synchronized (lock) {
+            ensureLoaded(context);
+            TriggerTimeEngine engine = TriggerTimeEngine.forDefaultZone();
+            if (enqueue(alarm, engine.now(), engine) == null) {
+                ledger(context).removeSnooze(alarm.getId());
+            }
+            rearm(context);
+        }
+    }
+
+    public static void cancelAlarm(Context context, Alarm alarm) {
+        synchronized (lock) {
+            ensureLoaded(context);
+            queue.remove(alarm.getId());
+            ledger(context).removeSnooze(alarm.getId());
+            rearm(context);
+        }
+    }
+
+    /**
+     * Queue every enabled alarm of a batch and drop the disabled ones, re-arming
+     * the system at most once
+     */
+    public static void scheduleAlarms(Context context, Collection<Alarm> alarms) {
+        TriggerTimeEngine engine = TriggerTimeEngine.forDefaultZone();
+        long now = engine.now();
+        synchronized (lock) {
+            ensureLoaded(context);
+            for (Alarm alarm : alarms) {
+                if (enqueue(alarm, now, engine) == null) {
+                    ledger(context).removeSnooze(alarm.getId());
+                }
+            }
+            rearm(context);
+        }
+    }
+
+    /**
+     * Cancel every alarm of a batch, re-arming the system at most once
+     */
+    public static void cancelAlarms(Context context, Collection<Alarm> alarms) {
+        synchronized (lock) {
+            ensureLoaded(context);
+            for (Alarm alarm : alarms) {
+                queue.remove(alarm.getId());
+                ledger(context).removeSnooze(alarm.getId());
+            }
+            rearm(context);
+        }
+    }
+
+    /**
+     * Rebuild the queue from every enabled alarm in the database
+     */
+    public static void rescheduleAll(Context context) {
+        synchronized (lock) {
+            queue.clear();
+            loadFromDatabase(context);
+            rearm(context);
+        }
+    }
+
+    /**
+     * Rebuild the queue starting from the enabled alarms that fire first, and
+     * arm the system for the earliest of them. The rest of the queue is left to
+     * {@link #finishLoading}; until then the registered trigger is already right.
+     */
+    public static void armEarliest(Context context) {
+        TriggerTimeEngine engine = TriggerTimeEngine.forDefaultZone();
+        long now = engine.now();
+        List<Alarm> earliest = DatabaseHelper.getInstance(context).getNextDueAlarms(now, EARLIEST_BATCH);
+        synchronized (lock) {
+            queue.clear();
+            restoreSnoozes(context, now);
+            for (Alarm alarm : earliest) {
+                enqueue(alarm, now, engine);
+            }
+            rearm(context);
+        }
+    }
+
+    /**
+     * Queue every enabled alarm not queued yet, stopping once
+     * {@link SystemClock#elapsedRealtime()} passes {@code deadline}. Returns
+     * whether the queue is complete; if not, it completes on its next use or on
+     * the next call. Once it is, stored triggers that no longer match are
+     * rewritten while the deadline allows, and those left over are kept for the
+     * next call, so one without a deadline stores them all.
+     */
+    public static boolean finishLoading(Context context, long deadline) {
+        List<TriggerQueue.Entry> moved = new ArrayList<>();
+        synchronized (lock) {
+            if (!queue.isLoaded() && !loadFromDatabase(context, deadline, moved)) {
+                return false;
+            }
+            rearm(context);
+            // Entries replaced since were stored with their replacement
+            for (TriggerQueue.Entry entry : unstored) {
+                if (queue.get(entry.alarmId) == entry) {
+                    moved.add(entry);
+                }
+            }
+            unstored.clear();
+        }
+        List<TriggerQueue.Entry> left = storeTriggers(context, moved, deadline);
+        if (!left.isEmpty()) {
+            synchronized (lock) {
+                unstored.addAll(left);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rebuild the queue from the direct-boot snapshot. Labels aren't in the
+     * snapshot; they are filled in when the alarms are rescheduled from the
+     * database after unlock.
+     */
+    public static void scheduleSnapshot(Context context, AlarmSnapshot.Entries entries) {
+        synchronized (lock) {
+            queue.clear();
+            loadFromSnapshot(context, entries);
+            rearm(context);
+        }
+    }
+
+    /**
+     * Queue a one-off snooze trigger for an alarm, alongside its regular trigger.
+     * It is kept in the ledger until it fires or the alarm is cancelled.
+     */
+    public static void scheduleSnooze(Context context, long alarmId, String label, String ringtoneUri,
+                                      long triggerAt) {
+        int minuteOfDay = TriggerTimeEngine.forDefaultZone().minuteOfDay(triggerAt);
+        TriggerQueue.Entry entry = new TriggerQueue.Entry(alarmId, true, triggerAt,
+            minuteOfDay / 60, minuteOfDay % 60, Recurrence.ONE_SHOT, label, ringtoneUri);
+        synchronized (lock) {
+            ensureLoaded(context);
+            queue.put(entry);
+            ledger(context).putSnooze(entry);
+            rearm(context);
+        }
+    }
+
+    /**
+     * Take every trigger due at {@code now}, or within the coalescing window
+     * after it, off the queue, queue the next occurrence of the repeating ones
+     * and re-arm the system for the earliest remaining trigger. Returns the due
+     * triggers, earliest first; one-shot alarms among them are left for the
+     * caller to disable. The next occurrences queued are added to
+     * {@code requeued}, for the caller to store.
+     */
+    static List<TriggerQueue.Entry> dispatchDue(Context context, long now, List<TriggerQueue.Entry> requeued) {
+        List<TriggerQueue.Entry> due = new ArrayList<>();
+        long window = context.getResources().getInteger(R.integer.alarm_coalescing_window_ms);
+        synchronized (lock) {
+            // The registered alarm has just been consumed
+            SchedulerLedger ledger = ledger(context, DISPATCH_SLOT);
+            long registeredAt = ledger.registeredAt(DISPATCH_SLOT);
+            ledger.setRegistered(DISPATCH_SLOT, NOT_ARMED);
+            ensureLoaded(context, loadReference(registeredAt, now));
+            queue.pollDue(now + window, due);
+            TriggerTimeEngine engine = TriggerTimeEngine.forDefaultZone();
+            for (TriggerQueue.Entry entry : due) {
+                if (entry.snooze) {
+                    ledger.removeSnooze(entry.alarmId);
+                } else if (Recurrence.isRepeating(entry.repeatDays)) {
+                    // A trigger taken early by the window must not come straight back
+                    long after = Math.max(now, entry.triggerAt);
+                    TriggerQueue.Entry next = new TriggerQueue.Entry(entry.alarmId, false,
+                        engine.nextTriggerAfter(entry.hour, entry.minute, entry.repeatDays, after),
+                        entry.hour, entry.minute, entry.repeatDays, entry.label, entry.ringtoneUri);
+                    queue.put(next);
+                    requeued.add(next);
+                }
+            }
+            rearm(context);
+        }
+        return due;
+    }
+
+    /**
+     * Mark the warm-up alarm as consumed and return the trigger it was for, or
+     * null if nothing is queued any more
+     */
+    static TriggerQueue.Entry takeWarmup(Context context) {
+        synchronized (lock) {
+            ledger(context, WARMUP_SLOT).setRegistered(WARMUP_SLOT, NOT_ARMED);
+            ensureLoaded(context);
+            return queue.peek();
+        }
+    }
+
+    /**
+     * Recompute every queued regular trigger after the wall clock or the zone
+     * changed, and re-arm once. Only triggers that actually moved are touched;
+     * they are added to {@code moved} with their new time. Triggers already due
+     * and snoozes, which are absolute instants, are left alone.
+     */
+    static void recomputeTriggers(Context context, List<TriggerQueue.Entry> moved) {
+        TriggerTimeEngine engine = TriggerTimeEngine.forDefaultZone();
+        long now = engine.now();
+        synchronized (lock) {
+            if (!queue.isLoaded() && AlarmSnapshot.isUserUnlocked(context)) {
+                // Loading computes every trigger afresh; compare with what the database last stored
+                loadFromDatabase(context, Long.MAX_VALUE, moved);
+                rearm(context);
+                return;
+            }
+            // Snapshot trigger times were computed before the change, so they go through the pass below
+            ensureLoaded(context);
+
+            List<TriggerQueue.Entry> changed = new ArrayList<>();
+            for (TriggerQueue.Entry entry : queue.regularEntries()) {
+                if (entry.triggerAt <= now) {
+                    continue;
+                }
+                long triggerAt = engine.nextTriggerAfter(entry.hour, entry.minute, entry.repeatDays, now);
+                if (triggerAt != entry.triggerAt) {
+                    changed.add(new TriggerQueue.Entry(entry.alarmId, false, triggerAt,
+                        entry.hour, entry.minute, entry.repeatDays, entry.label, entry.ringtoneUri));
+                }
+            }
+            for (TriggerQueue.Entry entry : changed) {
+                queue.put(entry);
+            }
+            moved.addAll(changed);
+            rearm(context);
+        }
+    }
+
+    /**
+     * Cancel the PendingIntents registered by earlier versions: one per alarm,
+     * keyed by its id, and the dispatch intent under its fixed request code
+     */
+    public static void cancelLegacyAlarms(Context context) {
         AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        Intent intent = new Intent(context, AlarmReceiver.class);
-        intent.putExtra("alarm_id", alarm.getId());
-        intent.putExtra("alarm_label", alarm.getLabel());
-        intent.putExtra("ringtone_uri", alarm.getRingtoneUri());
-        
-        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            flags |= PendingIntent.FLAG_IMMUTABLE;
+        Intent dispatch = new Intent(context, AlarmReceiver.class);
+        dispatch.setAction(ACTION_DISPATCH);
+        PendingIntent legacyDispatch = PendingIntent.getBroadcast(context, LEGACY_DISPATCH_REQUEST_CODE,
+            dispatch, pendingIntentFlags() | PendingIntent.FLAG_NO_CREATE);
+        if (legacyDispatch != null) {
+            alarmManager.cancel(legacyDispatch);
+            legacyDispatch.cancel();
         }
-        
-        PendingIntent pendingIntent = PendingIntent.getBroadcast(
-            context, 
-            (int) alarm.getId(), 
-            intent, 
-            flags
-        );
-        
-        long triggerTime = Long.parseLong(alarm.getTimeInMillis());
-        
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, triggerTime, pendingIntent);
-        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            alarmManager.setExact(AlarmManager.RTC_WAKEUP, triggerTime, pendingIntent);
+
+        // Only the ids are needed
+        for (Alarm alarm : DatabaseHelper.getInstance(context).getAlarmSummaries()) {
+            PendingIntent pendingIntent = PendingIntent.getBroadcast(
+                context,
+                (int) alarm.getId(),
+                new Intent(context, AlarmReceiver.class),
+                pendingIntentFlags() | PendingIntent.FLAG_NO_CREATE
+            );
+            if (pendingIntent != null) {
+                alarmManager.cancel(pendingIntent);
+                pendingIntent.cancel();
+            }
+        }
+    }
+
+    // The queue is rebuilt lazily after process start: from the database, or from the snapshot
+    // while the user is still locked, plus the snoozes kept in the ledger
+    private static void ensureLoaded(Context context) {
+        ensureLoaded(context, System.currentTimeMillis());
+    }
+
+    /**
+     * Load the queue if the process just started, with every trigger after
+     * {@code since}. A dispatch passes an instant before the registered
+     * trigger, so the alarms it was armed for are still due once reloaded.
+     */
+    private static void ensureLoaded(Context context, long since) {
+        if (queue.isLoaded()) {
+            return;
+        }
+        if (AlarmSnapshot.isUserUnlocked(context)) {
+            loadFromDatabase(context, Long.MAX_VALUE, null, since);
         } else {
-            alarmManager.set(AlarmManager.RTC_WAKEUP, triggerTime, pendingIntent);
+            AlarmSnapshot.Entries entries = AlarmSnapshot.getInstance(context).read(since);
+            if (entries != null) {
+                loadFromSnapshot(context, entries);
+            }
         }
     }
-    
-    public static void cancelAlarm(Context context, Alarm alarm) {
+
+    /**
+     * Instant to load the queue after when a dispatch finds it empty: just
+     * before the trigger the system was armed for, if that has come, else now.
+     * Loading after now would move the alarms being dispatched to their next
+     * occurrence.
+     */
+    static long loadReference(long registeredAt, long now) {
+        return registeredAt != NOT_ARMED && registeredAt <= now ? registeredAt - 1 : now;
+    }
+
+    private static void loadFromDatabase(Context context) {
+        loadFromDatabase(context, Long.MAX_VALUE, null);
+    }
+
+    private static boolean loadFromDatabase(Context context, long deadline, List<TriggerQueue.Entry> moved) {
+        return loadFromDatabase(context, deadline, moved, System.currentTimeMillis());
+    }
+
+    /**
+     * Queue every enabled alarm's first trigger after {@code since}. Returns
+     * false, leaving the queue marked as not loaded, if the deadline passed
+     * first. Entries whose trigger differs from the stored one are added to
+     * {@code moved} when it isn't null.
+     */
+    private static boolean loadFromDatabase(Context context, long deadline, List<TriggerQueue.Entry> moved,
+                                            long since) {
+        TriggerTimeEngine engine = TriggerTimeEngine.forDefaultZone();
+        restoreSnoozes(context, since);
+        DatabaseHelper.AlarmStream stream = DatabaseHelper.getInstance(context).openAlarmStream(true);
+        try {
+            Alarm alarm;
+            int count = 0;
+            while ((alarm = stream.next()) != null) {
+                TriggerQueue.Entry entry = enqueue(alarm, since, engine);
+                if (moved != null && entry != null && entry.triggerAt != alarm.getNextTriggerAt()) {
+                    moved.add(entry);
+                }
+                if (++count % DEADLINE_CHECK_INTERVAL == 0 && SystemClock.elapsedRealtime() > deadline) {
+                    Log.d(TAG, "Queued " + count + " alarms before the deadline");
+                    return false;
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        queue.setLoaded(true);
+        return true;
+    }
+
+    // Rows left stale are missed by DatabaseHelper.getNextDueAlarms until they are stored.
+    // Returns the entries the deadline left unstored.
+    private static List<TriggerQueue.Entry> storeTriggers(Context context, List<TriggerQueue.Entry> moved,
+                                                          long deadline) {
+        DatabaseHelper databaseHelper = DatabaseHelper.getInstance(context);
+        for (int from = 0; from < moved.size(); from += DEADLINE_CHECK_INTERVAL) {
+            if (SystemClock.elapsedRealtime() > deadline) {
+                Log.d(TAG, "Stored " + from + " of " + moved.size() + " moved triggers before the deadline");
+                return moved.subList(from, moved.size());
+            }
+            int to = Math.min(from + DEADLINE_CHECK_INTERVAL, moved.size());
+            long[] ids = new long[to - from];
+            long[] triggerTimes = new long[to - from];
+            for (int i = from; i < to; i++) {
+                ids[i - from] = moved.get(i).alarmId;
+                triggerTimes[i - from] = moved.get(i).triggerAt;
+            }
+            databaseHelper.updateNextTriggers(ids, triggerTimes);
+        }
+        return Collections.<TriggerQueue.Entry>emptyList();
+    }
+
+    private static void loadFromSnapshot(Context context, AlarmSnapshot.Entries entries) {
+        restoreSnoozes(context, System.currentTimeMillis());
+        for (int i = 0; i < entries.size(); i++) {
+            queue.put(new TriggerQueue.Entry(entries.ids[i], false, entries.triggerTimes[i],
+                entries.hours[i], entries.minutes[i], entries.repeatDays[i],
+                null, entries.ringtoneUris[i]));
+        }
+        queue.setLoaded(true);
+    }
+
+    // Queue the snoozes kept in the ledger, dropping those long overdue
+    private static void restoreSnoozes(Context context, long now) {
+        SchedulerLedger ledger = ledger(context);
+        List<TriggerQueue.Entry> expired = new ArrayList<>();
+        for (TriggerQueue.Entry snooze : ledger.snoozes()) {
+            if (isSnoozeExpired(snooze, now)) {
+                expired.add(snooze);
+            } else {
+                queue.put(snooze);
+            }
+        }
+        for (TriggerQueue.Entry snooze : expired) {
+            Log.d(TAG, "Dropping snooze of alarm " + snooze.alarmId + " overdue since " + snooze.triggerAt);
+            ledger.removeSnooze(snooze.alarmId);
+        }
+    }
+
+    static boolean isSnoozeExpired(TriggerQueue.Entry snooze, long now) {
+        return snooze.triggerAt < now - MAX_SNOOZE_OVERDUE_MS;
+    }
+
+    // Returns the queued entry, or null if the alarm is disabled
+    private static TriggerQueue.Entry enqueue(Alarm alarm, long now, TriggerTimeEngine engine) {
+        if (!alarm.isEnabled()) {
+            queue.remove(alarm.getId());
+            return null;
+        }
+        TriggerQueue.Entry entry = entryFor(alarm, now, engine);
+        queue.put(entry);
+        return entry;
+    }
+
+    /**
+     * Regular trigger of an alarm, at its first occurrence strictly after {@code since}
+     */
+    static TriggerQueue.Entry entryFor(Alarm alarm, long since, TriggerTimeEngine engine) {
+        return new TriggerQueue.Entry(alarm.getId(), false, alarm.nextTriggerAfter(since, engine),
+            alarm.getHour(), alarm.getMinute(), alarm.getRepeatDays(), alarm.getLabel(), alarm.getRingtoneUri());
+    }
+
+    private static SchedulerLedger ledger(Context context) {
+        return ledger(context, null);
+    }
+
+    /**
+     * The ledger, loaded on first use. {@code consumedSlot}, if not null, names
+     * a registration that has just fired: its PendingIntent may already be gone,
+     * and its recorded trigger is kept for the caller rather than forgotten.
+     */
+    private static SchedulerLedger ledger(Context context, String consumedSlot) {
+        if (ledger == null) {
+            ledger = new SchedulerLedger(context);
+        }
+        if (!ledger.isLoaded()) {
+            ledger.load();
+            // A reboot or force stop drops the registration and its PendingIntent together
+            if (!DISPATCH_SLOT.equals(consumedSlot)) {
+                forgetIfGone(context, DISPATCH_SLOT, ACTION_DISPATCH);
+            }
+            if (!WARMUP_SLOT.equals(consumedSlot)) {
+                forgetIfGone(context, WARMUP_SLOT, ACTION_WARMUP);
+            }
+        }
+        return ledger;
+    }
+
+    private static void forgetIfGone(Context context, String slot, String action) {
+        if (ledger.registeredAt(slot) != NOT_ARMED
+                && alarmIntent(context, slot, action, PendingIntent.FLAG_NO_CREATE) == null) {
+            Log.d(TAG, "Ledger registration " + slot + " no longer exists, forgetting it");
+            ledger.setRegistered(slot, NOT_ARMED);
+        }
+    }
+
+    // Register the head of the queue, and its warm-up, unless the ledger says they already are,
+    // so a change that doesn't move the head, or a process restart, makes no system call
+    private static void rearm(final Context context) {
+        SchedulerLedger ledger = ledger(context);
+        long target = rearmDispatch(queue, ledger, new Registrar() {
+            @Override
+            public void register(String slot, String action, long triggerAt, boolean allowWhileIdle) {
+                AlarmScheduler.register(context, slot, action, triggerAt, allowWhileIdle);
+            }
+        });
+
+        // A plain exact alarm lets AlarmService prepare the ringtone. It stays off the allow-while-idle
+        // quota the real trigger relies on; in Doze it is deferred and the alarm rings cold.
+        // Skipped once its time has passed, so a consumed warm-up isn't registered again
+        long lead = context.getResources().getInteger(R.integer.alarm_warmup_lead_ms);
+        long warmupAt = NOT_ARMED;
+        if (target != NOT_ARMED && lead > 0 && target - lead > System.currentTimeMillis()) {
+            warmupAt = target - lead;
+        }
+        if (warmupAt != ledger.registeredAt(WARMUP_SLOT)) {
+            register(context, WARMUP_SLOT, ACTION_WARMUP, warmupAt, false);
+        }
+    }
+
+    /**
+     * Register the head of {@code queue} through {@code registrar} unless the
+     * ledger already has it, and return the dispatch trigger it wants
+     */
+    static long rearmDispatch(TriggerQueue queue, SchedulerLedger ledger, Registrar registrar) {
+        TriggerQueue.Entry head = queue.peek();
+        long target = head == null ? NOT_ARMED : head.triggerAt;
+        if (target != ledger.registeredAt(DISPATCH_SLOT)) {
+            registrar.register(DISPATCH_SLOT, ACTION_DISPATCH, target, true);
+            Log.d(TAG, target == NOT_ARMED ? "Disarmed, nothing queued"
+                : "Armed for " + target + " with " + queue.size() + " triggers queued");
+        }
+        return target;
+    }
+
+    private static void register(Context context, String slot, String action, long triggerAt,
+                                 boolean allowWhileIdle) {
         AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (triggerAt == NOT_ARMED) {
+            PendingIntent pendingIntent = alarmIntent(context, slot, action, PendingIntent.FLAG_NO_CREATE);
+            if (pendingIntent != null) {
+                alarmManager.cancel(pendingIntent);
+                pendingIntent.cancel();
+            }
+            ledger.setRegistered(slot, NOT_ARMED);
+            return;
+        }
+
+        PendingIntent pendingIntent = alarmIntent(context, slot, action, 0);
+        if (allowWhileIdle && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, triggerAt, pendingIntent);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            alarmManager.setExact(AlarmManager.RTC_WAKEUP, triggerAt, pendingIntent);
+        } else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, triggerAt, pendingIntent);
+        }
+        ledger.setRegistered(slot, triggerAt);
+    }
+
+    private static PendingIntent alarmIntent(Context context, String slot, String action, int extraFlags) {
         Intent intent = new Intent(context, AlarmReceiver.class);
-        
+        intent.setAction(action);
+        return PendingIntent.getBroadcast(context, ledger.requestCode(slot), intent,
+            pendingIntentFlags() | extraFlags);
+    }
+
+    private static int pendingIntentFlags() {
         int flags = PendingIntent.FLAG_UPDATE_CURRENT;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             flags |= PendingIntent.FLAG_IMMUTABLE;
         }
-        
-        PendingIntent pendingIntent = PendingIntent.getBroadcast(
-            context, 
-            (int) alarm.getId(), 
-            intent, 
-            flags
-        );
-        
-        alarmManager.cancel(pendingIntent);
-        pendingIntent.cancel();
+        return flags;
     }
 }
@@ -12,26 +12,105 @@ import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.Vibrator;
+import android.text.TextUtils;
 import android.util.Log;
 import androidx.core.app.NotificationCompat;
 import java.io.IOException;
+import java.util.LinkedHashMap;
 
+/**
+ * Rings for a firing session: plays the ringtone, vibrates and shows the
+ * ongoing notification until every alarm of the session is stopped.
+ */
 public class AlarmService extends Service {
     
     private static final String TAG = "AlarmService";
     private static final String CHANNEL_ID = "alarm_channel";
+    private static final String WARMUP_CHANNEL_ID = "alarm_warmup_channel";
     private static final int NOTIFICATION_ID = 1;
     
+    // Sent shortly before a trigger to prepare the next ringtone
+    public static final String ACTION_WARMUP = "com.furaxx37.reveilletoi.action.WARMUP";
+    // Stops alarms and records their dismissal
+    public static final String ACTION_DISMISS = "com.furaxx37.reveilletoi.action.DISMISS";
+    // Stops alarms whose caller records the dismissal itself
+    public static final String ACTION_REMOVE = "com.furaxx37.reveilletoi.action.REMOVE";
+    
+    // Longest a warmed-up service waits for its session
+    private static final long WARMUP_TIMEOUT_MS = 2 * 60 * 1000L;
+    
+    // Wake lock timeout, renewed while ringing
+    private static final long WAKE_LOCK_TIMEOUT_MS = 3 * 60 * 1000L;
+    private static final long WAKE_LOCK_RENEW_MS = 60 * 1000L;
+    
+    // Ringing nobody stops is silenced after this
+    private static final long MAX_RING_MS = 10 * 60 * 1000L;
+    
+    // Alarms listed in the notification; the rest are counted
+    private static final int MAX_NOTIFICATION_LINES = 5;
+    
+    // Request codes of the notification actions
+    private static final int REQUEST_DISMISS_FIRST = 1;
+    private static final int REQUEST_DISMISS_ALL = 2;
+    
     private MediaPlayer mediaPlayer;
+    private PcmRingtonePlayer pcmPlayer;
     private Vibrator vibrator;
     private PowerManager.WakeLock wakeLock;
+    // Each alarm's share is recorded in FiringHistory when it leaves the session
+    private final EnergyLedger energyLedger = new EnergyLedger();
+    
+    /**
+     * One alarm of the firing session
+     */
+    private static final class ActiveAlarm {
+        final long id;
+        final String label;
+        final String ringtoneUri;
+        final long scheduledAt;
+        long firedAt;
+
+        ActiveAlarm(long id, String label, String ringtoneUri, long scheduledAt, long firedAt) {
+            this.id = id;
+            this.label = label;
+            this.ringtoneUri = ringtoneUri;
+            this.scheduledAt = scheduledAt;
+            this.firedAt = firedAt;
+        }
+    }
     
-    private long alarmId;
-    private String alarmLabel;
-    private String ringtoneUri;
+    // Alarms of the current firing session by id, oldest first; the first one's ringtone plays.
+    // Alarms firing while others ring join it, sharing one player, vibration and notification.
+    private final LinkedHashMap<Long, ActiveAlarm> session = new LinkedHashMap<>();
+    
+    // Ringtone the idle player was prepared with by a warm-up
+    private String preparedUri;
+    private boolean prepared;
+    // Ringtone of the ringing player
+    private String playingUri;
+    private boolean ringing;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable warmupTimeout = () -> {
+        if (session.isEmpty()) {
+            Log.d(TAG, "No alarm followed the warm-up, stopping");
+            stopAlarm();
+        }
+    };
+    private final Runnable wakeLockRenewal = new Runnable() {
+        @Override
+        public void run() {
+            if (wakeLock.isHeld()) {
+                wakeLock.acquire(WAKE_LOCK_TIMEOUT_MS);
+                handler.postDelayed(this, WAKE_LOCK_RENEW_MS);
+            }
+        }
+    };
+    private final Runnable ringTimeout = this::silence;
 
     @Override
     public void onCreate() {
@@ -44,38 +123,135 @@ public class AlarmService extends Service {
         // Get vibrator service
         vibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
         
-        // Acquire wake lock to keep device awake
+        // Wake lock to keep device awake, taken while there is work
         PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
         wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "ReveilToi:AlarmWakeLock");
-        wakeLock.acquire(10 * 60 * 1000L); // 10 minutes max
+        wakeLock.setReferenceCounted(false);
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "AlarmService started");
         
-        if (intent != null) {
-            alarmId = intent.getLongExtra("alarm_id", -1);
-            alarmLabel = intent.getStringExtra("alarm_label");
-            ringtoneUri = intent.getStringExtra("ringtone_uri");
-            
-            // Start foreground service with notification
-            startForeground(NOTIFICATION_ID, createNotification());
-            
-            // Start playing alarm
-            startAlarm();
+        if (intent == null) {
+            return START_NOT_STICKY;
+        }
+        
+        String action = intent.getAction();
+        if (ACTION_WARMUP.equals(action)) {
+            warmUp(intent.getStringExtra("ringtone_uri"));
+            return START_NOT_STICKY;
         }
+        if (ACTION_DISMISS.equals(action) || ACTION_REMOVE.equals(action)) {
+            stopAlarms(intent.getLongArrayExtra("alarm_ids"), ACTION_DISMISS.equals(action));
+            return START_NOT_STICKY;
+        }
+        
+        long[] alarmIds = intent.getLongArrayExtra("alarm_ids");
+        String[] alarmLabels = intent.getStringArrayExtra("alarm_labels");
+        String[] ringtoneUris = intent.getStringArrayExtra("ringtone_uris");
+        if (alarmIds == null || alarmLabels == null || ringtoneUris == null) {
+            return START_NOT_STICKY;
+        }
+        long firedAt = intent.getLongExtra("fired_at", System.currentTimeMillis());
+        long scheduledAt = intent.getLongExtra("scheduled_at", firedAt);
+        join(alarmIds, alarmLabels, ringtoneUris, scheduledAt, firedAt);
         
         return START_NOT_STICKY;
     }
 
+    // Add fired alarms to the session, starting it if nothing rings yet
+    private void join(long[] alarmIds, String[] alarmLabels, String[] ringtoneUris, long scheduledAt, long firedAt) {
+        handler.removeCallbacks(warmupTimeout);
+        for (int i = 0; i < alarmIds.length; i++) {
+            ActiveAlarm alarm = session.get(alarmIds[i]);
+            if (alarm != null) {
+                // Fired again, e.g. a snooze; keeps its place
+                alarm.firedAt = firedAt;
+            } else {
+                session.put(alarmIds[i], new ActiveAlarm(alarmIds[i], alarmLabels[i], ringtoneUris[i],
+                        scheduledAt, firedAt));
+                energyLedger.alarmJoined(alarmIds[i]);
+            }
+        }
+        Log.d(TAG, alarmIds.length + " alarms fired, " + session.size() + " in session");
+        if (session.isEmpty()) {
+            stopAlarm();
+            return;
+        }
+        
+        // Start foreground service with notification
+        startForeground(NOTIFICATION_ID, createNotification());
+        
+        if (!ringing) {
+            startAlarm();
+        }
+        showAlarmScreen();
+    }
+
+    // Take alarms out of the session, or all of them if ids is null
+    private void stopAlarms(long[] alarmIds, boolean recordDismissal) {
+        long now = System.currentTimeMillis();
+        FiringHistory firingHistory = FiringHistory.getInstance(this);
+        if (alarmIds == null) {
+            alarmIds = new long[session.size()];
+            int i = 0;
+            for (long alarmId : session.keySet()) {
+                alarmIds[i++] = alarmId;
+            }
+        }
+        for (long alarmId : alarmIds) {
+            ActiveAlarm alarm = session.remove(alarmId);
+            if (alarm == null) {
+                continue;
+            }
+            if (recordDismissal) {
+                firingHistory.recordDismissed(alarmId, alarm.firedAt, now);
+            }
+            recordEnergy(alarmId);
+        }
+        if (session.isEmpty()) {
+            stopAlarm();
+            return;
+        }
+        
+        // The oldest remaining alarm now leads; switch ringtone if it has another one
+        ActiveAlarm first = firstAlarm();
+        if (ringing && !TextUtils.equals(playingUri, first.ringtoneUri)) {
+            ringing = false;
+            playRingtone();
+        }
+        NotificationManager notificationManager =
+                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        notificationManager.notify(NOTIFICATION_ID, createNotification());
+        showAlarmScreen();
+    }
+
+    // Record what an alarm cost while in the session
+    private void recordEnergy(long alarmId) {
+        EnergyLedger.Usage usage = energyLedger.alarmLeft(alarmId);
+        if (usage != null) {
+            Log.d(TAG, "Alarm " + alarmId + ": " + usage);
+            FiringHistory.getInstance(this).recordEnergy(alarmId, usage.wakeLockMs, usage.audioMs,
+                    usage.vibrationMs);
+        }
+    }
+
+    private ActiveAlarm firstAlarm() {
+        return session.values().iterator().next();
+    }
+
     private void startAlarm() {
+        holdWakeLock();
+        handler.removeCallbacks(ringTimeout);
+        handler.postDelayed(ringTimeout, MAX_RING_MS);
         try {
             // Start vibration
             if (vibrator != null && vibrator.hasVibrator()) {
                 // Vibrate pattern: wait 0ms, vibrate 1000ms, wait 1000ms, repeat
                 long[] pattern = {0, 1000, 1000};
                 vibrator.vibrate(pattern, 0);
+                energyLedger.setVibrating(true);
             }
             
             // Start playing ringtone
@@ -86,7 +262,102 @@ public class AlarmService extends Service {
         }
     }
 
+    // Stop the sound and vibration of a session nobody stopped; its notification stays
+    private void silence() {
+        Log.d(TAG, "Silencing " + session.size() + " alarms after " + MAX_RING_MS / 60000 + " minutes");
+        ringing = false;
+        playingUri = null;
+        releasePlayer();
+        stopVibration();
+        releaseWakeLock();
+    }
+
+    private void stopVibration() {
+        if (vibrator != null) {
+            vibrator.cancel();
+        }
+        energyLedger.setVibrating(false);
+    }
+
+    // Take or extend the wake lock; renewed until released
+    private void holdWakeLock() {
+        wakeLock.acquire(WAKE_LOCK_TIMEOUT_MS);
+        energyLedger.setWakeLockHeld(true);
+        handler.removeCallbacks(wakeLockRenewal);
+        handler.postDelayed(wakeLockRenewal, WAKE_LOCK_RENEW_MS);
+    }
+
+    private void releaseWakeLock() {
+        handler.removeCallbacks(wakeLockRenewal);
+        if (wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+        energyLedger.setWakeLockHeld(false);
+    }
+
+    // Open and prepare the ringtone so that only starting playback is left when the session
+    // arrives. A warm-up no session follows stops itself after WARMUP_TIMEOUT_MS.
+    private void warmUp(String uri) {
+        if (!session.isEmpty()) {
+            // Ringing or silenced, the session keeps its notification; posting it again satisfies
+            // startForegroundService, and the warm-up timeout must not stop it
+            startForeground(NOTIFICATION_ID, createNotification());
+            return;
+        }
+        startForeground(NOTIFICATION_ID, createWarmupNotification());
+        if (!prepared || !TextUtils.equals(preparedUri, uri)) {
+            // Only while preparing; the trigger wakes the device again
+            holdWakeLock();
+            releasePlayer();
+            prepared = preparePlayer(uri);
+            preparedUri = uri;
+            releaseWakeLock();
+        }
+        handler.removeCallbacks(warmupTimeout);
+        handler.postDelayed(warmupTimeout, WARMUP_TIMEOUT_MS);
+        Log.d(TAG, "Warmed up, ringtone " + (prepared ? "prepared" : "not prepared"));
+    }
+
+    // Cached ringtones play through a PcmRingtonePlayer, others through MediaPlayer
     private void playRingtone() {
+        ActiveAlarm first = firstAlarm();
+        String ringtoneUri = first.ringtoneUri;
+        boolean warm = prepared && TextUtils.equals(preparedUri, ringtoneUri);
+        if (!warm) {
+            releasePlayer();
+            if (!preparePlayer(ringtoneUri)) {
+                // Try to play default system alarm
+                playDefaultAlarm();
+                playingUri = ringtoneUri;
+                return;
+            }
+        }
+        prepared = false;
+        playingUri = ringtoneUri;
+        if (pcmPlayer != null) {
+            pcmPlayer.start();
+        } else {
+            mediaPlayer.start();
+        }
+        ringing = true;
+        energyLedger.setAudioOn(true);
+        Log.d(TAG, "Ringtone audible " + (System.currentTimeMillis() - first.scheduledAt) +
+                " ms after scheduled time (" + (warm ? "warm" : "cold") + " start, " +
+                (pcmPlayer != null ? "cached PCM" : "media player") + ")");
+    }
+
+    // Create a looping alarm player for a ringtone and prepare it, without starting it
+    private boolean preparePlayer(String uri) {
+        RingtoneCache.Entry cached = RingtoneCache.getInstance(this).open(uri);
+        if (cached != null) {
+            try {
+                pcmPlayer = new PcmRingtonePlayer(cached);
+                return true;
+            } catch (IllegalArgumentException | UnsupportedOperationException e) {
+                Log.e(TAG, "Cached ringtone not playable, using media player", e);
+            }
+        }
+        
         try {
             mediaPlayer = new MediaPlayer();
             
@@ -102,8 +373,8 @@ public class AlarmService extends Service {
             }
             
             // Set data source
-            if (ringtoneUri != null && !ringtoneUri.isEmpty()) {
-                mediaPlayer.setDataSource(this, Uri.parse(ringtoneUri));
+            if (uri != null && !uri.isEmpty()) {
+                mediaPlayer.setDataSource(this, Uri.parse(uri));
             } else {
                 // Use default alarm sound
                 Uri defaultAlarmUri = android.provider.Settings.System.DEFAULT_ALARM_ALERT_URI;
@@ -118,26 +389,40 @@ public class AlarmService extends Service {
             
             mediaPlayer.setLooping(true);
             mediaPlayer.prepare();
-            mediaPlayer.start();
-            
-            Log.d(TAG, "Ringtone started playing");
+            return true;
             
         } catch (IOException e) {
-            Log.e(TAG, "Error playing ringtone", e);
-            // Try to play default system alarm
-            playDefaultAlarm();
+            Log.e(TAG, "Error preparing ringtone", e);
+            releasePlayer();
+            return false;
         }
     }
 
+    private void releasePlayer() {
+        if (pcmPlayer != null) {
+            pcmPlayer.release();
+            pcmPlayer = null;
+        }
+        if (mediaPlayer != null) {
+            if (mediaPlayer.isPlaying()) {
+                mediaPlayer.stop();
+            }
+            mediaPlayer.release();
+            mediaPlayer = null;
+        }
+        prepared = false;
+        energyLedger.setAudioOn(false);
+    }
+
     private void playDefaultAlarm() {
         try {
-            if (mediaPlayer != null) {
-                mediaPlayer.release();
-            }
+            releasePlayer();
             mediaPlayer = MediaPlayer.create(this, android.provider.Settings.System.DEFAULT_ALARM_ALERT_URI);
             if (mediaPlayer != null) {
                 mediaPlayer.setLooping(true);
                 mediaPlayer.start();
+                ringing = true;
+                energyLedger.setAudioOn(true);
             }
         } catch (Exception e) {
             Log.e(TAG, "Error playing default alarm", e);
@@ -147,23 +432,28 @@ public class AlarmService extends Service {
     public void stopAlarm() {
         Log.d(TAG, "Stopping alarm");
         
+        handler.removeCallbacks(warmupTimeout);
+        handler.removeCallbacks(ringTimeout);
+        ringing = false;
+        playingUri = null;
+        
         // Stop media player
-        if (mediaPlayer != null) {
-            if (mediaPlayer.isPlaying()) {
-                mediaPlayer.stop();
-            }
-            mediaPlayer.release();
-            mediaPlayer = null;
-        }
+        releasePlayer();
         
         // Stop vibration
-        if (vibrator != null) {
-            vibrator.cancel();
-        }
+        stopVibration();
         
         // Release wake lock
-        if (wakeLock != null && wakeLock.isHeld()) {
-            wakeLock.release();
+        releaseWakeLock();
+        
+        // Charge the remaining alarms now that everything is off
+        for (long alarmId : session.keySet()) {
+            recordEnergy(alarmId);
+        }
+        session.clear();
+        EnergyLedger.Usage uncharged = energyLedger.takeUnattributed();
+        if (!uncharged.isEmpty()) {
+            Log.d(TAG, "Not charged to any alarm: " + uncharged);
         }
         
         // Stop foreground service
@@ -171,27 +461,96 @@ public class AlarmService extends Service {
         stopSelf();
     }
 
+    // Bring up the alarm screen with every alarm of the session
+    private void showAlarmScreen() {
+        Intent intent = alarmScreenIntent();
+        intent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        startActivity(intent);
+    }
+
+    private Intent alarmScreenIntent() {
+        long[] alarmIds = new long[session.size()];
+        String[] alarmLabels = new String[session.size()];
+        String[] ringtoneUris = new String[session.size()];
+        long[] firedAt = new long[session.size()];
+        int i = 0;
+        for (ActiveAlarm alarm : session.values()) {
+            alarmIds[i] = alarm.id;
+            alarmLabels[i] = alarm.label;
+            ringtoneUris[i] = alarm.ringtoneUri;
+            firedAt[i] = alarm.firedAt;
+            i++;
+        }
+        
+        Intent intent = new Intent(this, AlarmActivity.class);
+        intent.putExtra("alarm_ids", alarmIds);
+        intent.putExtra("alarm_labels", alarmLabels);
+        intent.putExtra("ringtone_uris", ringtoneUris);
+        intent.putExtra("fired_at", firedAt);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        return intent;
+    }
+
+    private PendingIntent dismissIntent(int requestCode, long[] alarmIds) {
+        Intent intent = new Intent(this, AlarmService.class);
+        intent.setAction(ACTION_DISMISS);
+        if (alarmIds != null) {
+            intent.putExtra("alarm_ids", alarmIds);
+        }
+        return PendingIntent.getService(this, requestCode, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+
     private Notification createNotification() {
-        Intent stopIntent = new Intent(this, AlarmActivity.class);
-        stopIntent.putExtra("alarm_id", alarmId);
-        stopIntent.putExtra("alarm_label", alarmLabel);
-        stopIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        Intent stopIntent = alarmScreenIntent();
         
         PendingIntent pendingIntent = PendingIntent.getActivity(
                 this, 0, stopIntent, 
                 PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
         );
         
-        String title = alarmLabel != null && !alarmLabel.isEmpty() ? alarmLabel : "Alarme";
+        // One line per active alarm, up to a limit
+        String[] labels = stopIntent.getStringArrayExtra("alarm_labels");
+        NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle();
+        for (int i = 0; i < labels.length && i < MAX_NOTIFICATION_LINES; i++) {
+            style.addLine(AlarmActivity.sessionTitle(new String[]{labels[i]}));
+        }
+        if (labels.length > MAX_NOTIFICATION_LINES) {
+            style.setSummaryText("+" + (labels.length - MAX_NOTIFICATION_LINES) + " autres");
+        }
         
-        return new NotificationCompat.Builder(this, CHANNEL_ID)
+        String title = AlarmActivity.sessionTitle(labels);
+        
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, CHANNEL_ID)
                 .setContentTitle(title)
                 .setContentText("Touchez pour arrêter l'alarme")
                 .setSmallIcon(android.R.drawable.ic_lock_idle_alarm)
                 .setContentIntent(pendingIntent)
+                .setStyle(style)
+                .setNumber(labels.length)
                 .setAutoCancel(false)
                 .setOngoing(true)
                 .setPriority(NotificationCompat.PRIORITY_HIGH)
+                .setCategory(NotificationCompat.CATEGORY_ALARM);
+        
+        // Stop the ringing alarm alone, or all of them
+        ActiveAlarm first = firstAlarm();
+        if (labels.length == 1) {
+            builder.addAction(0, "Arrêter", dismissIntent(REQUEST_DISMISS_FIRST, new long[]{first.id}));
+        } else {
+            builder.addAction(0, "Arrêter « " + AlarmActivity.sessionTitle(new String[]{first.label}) + " »",
+                    dismissIntent(REQUEST_DISMISS_FIRST, new long[]{first.id}));
+            builder.addAction(0, "Tout arrêter", dismissIntent(REQUEST_DISMISS_ALL, null));
+        }
+        return builder.build();
+    }
+
+    private Notification createWarmupNotification() {
+        return new NotificationCompat.Builder(this, WARMUP_CHANNEL_ID)
+                .setContentTitle("Alarme imminente")
+                .setSmallIcon(android.R.drawable.ic_lock_idle_alarm)
+                .setOngoing(true)
+                .setPriority(NotificationCompat.PRIORITY_MIN)
                 .setCategory(NotificationCompat.CATEGORY_ALARM)
                 .build();
     }
@@ -207,8 +566,17 @@ public class AlarmService extends Service {
             channel.enableVibration(true);
             channel.setVibrationPattern(new long[]{0, 1000, 500, 1000});
             
+            // Shown while a warm-up prepares the ringtone; must stay silent
+            NotificationChannel warmupChannel = new NotificationChannel(
+                    WARMUP_CHANNEL_ID,
+                    "Préparation des alarmes",
+                    NotificationManager.IMPORTANCE_MIN
+            );
+            warmupChannel.setSound(null, null);
+            
             NotificationManager notificationManager = getSystemService(NotificationManager.class);
             notificationManager.createNotificationChannel(channel);
+            notificationManager.createNotificationChannel(warmupChannel);
         }
     }
 
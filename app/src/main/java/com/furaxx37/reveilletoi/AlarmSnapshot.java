@@ -0,0 +1,271 @@
+package com.furaxx37.reveilletoi;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.UserManager;
+import android.util.AtomicFile;
+import android.util.Log;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Compact copy of the enabled alarms in device-protected storage, so that
+ * LOCKED_BOOT_COMPLETED can arm them before the alarms database can be opened.
+ */
+public final class AlarmSnapshot {
+
+    private static final String TAG = "AlarmSnapshot";
+    private static final String FILE_NAME = "alarm_snapshot.bin";
+
+    // Big-endian: magic, format version, alarm count, then per alarm the id, trigger time, hour and
+    // minute bytes, repeat days byte, ringtone length (-1 for none) and UTF-8 ringtone bytes, and
+    // finally a CRC32 of everything before it
+    private static final int MAGIC = 0x52545331; // "RTS1"
+    private static final int FORMAT_VERSION = 3;
+    // Before hour and minute were stored
+    private static final int FORMAT_VERSION_NO_TIME = 2;
+    private static final int HEADER_SIZE = 12;
+    private static final int CHECKSUM_SIZE = 8;
+
+    private static volatile AlarmSnapshot instance;
+
+    private final Context appContext;
+    // Replaced atomically, so a crash mid-write leaves the previous snapshot in place
+    private final AtomicFile file;
+
+    // Guarded by this
+    private boolean rewriteQueued;
+
+    /**
+     * Enabled alarms as read back from the snapshot, in parallel arrays
+     */
+    public static final class Entries {
+        public final long[] ids;
+        public final long[] triggerTimes;
+        public final int[] hours;
+        public final int[] minutes;
+        public final int[] repeatDays;
+        public final String[] ringtoneUris;
+
+        Entries(int count) {
+            ids = new long[count];
+            triggerTimes = new long[count];
+            hours = new int[count];
+            minutes = new int[count];
+            repeatDays = new int[count];
+            ringtoneUris = new String[count];
+        }
+
+        public int size() {
+            return ids.length;
+        }
+    }
+
+    public static AlarmSnapshot getInstance(Context context) {
+        if (instance == null) {
+            synchronized (AlarmSnapshot.class) {
+                if (instance == null) {
+                    instance = new AlarmSnapshot(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private AlarmSnapshot(Context appContext) {
+        this.appContext = appContext;
+        Context storageContext = appContext;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            storageContext = appContext.createDeviceProtectedStorageContext();
+        }
+        this.file = new AtomicFile(new File(storageContext.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * Whether credential-encrypted storage, and so the database, is available
+     */
+    static boolean isUserUnlocked(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return true;
+        }
+        UserManager userManager = context.getSystemService(UserManager.class);
+        return userManager == null || userManager.isUserUnlocked();
+    }
+
+    /**
+     * Queue a rewrite from the database on the I/O writer. Requests made while
+     * one is queued are folded into it.
+     */
+    public void requestRewrite() {
+        synchronized (this) {
+            if (rewriteQueued) {
+                return;
+            }
+            rewriteQueued = true;
+        }
+        IoExecutor.getInstance().write(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (AlarmSnapshot.this) {
+                    rewriteQueued = false;
+                }
+                rewrite();
+            }
+        });
+    }
+
+    /**
+     * Write the enabled alarms from the database. Must run off the main thread.
+     */
+    public void rewrite() {
+        TriggerTimeEngine engine = TriggerTimeEngine.forDefaultZone();
+        long now = engine.now();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int count = 0;
+        DatabaseHelper.AlarmStream stream = DatabaseHelper.getInstance(appContext).openAlarmStream(true);
+        try {
+            writeHeader(out);
+            Alarm alarm;
+            while ((alarm = stream.next()) != null) {
+                writeRecord(out, alarm, alarm.nextTriggerAfter(now, engine));
+                count++;
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Writing to memory doesn't fail
+            throw new IllegalStateException(e);
+        } finally {
+            stream.close();
+        }
+
+        byte[] data = seal(bytes.toByteArray(), count);
+        FileOutputStream fileOut = null;
+        try {
+            fileOut = file.startWrite();
+            fileOut.write(data);
+            file.finishWrite(fileOut);
+            Log.d(TAG, "Snapshot written with " + count + " alarms");
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing alarm snapshot", e);
+            if (fileOut != null) {
+                file.failWrite(fileOut);
+            }
+        }
+    }
+
+    /**
+     * Read the snapshot with a single memory-mapped read. Trigger times already in
+     * the past are moved to the alarm's next occurrence. Returns null if the file
+     * is missing or fails its checksum.
+     */
+    public Entries read(long now) {
+        FileInputStream in = null;
+        try {
+            in = file.openRead();
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return parse(buffer, now, TriggerTimeEngine.forDefaultZone());
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error reading alarm snapshot", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(0); // count, patched by seal
+    }
+
+    static void writeRecord(DataOutputStream out, Alarm alarm, long triggerAt) throws IOException {
+        out.writeLong(alarm.getId());
+        out.writeLong(triggerAt);
+        out.writeByte(alarm.getHour());
+        out.writeByte(alarm.getMinute());
+        out.writeByte(alarm.getRepeatDays());
+        String ringtoneUri = alarm.getRingtoneUri();
+        if (ringtoneUri == null || ringtoneUri.isEmpty()) {
+            out.writeShort(-1);
+        } else {
+            byte[] uri = ringtoneUri.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(uri.length);
+            out.write(uri);
+        }
+    }
+
+    // Patch the alarm count into the header and append the checksum
+    static byte[] seal(byte[] data, int count) {
+        ByteBuffer.wrap(data).putInt(8, count);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return ByteBuffer.allocate(data.length + CHECKSUM_SIZE).put(data).putLong(crc.getValue()).array();
+    }
+
+    static Entries parse(ByteBuffer buffer, long now, TriggerTimeEngine engine) {
+        int payloadSize = buffer.limit() - CHECKSUM_SIZE;
+        int version = payloadSize < HEADER_SIZE ? -1 : buffer.getInt(4);
+        if (payloadSize < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                || (version != FORMAT_VERSION && version != FORMAT_VERSION_NO_TIME)) {
+            Log.w(TAG, "Ignoring malformed alarm snapshot");
+            return null;
+        }
+
+        byte[] payload = new byte[payloadSize];
+        buffer.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payloadSize);
+        if (crc.getValue() != buffer.getLong(payloadSize)) {
+            Log.w(TAG, "Alarm snapshot checksum mismatch");
+            return null;
+        }
+
+        ByteBuffer data = ByteBuffer.wrap(payload);
+        data.position(8);
+        Entries entries = new Entries(data.getInt());
+        for (int i = 0; i < entries.size(); i++) {
+            entries.ids[i] = data.getLong();
+            long triggerTime = data.getLong();
+            if (version == FORMAT_VERSION_NO_TIME) {
+                // Best effort: right unless the zone or its offset changed since the write
+                int minuteOfDay = engine.minuteOfDay(triggerTime);
+                entries.hours[i] = minuteOfDay / 60;
+                entries.minutes[i] = minuteOfDay % 60;
+            } else {
+                entries.hours[i] = data.get();
+                entries.minutes[i] = data.get();
+            }
+            entries.repeatDays[i] = data.get();
+            if (triggerTime <= now) {
+                triggerTime = engine.nextTriggerAfter(entries.hours[i], entries.minutes[i],
+                    entries.repeatDays[i], now);
+            }
+            entries.triggerTimes[i] = triggerTime;
+            int uriLength = data.getShort();
+            if (uriLength >= 0) {
+                entries.ringtoneUris[i] = new String(payload, data.position(), uriLength, StandardCharsets.UTF_8);
+                data.position(data.position() + uriLength);
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,347 @@
+package com.furaxx37.reveilletoi;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Streams the alarm set to and from files, in a compact binary format or
+ * line-delimited JSON, with memory use independent of the file size.
+ */
+public final class AlarmTransfer {
+
+    private static final String TAG = "AlarmTransfer";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // "RTA1": Reveille-Toi Alarms, binary layout 1
+    private static final int BINARY_MAGIC = 0x52544131;
+    private static final byte RECORD = 1;
+    // RECORD followed by a repeat days byte; one-shot alarms keep the plain form
+    private static final byte REPEATING_RECORD = 2;
+    private static final byte END = 0;
+
+    private static final int IMPORT_BATCH_SIZE = 500;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String KEY_HOUR = "hour";
+    private static final String KEY_MINUTE = "minute";
+    private static final String KEY_LABEL = "label";
+    private static final String KEY_ENABLED = "enabled";
+    private static final String KEY_RINGTONE_URI = "ringtone_uri";
+    private static final String KEY_CREATED_AT = "created_at";
+    private static final String KEY_REPEAT_DAYS = "repeat_days";
+
+    /**
+     * Outcome of an export or import
+     */
+    public static final class Stats {
+        public final int alarms;
+        public final long elapsedMs;
+
+        Stats(int alarms, long elapsedMs) {
+            this.alarms = alarms;
+            this.elapsedMs = elapsedMs;
+        }
+
+        public long alarmsPerSecond() {
+            return elapsedMs == 0 ? alarms * 1000L : alarms * 1000L / elapsedMs;
+        }
+
+        @Override
+        public String toString() {
+            return alarms + " alarms in " + elapsedMs + " ms (" + alarmsPerSecond() + "/s)";
+        }
+    }
+
+    interface RecordReader {
+        /**
+         * Next alarm in the file, or null at the end
+         */
+        Alarm next() throws IOException;
+
+        boolean isBinary();
+    }
+
+    interface RecordWriter {
+        void write(Alarm alarm) throws IOException;
+
+        /**
+         * Write any trailer and flush, leaving the stream open
+         */
+        void finish() throws IOException;
+    }
+
+    private AlarmTransfer() {
+    }
+
+    /**
+     * Write every alarm in the compact binary format. The stream is not closed.
+     */
+    public static Stats exportBinary(Context context, OutputStream out) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        int count = exportAll(context, binaryWriter(out));
+        Stats stats = new Stats(count, SystemClock.elapsedRealtime() - start);
+        Log.d(TAG, "Binary export: " + stats);
+        return stats;
+    }
+
+    /**
+     * Write every alarm as one JSON object per line. The stream is not closed.
+     */
+    public static Stats exportJsonLines(Context context, OutputStream out) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        int count = exportAll(context, jsonLinesWriter(out));
+        Stats stats = new Stats(count, SystemClock.elapsedRealtime() - start);
+        Log.d(TAG, "JSON lines export: " + stats);
+        return stats;
+    }
+
+    /**
+     * Import alarms from either format, detected from the first bytes. New alarms are
+     * added alongside the existing ones in batched transactions, then rescheduled in
+     * one pass. Must run on the I/O writer thread.
+     * The stream is not closed.
+     */
+    public static Stats importAlarms(Context context, InputStream in) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        RecordReader reader = openReader(in);
+        DatabaseHelper databaseHelper = DatabaseHelper.getInstance(context);
+        List<Alarm> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+        Set<String> ringtoneUris = new HashSet<>();
+        int count = 0;
+        
+        Alarm alarm;
+        while ((alarm = reader.next()) != null) {
+            batch.add(alarm);
+            if (alarm.isEnabled() && alarm.getRingtoneUri() != null) {
+                ringtoneUris.add(alarm.getRingtoneUri());
+            }
+            if (batch.size() == IMPORT_BATCH_SIZE) {
+                count += insertBatch(databaseHelper, batch);
+            }
+        }
+        count += insertBatch(databaseHelper, batch);
+        
+        // One reload for listeners and one scheduling pass, however many alarms arrived
+        AlarmRepository.getInstance(context).invalidate();
+        AlarmScheduler.rescheduleAll(context);
+        RingtoneCache.getInstance(context).prepareAllAsync(ringtoneUris);
+        
+        Stats stats = new Stats(count, SystemClock.elapsedRealtime() - start);
+        Log.d(TAG, (reader.isBinary() ? "Binary" : "JSON lines") + " import: " + stats);
+        return stats;
+    }
+
+    private static int exportAll(Context context, RecordWriter writer) throws IOException {
+        int count = 0;
+        DatabaseHelper.AlarmStream stream = DatabaseHelper.getInstance(context).openAlarmStream(false);
+        try {
+            Alarm alarm;
+            while ((alarm = stream.next()) != null) {
+                writer.write(alarm);
+                count++;
+            }
+            writer.finish();
+        } finally {
+            stream.close();
+        }
+        return count;
+    }
+
+    private static int insertBatch(DatabaseHelper databaseHelper, List<Alarm> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        int inserted = 0;
+        for (long id : databaseHelper.insertAlarms(batch)) {
+            if (id != -1) {
+                inserted++;
+            }
+        }
+        batch.clear();
+        return inserted;
+    }
+
+    /**
+     * Writer for the compact binary format, header included
+     */
+    static RecordWriter binaryWriter(OutputStream out) throws IOException {
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        data.writeInt(BINARY_MAGIC);
+        return new RecordWriter() {
+            @Override
+            public void write(Alarm alarm) throws IOException {
+                data.writeByte(alarm.isRepeating() ? REPEATING_RECORD : RECORD);
+                data.writeByte(alarm.getHour());
+                data.writeByte(alarm.getMinute());
+                data.writeBoolean(alarm.isEnabled());
+                data.writeLong(alarm.getCreatedAt());
+                data.writeUTF(nullToEmpty(alarm.getLabel()));
+                data.writeUTF(nullToEmpty(alarm.getRingtoneUri()));
+                if (alarm.isRepeating()) {
+                    data.writeByte(alarm.getRepeatDays());
+                }
+            }
+
+            @Override
+            public void finish() throws IOException {
+                data.writeByte(END);
+                data.flush();
+            }
+        };
+    }
+
+    /**
+     * Writer for line-delimited JSON, one alarm per line
+     */
+    static RecordWriter jsonLinesWriter(OutputStream out) {
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8), BUFFER_SIZE);
+        return new RecordWriter() {
+            @Override
+            public void write(Alarm alarm) throws IOException {
+                try {
+                    JSONObject json = new JSONObject();
+                    json.put(KEY_HOUR, alarm.getHour());
+                    json.put(KEY_MINUTE, alarm.getMinute());
+                    json.put(KEY_LABEL, nullToEmpty(alarm.getLabel()));
+                    json.put(KEY_ENABLED, alarm.isEnabled());
+                    json.put(KEY_RINGTONE_URI, nullToEmpty(alarm.getRingtoneUri()));
+                    json.put(KEY_CREATED_AT, alarm.getCreatedAt());
+                    json.put(KEY_REPEAT_DAYS, alarm.getRepeatDays());
+                    writer.write(json.toString());
+                    writer.write('\n');
+                } catch (JSONException e) {
+                    throw new IOException("Could not encode alarm", e);
+                }
+            }
+
+            @Override
+            public void finish() throws IOException {
+                writer.flush();
+            }
+        };
+    }
+
+    /**
+     * Reader for either format, detected from the first bytes
+     */
+    static RecordReader openReader(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+        
+        buffered.mark(4);
+        DataInputStream data = new DataInputStream(buffered);
+        boolean binary;
+        try {
+            binary = data.readInt() == BINARY_MAGIC;
+        } catch (IOException e) {
+            // Shorter than a header: an empty or near-empty JSON lines file
+            binary = false;
+        }
+        if (!binary) {
+            buffered.reset();
+        }
+        return binary ? binaryReader(data) : jsonLinesReader(buffered);
+    }
+
+    private static RecordReader binaryReader(final DataInputStream data) {
+        return new RecordReader() {
+            @Override
+            public Alarm next() throws IOException {
+                byte marker = data.readByte();
+                if (marker == END) {
+                    return null;
+                }
+                if (marker != RECORD && marker != REPEATING_RECORD) {
+                    throw new IOException("Corrupt alarm file: unexpected marker " + marker);
+                }
+                
+                Alarm alarm = new Alarm();
+                alarm.setHour(data.readUnsignedByte());
+                alarm.setMinute(data.readUnsignedByte());
+                alarm.setEnabled(data.readBoolean());
+                alarm.setCreatedAt(data.readLong());
+                alarm.setLabel(data.readUTF());
+                alarm.setRingtoneUri(data.readUTF());
+                if (marker == REPEATING_RECORD) {
+                    alarm.setRepeatDays(data.readUnsignedByte());
+                }
+                return validate(alarm);
+            }
+
+            @Override
+            public boolean isBinary() {
+                return true;
+            }
+        };
+    }
+
+    private static RecordReader jsonLinesReader(InputStream in) {
+        final BufferedReader lines = new BufferedReader(new InputStreamReader(in, UTF_8));
+        return new RecordReader() {
+            @Override
+            public Alarm next() throws IOException {
+                String line;
+                do {
+                    line = lines.readLine();
+                    if (line == null) {
+                        return null;
+                    }
+                    line = line.trim();
+                } while (line.isEmpty());
+                
+                try {
+                    JSONObject json = new JSONObject(line);
+                    Alarm alarm = new Alarm();
+                    alarm.setHour(json.getInt(KEY_HOUR));
+                    alarm.setMinute(json.getInt(KEY_MINUTE));
+                    alarm.setLabel(json.optString(KEY_LABEL, ""));
+                    alarm.setEnabled(json.optBoolean(KEY_ENABLED, true));
+                    alarm.setRingtoneUri(json.optString(KEY_RINGTONE_URI, ""));
+                    alarm.setCreatedAt(json.optLong(KEY_CREATED_AT, alarm.getCreatedAt()));
+                    alarm.setRepeatDays(json.optInt(KEY_REPEAT_DAYS, Recurrence.ONE_SHOT));
+                    return validate(alarm);
+                } catch (JSONException e) {
+                    throw new IOException("Corrupt alarm file: " + e.getMessage(), e);
+                }
+            }
+
+            @Override
+            public boolean isBinary() {
+                return false;
+            }
+        };
+    }
+
+    private static Alarm validate(Alarm alarm) throws IOException {
+        if (alarm.getHour() < 0 || alarm.getHour() > 23 || alarm.getMinute() < 0 || alarm.getMinute() > 59) {
+            throw new IOException("Corrupt alarm file: invalid time " + alarm.getHour() + ":" + alarm.getMinute());
+        }
+        if ((alarm.getRepeatDays() & ~Recurrence.EVERY_DAY) != 0) {
+            throw new IOException("Corrupt alarm file: invalid repeat days " + alarm.getRepeatDays());
+        }
+        return alarm;
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+}
@@ -3,21 +3,75 @@ package com.furaxx37.reveilletoi;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import java.util.List;
+import android.os.SystemClock;
+import android.util.Log;
 
+/**
+ * Re-arms alarms after a reboot or an app update.
+ */
 public class BootReceiver extends BroadcastReceiver {
+    
+    private static final String TAG = "BootReceiver";
+
+    // Well inside the ~10 s a receiver gets after goAsync()
+    private static final long RESCHEDULE_BUDGET_MS = 3000;
+    
     @Override
     public void onReceive(Context context, Intent intent) {
-        if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
-            // Reschedule all active alarms after device reboot
-            DatabaseHelper dbHelper = new DatabaseHelper(context);
-            List<Alarm> alarms = dbHelper.getAllAlarms();
-            
-            for (Alarm alarm : alarms) {
-                if (alarm.isEnabled()) {
-                    AlarmScheduler.scheduleAlarm(context, alarm);
-                }
+        String action = intent.getAction();
+        if (Intent.ACTION_LOCKED_BOOT_COMPLETED.equals(action)) {
+            // The database can't be opened before unlock; arm alarms from the snapshot
+            long start = System.nanoTime();
+            AlarmSnapshot.Entries entries = AlarmSnapshot.getInstance(context).read(System.currentTimeMillis());
+            if (entries != null) {
+                AlarmScheduler.scheduleSnapshot(context, entries);
+                Log.d(TAG, "Armed " + entries.size() + " alarms from snapshot in " +
+                        (System.nanoTime() - start) / 1000 + " us, " +
+                        SystemClock.elapsedRealtime() + " ms after boot");
             }
+        } else if (Intent.ACTION_BOOT_COMPLETED.equals(action)
+                || Intent.ACTION_MY_PACKAGE_REPLACED.equals(action)) {
+            // Reschedule all active alarms from the database, off the main thread
+            final boolean upgraded = Intent.ACTION_MY_PACKAGE_REPLACED.equals(action);
+            final Context appContext = context.getApplicationContext();
+            final PendingResult pendingResult = goAsync();
+            final long received = SystemClock.elapsedRealtime();
+            IoExecutor.getInstance().write(() -> {
+                try {
+                    reschedule(appContext, upgraded, received);
+                } finally {
+                    pendingResult.finish();
+                }
+            });
+        }
+    }
+
+    // Arms the earliest alarm first, then rebuilds the rest of the queue and the snapshot while the
+    // budget allows and hands anything left to RescheduleJobService. Boot-to-armed latency is kept
+    // in FiringHistory.
+    private static void reschedule(Context context, boolean upgraded, long received) {
+        long deadline = received + RESCHEDULE_BUDGET_MS;
+        if (upgraded) {
+            AlarmScheduler.cancelLegacyAlarms(context);
+        }
+
+        AlarmScheduler.armEarliest(context);
+        long armed = SystemClock.elapsedRealtime();
+        Log.d(TAG, "Armed earliest alarm " + (armed - received) + " ms after broadcast, " +
+                armed + " ms after boot");
+        if (!upgraded) {
+            FiringHistory.getInstance(context).recordBoot(System.currentTimeMillis() - armed, received, armed);
+        }
+
+        if (AlarmScheduler.finishLoading(context, deadline) && SystemClock.elapsedRealtime() < deadline) {
+            AlarmSnapshot.getInstance(context).rewrite();
+            Log.d(TAG, "Rescheduled all alarms in " + (SystemClock.elapsedRealtime() - received) + " ms");
+        } else {
+            Log.d(TAG, "Reschedule budget spent, handing the rest to a job");
+            RescheduleJobService.schedule(context);
         }
+        // Decoded on their own thread; the query is the only cost here
+        RingtoneCache.getInstance(context).prepareAllAsync(
+            DatabaseHelper.getInstance(context).getEnabledRingtoneUris());
     }
 }
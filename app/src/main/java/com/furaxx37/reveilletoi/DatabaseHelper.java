@@ -1,22 +1,34 @@
 package com.furaxx37.reveilletoi;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.util.Log;
+import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
+/**
+ * Process-wide access point to the alarms database, which runs in WAL mode so
+ * readers proceed alongside the single writer.
+ */
 public class DatabaseHelper extends SQLiteOpenHelper {
     
     private static final String TAG = "DatabaseHelper";
     private static final String DATABASE_NAME = "reveille_toi.db";
-    private static final int DATABASE_VERSION = 1;
+    static final int DATABASE_VERSION = 10;
     
-    // Table name
+    // Table names
     private static final String TABLE_ALARMS = "alarms";
+    private static final String TABLE_ALARMS_FTS = "alarms_fts";
     
     // Column names
     private static final String COLUMN_ID = "id";
@@ -26,6 +38,12 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String COLUMN_ENABLED = "enabled";
     private static final String COLUMN_RINGTONE_URI = "ringtone_uri";
     private static final String COLUMN_CREATED_AT = "created_at";
+    private static final String COLUMN_NEXT_TRIGGER_AT = "next_trigger_at";
+    private static final String COLUMN_REPEAT_DAYS = "repeat_days";
+
+    // Index names
+    private static final String INDEX_NEXT_TRIGGER = "idx_alarms_enabled_next_trigger";
+    private static final String INDEX_TIME = "idx_alarms_time";
     
     // Create table SQL
     private static final String CREATE_TABLE_ALARMS = 
@@ -36,17 +54,139 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         COLUMN_LABEL + " TEXT, " +
         COLUMN_ENABLED + " INTEGER DEFAULT 1, " +
         COLUMN_RINGTONE_URI + " TEXT, " +
-        COLUMN_CREATED_AT + " INTEGER DEFAULT (strftime('%s','now')) " +
+        COLUMN_CREATED_AT + " INTEGER DEFAULT (strftime('%s','now')), " +
+        COLUMN_NEXT_TRIGGER_AT + " INTEGER, " +
+        COLUMN_REPEAT_DAYS + " INTEGER NOT NULL DEFAULT 0" +
         ")";
 
-    public DatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    // Lets the next due alarms be read from the head of the index
+    private static final String CREATE_INDEX_NEXT_TRIGGER =
+        "CREATE INDEX IF NOT EXISTS " + INDEX_NEXT_TRIGGER + " ON " + TABLE_ALARMS +
+        " (" + COLUMN_ENABLED + ", " + COLUMN_NEXT_TRIGGER_AT + ")";
+
+    // Serves the list order and its keyset pagination. The id tie-breaker
+    // makes the order total, which keyset pagination relies on
+    private static final String CREATE_INDEX_TIME =
+        "CREATE INDEX IF NOT EXISTS " + INDEX_TIME + " ON " + TABLE_ALARMS +
+        " (" + COLUMN_HOUR + ", " + COLUMN_MINUTE + ", " + COLUMN_ID + ")";
+
+    // Full-text index over labels, kept in sync by triggers; docid is the alarm id
+    private static final String CREATE_TABLE_ALARMS_FTS =
+        "CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE_ALARMS_FTS + " USING fts4(" + COLUMN_LABEL + ")";
+
+    private static final String[] CREATE_TRIGGERS_ALARMS_FTS = {
+        "CREATE TRIGGER IF NOT EXISTS alarms_fts_insert AFTER INSERT ON " + TABLE_ALARMS + " BEGIN " +
+            "INSERT INTO " + TABLE_ALARMS_FTS + " (docid, " + COLUMN_LABEL + ") " +
+            "VALUES (new." + COLUMN_ID + ", new." + COLUMN_LABEL + "); END",
+        "CREATE TRIGGER IF NOT EXISTS alarms_fts_update AFTER UPDATE OF " + COLUMN_LABEL +
+            " ON " + TABLE_ALARMS + " BEGIN " +
+            "DELETE FROM " + TABLE_ALARMS_FTS + " WHERE docid = old." + COLUMN_ID + "; " +
+            "INSERT INTO " + TABLE_ALARMS_FTS + " (docid, " + COLUMN_LABEL + ") " +
+            "VALUES (new." + COLUMN_ID + ", new." + COLUMN_LABEL + "); END",
+        "CREATE TRIGGER IF NOT EXISTS alarms_fts_delete AFTER DELETE ON " + TABLE_ALARMS + " BEGIN " +
+            "DELETE FROM " + TABLE_ALARMS_FTS + " WHERE docid = old." + COLUMN_ID + "; END"
+    };
+
+    private static final String ORDER_BY_TIME =
+        COLUMN_HOUR + " ASC, " + COLUMN_MINUTE + " ASC, " + COLUMN_ID + " ASC";
+
+    // Rows strictly after a given (hour, minute, id) in ORDER_BY_TIME
+    private static final String SELECTION_AFTER_KEY =
+        COLUMN_HOUR + " > ? OR (" + COLUMN_HOUR + " = ? AND (" + COLUMN_MINUTE + " > ? OR (" +
+        COLUMN_MINUTE + " = ? AND " + COLUMN_ID + " > ?)))";
+
+    // Every column, for the editor and anything that fires the alarm
+    private static final String[] FULL_PROJECTION = {
+        COLUMN_ID, COLUMN_HOUR, COLUMN_MINUTE, COLUMN_LABEL,
+        COLUMN_ENABLED, COLUMN_RINGTONE_URI, COLUMN_CREATED_AT, COLUMN_NEXT_TRIGGER_AT,
+        COLUMN_REPEAT_DAYS
+    };
+
+    // Just enough to schedule and sort alarms
+    private static final String[] SUMMARY_PROJECTION = {
+        COLUMN_ID, COLUMN_HOUR, COLUMN_MINUTE, COLUMN_ENABLED, COLUMN_NEXT_TRIGGER_AT,
+        COLUMN_REPEAT_DAYS
+    };
+
+    private static final String SQL_INSERT_ALARM =
+        "INSERT INTO " + TABLE_ALARMS + " (" +
+        COLUMN_HOUR + ", " + COLUMN_MINUTE + ", " + COLUMN_LABEL + ", " +
+        COLUMN_ENABLED + ", " + COLUMN_RINGTONE_URI + ", " + COLUMN_CREATED_AT + ", " +
+        COLUMN_NEXT_TRIGGER_AT + ", " + COLUMN_REPEAT_DAYS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String SQL_UPDATE_ALARM =
+        "UPDATE " + TABLE_ALARMS + " SET " +
+        COLUMN_HOUR + " = ?, " + COLUMN_MINUTE + " = ?, " + COLUMN_LABEL + " = ?, " +
+        COLUMN_ENABLED + " = ?, " + COLUMN_RINGTONE_URI + " = ?, " +
+        COLUMN_NEXT_TRIGGER_AT + " = ?, " + COLUMN_REPEAT_DAYS + " = ? WHERE " + COLUMN_ID + " = ?";
+
+    private static final String SQL_TOGGLE_ALARM =
+        "UPDATE " + TABLE_ALARMS + " SET " + COLUMN_ENABLED + " = ?, " + COLUMN_NEXT_TRIGGER_AT + " = ? " +
+        "WHERE " + COLUMN_ID + " = ?";
+
+    // What a toggle needs to recompute the trigger, packed in one long: repeat days above the minute of day
+    private static final String SQL_SCHEDULE_OF_ALARM =
+        "SELECT (" + COLUMN_REPEAT_DAYS + " << 11) | (" + COLUMN_HOUR + " * 60 + " + COLUMN_MINUTE + ") " +
+        "FROM " + TABLE_ALARMS + " WHERE " + COLUMN_ID + " = ?";
+    private static final int SCHEDULE_MINUTE_BITS = 11;
+
+    private static final String SQL_DELETE_ALARM =
+        "DELETE FROM " + TABLE_ALARMS + " WHERE " + COLUMN_ID + " = ?";
+
+    private static final String SQL_UPDATE_NEXT_TRIGGER =
+        "UPDATE " + TABLE_ALARMS + " SET " + COLUMN_NEXT_TRIGGER_AT + " = ? WHERE " + COLUMN_ID + " = ?";
+
+
+    // SQLite before 3.32 binds at most 999 variables per statement
+    private static final int MAX_BOUND_IDS = 500;
+
+    private static volatile DatabaseHelper instance;
+
+    // Compiled write statements are shared, so binding and executing them is serialized
+    private final Object statementLock = new Object();
+    private StatementCache statementCache;
+
+    /**
+     * Get the shared helper, creating it on first use. Its connection stays open
+     * for the lifetime of the process, so callers must never close it.
+     */
+    public static DatabaseHelper getInstance(Context context) {
+        if (instance == null) {
+            synchronized (DatabaseHelper.class) {
+                if (instance == null) {
+                    instance = new DatabaseHelper(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private DatabaseHelper(Context context) {
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Helper on a database file of its own, so tests never touch the user's alarms
+     */
+    DatabaseHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        // Readers no longer block behind the writer, and commits avoid rewriting the main file
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         try {
             db.execSQL(CREATE_TABLE_ALARMS);
+            db.execSQL(CREATE_INDEX_NEXT_TRIGGER);
+            db.execSQL(CREATE_INDEX_TIME);
+            db.execSQL(CREATE_TABLE_ALARMS_FTS);
+            for (String trigger : CREATE_TRIGGERS_ALARMS_FTS) {
+                db.execSQL(trigger);
+            }
+            FiringHistory.createTables(db);
+            AlarmProfiles.createTables(db);
+            DatabaseMigrations.ensureBookkeeping(db);
             Log.d(TAG, "Database table created successfully");
         } catch (Exception e) {
             Log.e(TAG, "Error creating database table", e);
@@ -57,41 +197,57 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.d(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
         
-        // For now, just drop and recreate the table
-        // In production, you'd want to handle migrations more carefully
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_ALARMS);
-        onCreate(db);
+        // Schema changes only; per-row work is deferred to the backfill started in onOpen
+        DatabaseMigrations.upgrade(db, oldVersion, newVersion);
+    }
+
+    @Override
+    public void onOpen(final SQLiteDatabase db) {
+        super.onOpen(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+        
+        DatabaseMigrations.ensureBookkeeping(db);
+        if (DatabaseMigrations.hasPendingBackfills(db)) {
+            scheduleBackfillBatch(db);
+        }
+    }
+
+    /**
+     * Queue one backfill batch on the writer thread. Each batch re-queues the next,
+     * so ordinary writes submitted meanwhile run between batches.
+     */
+    private static void scheduleBackfillBatch(final SQLiteDatabase db) {
+        IoExecutor.getInstance().write(new Runnable() {
+            @Override
+            public void run() {
+                if (DatabaseMigrations.runBackfillBatch(db)) {
+                    scheduleBackfillBatch(db);
+                }
+            }
+        });
     }
 
     /**
      * Insert a new alarm into the database
      */
     public long insertAlarm(Alarm alarm) {
-        SQLiteDatabase db = this.getWritableDatabase();
         long id = -1;
         
-        try {
-            ContentValues values = new ContentValues();
-            values.put(COLUMN_HOUR, alarm.getHour());
-            values.put(COLUMN_MINUTE, alarm.getMinute());
-            values.put(COLUMN_LABEL, alarm.getLabel());
-            values.put(COLUMN_ENABLED, alarm.isEnabled() ? 1 : 0);
-            values.put(COLUMN_RINGTONE_URI, alarm.getRingtoneUri());
-            values.put(COLUMN_CREATED_AT, System.currentTimeMillis() / 1000);
-            
-            id = db.insert(TABLE_ALARMS, null, values);
-            
-            if (id != -1) {
-                alarm.setId(id);
-                Log.d(TAG, "Alarm inserted with ID: " + id);
-            } else {
-                Log.e(TAG, "Failed to insert alarm");
+        synchronized (statementLock) {
+            try {
+                id = insertRow(statements(), alarm);
+                
+                if (id != -1) {
+                    Log.d(TAG, "Alarm inserted with ID: " + id);
+                } else {
+                    Log.e(TAG, "Failed to insert alarm");
+                }
+                
+            } catch (Exception e) {
+                Log.e(TAG, "Error inserting alarm", e);
             }
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error inserting alarm", e);
-        } finally {
-            db.close();
         }
         
         return id;
@@ -101,32 +257,44 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * Update an existing alarm in the database
      */
     public boolean updateAlarm(Alarm alarm) {
-        SQLiteDatabase db = this.getWritableDatabase();
         boolean success = false;
         
-        try {
-            ContentValues values = new ContentValues();
-            values.put(COLUMN_HOUR, alarm.getHour());
-            values.put(COLUMN_MINUTE, alarm.getMinute());
-            values.put(COLUMN_LABEL, alarm.getLabel());
-            values.put(COLUMN_ENABLED, alarm.isEnabled() ? 1 : 0);
-            values.put(COLUMN_RINGTONE_URI, alarm.getRingtoneUri());
-            
-            int rowsAffected = db.update(TABLE_ALARMS, values, 
-                COLUMN_ID + " = ?", new String[]{String.valueOf(alarm.getId())});
-            
-            success = rowsAffected > 0;
-            
-            if (success) {
-                Log.d(TAG, "Alarm updated successfully: " + alarm.getId());
-            } else {
-                Log.w(TAG, "No alarm found with ID: " + alarm.getId());
+        synchronized (statementLock) {
+            try {
+                success = updateRow(statements(), alarm);
+                
+                if (success) {
+                    Log.d(TAG, "Alarm updated successfully: " + alarm.getId());
+                } else {
+                    Log.w(TAG, "No alarm found with ID: " + alarm.getId());
+                }
+                
+            } catch (Exception e) {
+                Log.e(TAG, "Error updating alarm", e);
+            }
+        }
+        
+        return success;
+    }
+
+    /**
+     * Enable or disable an alarm without rewriting the rest of its row. Its next
+     * trigger is recomputed, so the trigger index stays current.
+     */
+    public boolean setAlarmEnabled(long alarmId, boolean enabled) {
+        boolean success = false;
+        
+        synchronized (statementLock) {
+            try {
+                success = toggleRow(statements(), alarmId, enabled);
+                
+                if (!success) {
+                    Log.w(TAG, "No alarm found with ID: " + alarmId);
+                }
+                
+            } catch (Exception e) {
+                Log.e(TAG, "Error toggling alarm", e);
             }
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error updating alarm", e);
-        } finally {
-            db.close();
         }
         
         return success;
@@ -136,85 +304,229 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * Delete an alarm from the database
      */
     public boolean deleteAlarm(long alarmId) {
-        SQLiteDatabase db = this.getWritableDatabase();
         boolean success = false;
         
-        try {
-            int rowsAffected = db.delete(TABLE_ALARMS, 
-                COLUMN_ID + " = ?", new String[]{String.valueOf(alarmId)});
-            
-            success = rowsAffected > 0;
-            
-            if (success) {
-                Log.d(TAG, "Alarm deleted successfully: " + alarmId);
-            } else {
-                Log.w(TAG, "No alarm found with ID: " + alarmId);
+        synchronized (statementLock) {
+            try {
+                success = deleteRow(statements(), alarmId);
+                
+                if (success) {
+                    Log.d(TAG, "Alarm deleted successfully: " + alarmId);
+                } else {
+                    Log.w(TAG, "No alarm found with ID: " + alarmId);
+                }
+                
+            } catch (Exception e) {
+                Log.e(TAG, "Error deleting alarm", e);
             }
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error deleting alarm", e);
-        } finally {
-            db.close();
         }
         
         return success;
     }
 
     /**
-     * Get a specific alarm by ID
+     * Insert several alarms in a single transaction.
+     * Returns the new row id for each alarm, in list order, or -1 where the insert failed.
      */
-    public Alarm getAlarm(long alarmId) {
-        SQLiteDatabase db = this.getReadableDatabase();
-        Alarm alarm = null;
+    public long[] insertAlarms(List<Alarm> alarms) {
+        long[] ids = new long[alarms.size()];
+        Arrays.fill(ids, -1);
         
-        try {
-            Cursor cursor = db.query(TABLE_ALARMS, null, 
-                COLUMN_ID + " = ?", new String[]{String.valueOf(alarmId)},
-                null, null, null);
-            
-            if (cursor != null && cursor.moveToFirst()) {
-                alarm = createAlarmFromCursor(cursor);
-                cursor.close();
+        synchronized (statementLock) {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                StatementCache cache = statements();
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = insertRow(cache, alarms.get(i));
+                }
+                db.setTransactionSuccessful();
+            } catch (Exception e) {
+                Log.e(TAG, "Error inserting alarms", e);
+                // The transaction is rolled back, so none of the assigned ids exist
+                for (int i = 0; i < ids.length; i++) {
+                    if (ids[i] != -1) {
+                        alarms.get(i).setId(0);
+                    }
+                }
+                Arrays.fill(ids, -1);
+            } finally {
+                db.endTransaction();
             }
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error getting alarm", e);
-        } finally {
-            db.close();
         }
         
-        return alarm;
+        Log.d(TAG, "Inserted " + ids.length + " alarms in one transaction");
+        return ids;
     }
 
     /**
-     * Get all alarms from the database
+     * Enable or disable several alarms in a single transaction.
+     * Returns, in iteration order, whether each alarm was found and updated.
      */
-    public List<Alarm> getAllAlarms() {
-        List<Alarm> alarms = new ArrayList<>();
-        SQLiteDatabase db = this.getReadableDatabase();
+    public boolean[] setEnabled(Collection<Long> alarmIds, boolean enabled) {
+        boolean[] results = new boolean[alarmIds.size()];
         
-        try {
-            Cursor cursor = db.query(TABLE_ALARMS, null, null, null, 
-                null, null, COLUMN_HOUR + " ASC, " + COLUMN_MINUTE + " ASC");
-            
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    Alarm alarm = createAlarmFromCursor(cursor);
-                    if (alarm != null) {
-                        alarms.add(alarm);
-                    }
+        synchronized (statementLock) {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                StatementCache cache = statements();
+                int i = 0;
+                for (Long alarmId : alarmIds) {
+                    results[i++] = toggleRow(cache, alarmId, enabled);
                 }
-                cursor.close();
+                db.setTransactionSuccessful();
+            } catch (Exception e) {
+                Log.e(TAG, "Error toggling alarms", e);
+                Arrays.fill(results, false);
+            } finally {
+                db.endTransaction();
             }
-            
-            Log.d(TAG, "Retrieved " + alarms.size() + " alarms from database");
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error getting all alarms", e);
-        } finally {
-            db.close();
         }
         
+        return results;
+    }
+
+    /**
+     * Delete several alarms in a single transaction.
+     * Returns, in iteration order, whether each alarm was found and deleted.
+     */
+    public boolean[] deleteAlarms(Collection<Long> alarmIds) {
+        boolean[] results = new boolean[alarmIds.size()];
+        
+        synchronized (statementLock) {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                StatementCache cache = statements();
+                int i = 0;
+                for (Long alarmId : alarmIds) {
+                    results[i++] = deleteRow(cache, alarmId);
+                }
+                db.setTransactionSuccessful();
+            } catch (Exception e) {
+                Log.e(TAG, "Error deleting alarms", e);
+                Arrays.fill(results, false);
+            } finally {
+                db.endTransaction();
+            }
+        }
+        
+        return results;
+    }
+
+    // Row-level writes shared by the single and batch APIs. Callers hold statementLock.
+
+    private static long insertRow(StatementCache cache, Alarm alarm) {
+        SQLiteStatement statement = cache.insert;
+        statement.clearBindings();
+        statement.bindLong(1, alarm.getHour());
+        statement.bindLong(2, alarm.getMinute());
+        bindStringOrNull(statement, 3, alarm.getLabel());
+        statement.bindLong(4, alarm.isEnabled() ? 1 : 0);
+        bindStringOrNull(statement, 5, alarm.getRingtoneUri());
+        statement.bindLong(6, System.currentTimeMillis() / 1000);
+        statement.bindLong(7, refreshNextTrigger(alarm));
+        statement.bindLong(8, alarm.getRepeatDays());
+        
+        long id = statement.executeInsert();
+        if (id != -1) {
+            alarm.setId(id);
+        }
+        return id;
+    }
+
+    private static boolean updateRow(StatementCache cache, Alarm alarm) {
+        SQLiteStatement statement = cache.update;
+        statement.clearBindings();
+        statement.bindLong(1, alarm.getHour());
+        statement.bindLong(2, alarm.getMinute());
+        bindStringOrNull(statement, 3, alarm.getLabel());
+        statement.bindLong(4, alarm.isEnabled() ? 1 : 0);
+        bindStringOrNull(statement, 5, alarm.getRingtoneUri());
+        statement.bindLong(6, refreshNextTrigger(alarm));
+        statement.bindLong(7, alarm.getRepeatDays());
+        statement.bindLong(8, alarm.getId());
+        return statement.executeUpdateDelete() > 0;
+    }
+
+    private static boolean toggleRow(StatementCache cache, long alarmId, boolean enabled) {
+        SQLiteStatement schedule = cache.schedule;
+        schedule.bindLong(1, alarmId);
+        long packed;
+        try {
+            packed = schedule.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return false;
+        }
+        int minuteOfDay = (int) (packed & ((1 << SCHEDULE_MINUTE_BITS) - 1));
+        int repeatDays = (int) (packed >>> SCHEDULE_MINUTE_BITS);
+        long nextTriggerAt = TriggerTimeEngine.forDefaultZone().nextTriggerAfter(
+            minuteOfDay / 60, minuteOfDay % 60, repeatDays, System.currentTimeMillis());
+
+        SQLiteStatement statement = cache.toggle;
+        statement.bindLong(1, enabled ? 1 : 0);
+        statement.bindLong(2, nextTriggerAt);
+        statement.bindLong(3, alarmId);
+        return statement.executeUpdateDelete() > 0;
+    }
+
+    private static boolean deleteRow(StatementCache cache, long alarmId) {
+        SQLiteStatement statement = cache.delete;
+        statement.bindLong(1, alarmId);
+        return statement.executeUpdateDelete() > 0;
+    }
+
+    private static void updateNextTriggerRow(StatementCache cache, long alarmId, long nextTriggerAt) {
+        SQLiteStatement statement = cache.updateNextTrigger;
+        statement.bindLong(1, nextTriggerAt);
+        statement.bindLong(2, alarmId);
+        statement.executeUpdateDelete();
+    }
+
+    /**
+     * Recompute the alarm's next trigger from the current time and store it on the alarm
+     */
+    private static long refreshNextTrigger(Alarm alarm) {
+        long nextTriggerAt = alarm.nextTriggerAfter(System.currentTimeMillis());
+        alarm.setNextTriggerAt(nextTriggerAt);
+        return nextTriggerAt;
+    }
+
+    /**
+     * Get a specific alarm by ID, with every column loaded for editing
+     */
+    public Alarm getAlarm(long alarmId) {
+        List<Alarm> alarms = queryAlarms(FULL_PROJECTION,
+            COLUMN_ID + " = ?", new String[]{String.valueOf(alarmId)}, null);
+        return alarms.isEmpty() ? null : alarms.get(0);
+    }
+
+    /**
+     * Get several alarms by id, with every column loaded, in no particular order.
+     * Ids with no row are skipped.
+     */
+    public List<Alarm> getAlarms(long[] alarmIds) {
+        List<Alarm> alarms = new ArrayList<>(alarmIds.length);
+        for (int from = 0; from < alarmIds.length; from += MAX_BOUND_IDS) {
+            int to = Math.min(from + MAX_BOUND_IDS, alarmIds.length);
+            StringBuilder selection = new StringBuilder(COLUMN_ID).append(" IN (");
+            String[] selectionArgs = new String[to - from];
+            for (int i = from; i < to; i++) {
+                selection.append(i == from ? "?" : ", ?");
+                selectionArgs[i - from] = String.valueOf(alarmIds[i]);
+            }
+            alarms.addAll(queryAlarms(FULL_PROJECTION, selection.append(')').toString(), selectionArgs, null));
+        }
+        return alarms;
+    }
+
+    /**
+     * Get all alarms from the database
+     */
+    public List<Alarm> getAllAlarms() {
+        List<Alarm> alarms = queryAlarms(FULL_PROJECTION, null, null, ORDER_BY_TIME);
+        Log.d(TAG, "Retrieved " + alarms.size() + " alarms from database");
         return alarms;
     }
 
@@ -222,56 +534,221 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * Get all enabled alarms
      */
     public List<Alarm> getEnabledAlarms() {
-        List<Alarm> alarms = new ArrayList<>();
-        SQLiteDatabase db = this.getReadableDatabase();
+        return queryAlarms(FULL_PROJECTION, COLUMN_ENABLED + " = ?", new String[]{"1"}, ORDER_BY_TIME);
+    }
+
+    /**
+     * Get one page of the alarm list: up to {@code limit} alarms that sort after
+     * (hour, minute, id) in list order. Pass -1 for all three to get the first page.
+     */
+    public List<Alarm> getAlarmsAfter(int hour, int minute, long id, int limit) {
+        String h = String.valueOf(hour);
+        String m = String.valueOf(minute);
+        return queryAlarms(FULL_PROJECTION, SELECTION_AFTER_KEY,
+            new String[]{h, h, m, m, String.valueOf(id)},
+            ORDER_BY_TIME, String.valueOf(limit));
+    }
+
+    /**
+     * Find alarms whose label contains words starting with every word of {@code query},
+     * in list order. Served by the full-text index, so cost follows the number of
+     * matches rather than the table size. A cancelled search returns an empty list.
+     */
+    public List<Alarm> searchAlarms(String query, int limit, CancellationSignal cancellationSignal) {
+        String match = toMatchExpression(query);
+        if (match == null) {
+            return new ArrayList<>();
+        }
         
+        StringBuilder columns = new StringBuilder();
+        for (String column : FULL_PROJECTION) {
+            if (columns.length() > 0) {
+                columns.append(", ");
+            }
+            columns.append("a.").append(column);
+        }
+        String sql = "SELECT " + columns + " FROM " + TABLE_ALARMS + " a" +
+            " JOIN " + TABLE_ALARMS_FTS + " f ON f.docid = a." + COLUMN_ID +
+            " WHERE " + TABLE_ALARMS_FTS + " MATCH ?" +
+            " ORDER BY a." + COLUMN_HOUR + ", a." + COLUMN_MINUTE + ", a." + COLUMN_ID +
+            " LIMIT " + limit;
+        
+        List<Alarm> alarms = new ArrayList<>();
+        Cursor cursor = null;
         try {
-            Cursor cursor = db.query(TABLE_ALARMS, null, 
-                COLUMN_ENABLED + " = ?", new String[]{"1"},
-                null, null, COLUMN_HOUR + " ASC, " + COLUMN_MINUTE + " ASC");
-            
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    Alarm alarm = createAlarmFromCursor(cursor);
-                    if (alarm != null) {
-                        alarms.add(alarm);
-                    }
-                }
-                cursor.close();
+            cursor = this.getReadableDatabase().rawQuery(sql, new String[]{match}, cancellationSignal);
+            AlarmCursorMapper mapper = new AlarmCursorMapper(cursor);
+            while (cursor.moveToNext()) {
+                alarms.add(mapper.map());
             }
-            
+        } catch (OperationCanceledException e) {
+            alarms.clear();
         } catch (Exception e) {
-            Log.e(TAG, "Error getting enabled alarms", e);
+            Log.e(TAG, "Error searching alarms", e);
         } finally {
-            db.close();
+            closeQuietly(cursor);
         }
         
         return alarms;
     }
 
     /**
-     * Create an Alarm object from a database cursor
+     * Turn free text into an FTS prefix query, e.g. "med soir" -> "med* soir*".
+     * Returns null when the text has no searchable word.
+     */
+    private static String toMatchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(word).append('*');
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
+    /**
+     * Get every alarm with only the scheduling columns populated
+     */
+    public List<Alarm> getAlarmSummaries() {
+        return queryAlarms(SUMMARY_PROJECTION, null, null, ORDER_BY_TIME);
+    }
+
+    /**
+     * Get enabled alarms with only the scheduling columns populated
+     */
+    public List<Alarm> getEnabledAlarmSummaries() {
+        return queryAlarms(SUMMARY_PROJECTION, COLUMN_ENABLED + " = ?", new String[]{"1"}, ORDER_BY_TIME);
+    }
+
+    /**
+     * Get the distinct ringtone URIs set on enabled alarms
      */
-    private Alarm createAlarmFromCursor(Cursor cursor) {
+    public List<String> getEnabledRingtoneUris() {
+        List<String> uris = new ArrayList<>();
+        Cursor cursor = null;
         try {
-            long id = cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_ID));
-            int hour = cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_HOUR));
-            int minute = cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_MINUTE));
-            String label = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_LABEL));
-            boolean enabled = cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_ENABLED)) == 1;
-            String ringtoneUri = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_RINGTONE_URI));
-            long createdAt = cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_CREATED_AT));
-            
-            Alarm alarm = new Alarm(hour, minute, label, enabled, ringtoneUri);
-            alarm.setId(id);
-            alarm.setCreatedAt(createdAt);
+            cursor = this.getReadableDatabase().query(true, TABLE_ALARMS, new String[]{COLUMN_RINGTONE_URI},
+                COLUMN_ENABLED + " = 1 AND " + COLUMN_RINGTONE_URI + " IS NOT NULL", null,
+                null, null, null, null);
+            while (cursor.moveToNext()) {
+                uris.add(cursor.getString(0));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting ringtones", e);
+        } finally {
+            closeQuietly(cursor);
+        }
+        return uris;
+    }
+
+    /**
+     * Get up to {@code limit} enabled alarms due after {@code now}, earliest first.
+     * Only the head of the (enabled, next_trigger_at) index is read. A row whose
+     * trigger passed while nothing could write it, such as with the device off,
+     * is missed until the scheduler's full load stores its next trigger.
+     */
+    public List<Alarm> getNextDueAlarms(long now, int limit) {
+        return queryAlarms(FULL_PROJECTION,
+            COLUMN_ENABLED + " = 1 AND " + COLUMN_NEXT_TRIGGER_AT + " > ?",
+            new String[]{String.valueOf(now)},
+            COLUMN_NEXT_TRIGGER_AT + " ASC", String.valueOf(limit));
+    }
+
+    /**
+     * Get the enabled alarm that fires next, or null if none is enabled
+     */
+    public Alarm getNextAlarm(long now) {
+        List<Alarm> alarms = getNextDueAlarms(now, 1);
+        return alarms.isEmpty() ? null : alarms.get(0);
+    }
+
+    /**
+     * Store the trigger times of scheduler entries in one transaction
+     */
+    public boolean updateNextTriggers(List<TriggerQueue.Entry> entries) {
+        long[] alarmIds = new long[entries.size()];
+        long[] triggerTimes = new long[entries.size()];
+        for (int i = 0; i < alarmIds.length; i++) {
+            alarmIds[i] = entries.get(i).alarmId;
+            triggerTimes[i] = entries.get(i).triggerAt;
+        }
+        return updateNextTriggers(alarmIds, triggerTimes);
+    }
+
+    /**
+     * Store new next-trigger times for a batch of alarms in one transaction.
+     * {@code alarmIds} and {@code triggerTimes} are parallel.
+     */
+    public boolean updateNextTriggers(long[] alarmIds, long[] triggerTimes) {
+        synchronized (statementLock) {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                StatementCache cache = statements();
+                for (int i = 0; i < alarmIds.length; i++) {
+                    updateNextTriggerRow(cache, alarmIds[i], triggerTimes[i]);
+                }
+                db.setTransactionSuccessful();
+                return true;
+            } catch (Exception e) {
+                Log.e(TAG, "Error updating alarm triggers", e);
+                return false;
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Open a forward-only stream over every alarm (or only enabled ones) in id order.
+     * Rows are read window by window, so memory stays flat whatever the table size.
+     * The caller must close the stream.
+     */
+    public AlarmStream openAlarmStream(boolean enabledOnly) {
+        Cursor cursor = this.getReadableDatabase().query(TABLE_ALARMS, FULL_PROJECTION,
+            enabledOnly ? COLUMN_ENABLED + " = 1" : null, null, null, null, COLUMN_ID + " ASC");
+        return new AlarmStream(cursor);
+    }
+
+    /**
+     * Run a query on the alarms table and map every row with the given projection
+     */
+    private List<Alarm> queryAlarms(String[] projection, String selection,
+                                    String[] selectionArgs, String orderBy) {
+        return queryAlarms(projection, selection, selectionArgs, orderBy, null);
+    }
+
+    private List<Alarm> queryAlarms(String[] projection, String selection,
+                                    String[] selectionArgs, String orderBy, String limit) {
+        List<Alarm> alarms = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = null;
+        
+        try {
+            cursor = db.query(TABLE_ALARMS, projection, selection, selectionArgs,
+                null, null, orderBy, limit);
             
-            return alarm;
+            if (cursor != null) {
+                AlarmCursorMapper mapper = new AlarmCursorMapper(cursor);
+                while (cursor.moveToNext()) {
+                    alarms.add(mapper.map());
+                }
+            }
             
         } catch (Exception e) {
-            Log.e(TAG, "Error creating alarm from cursor", e);
-            return null;
+            Log.e(TAG, "Error querying alarms", e);
+        } finally {
+            closeQuietly(cursor);
         }
+        
+        return alarms;
     }
 
     /**
@@ -282,18 +759,144 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         int count = 0;
         
         try {
-            Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + TABLE_ALARMS, null);
-            if (cursor != null) {
-                cursor.moveToFirst();
-                count = cursor.getInt(0);
-                cursor.close();
-            }
+            count = (int) DatabaseUtils.queryNumEntries(db, TABLE_ALARMS);
         } catch (Exception e) {
             Log.e(TAG, "Error getting alarm count", e);
-        } finally {
-            db.close();
         }
         
         return count;
     }
+
+    /**
+     * Get the compiled write statements, compiling them against the current connection if needed.
+     * Must be called with statementLock held.
+     */
+    private StatementCache statements() {
+        SQLiteDatabase db = this.getWritableDatabase();
+        if (statementCache == null || statementCache.db != db) {
+            statementCache = new StatementCache(db);
+        }
+        return statementCache;
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Close a cursor if one was opened. The shared connection itself stays open.
+     */
+    private static void closeQuietly(Cursor cursor) {
+        if (cursor != null) {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Write statements, and the lookup toggles need, compiled once per connection
+     */
+    private static final class StatementCache {
+        final SQLiteDatabase db;
+        final SQLiteStatement insert;
+        final SQLiteStatement update;
+        final SQLiteStatement toggle;
+        final SQLiteStatement schedule;
+        final SQLiteStatement delete;
+        final SQLiteStatement updateNextTrigger;
+
+        StatementCache(SQLiteDatabase db) {
+            this.db = db;
+            this.insert = db.compileStatement(SQL_INSERT_ALARM);
+            this.update = db.compileStatement(SQL_UPDATE_ALARM);
+            this.toggle = db.compileStatement(SQL_TOGGLE_ALARM);
+            this.schedule = db.compileStatement(SQL_SCHEDULE_OF_ALARM);
+            this.delete = db.compileStatement(SQL_DELETE_ALARM);
+            this.updateNextTrigger = db.compileStatement(SQL_UPDATE_NEXT_TRIGGER);
+        }
+    }
+
+    /**
+     * Cursor-backed sequence of alarms, see {@link #openAlarmStream(boolean)}
+     */
+    public static final class AlarmStream implements Closeable {
+        private final Cursor cursor;
+        private final AlarmCursorMapper mapper;
+
+        AlarmStream(Cursor cursor) {
+            this.cursor = cursor;
+            this.mapper = new AlarmCursorMapper(cursor);
+        }
+
+        /**
+         * Next alarm, or null once the stream is exhausted
+         */
+        public Alarm next() {
+            return cursor.moveToNext() ? mapper.map() : null;
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Maps cursor rows to Alarm objects. Column indices are resolved once per cursor,
+     * and columns missing from the projection keep the Alarm defaults.
+     */
+    private static final class AlarmCursorMapper {
+        private final Cursor cursor;
+        private final int idIndex;
+        private final int hourIndex;
+        private final int minuteIndex;
+        private final int labelIndex;
+        private final int enabledIndex;
+        private final int ringtoneUriIndex;
+        private final int createdAtIndex;
+        private final int nextTriggerAtIndex;
+        private final int repeatDaysIndex;
+
+        AlarmCursorMapper(Cursor cursor) {
+            this.cursor = cursor;
+            this.idIndex = cursor.getColumnIndexOrThrow(COLUMN_ID);
+            this.hourIndex = cursor.getColumnIndexOrThrow(COLUMN_HOUR);
+            this.minuteIndex = cursor.getColumnIndexOrThrow(COLUMN_MINUTE);
+            this.labelIndex = cursor.getColumnIndex(COLUMN_LABEL);
+            this.enabledIndex = cursor.getColumnIndex(COLUMN_ENABLED);
+            this.ringtoneUriIndex = cursor.getColumnIndex(COLUMN_RINGTONE_URI);
+            this.createdAtIndex = cursor.getColumnIndex(COLUMN_CREATED_AT);
+            this.nextTriggerAtIndex = cursor.getColumnIndex(COLUMN_NEXT_TRIGGER_AT);
+            this.repeatDaysIndex = cursor.getColumnIndex(COLUMN_REPEAT_DAYS);
+        }
+
+        Alarm map() {
+            Alarm alarm = new Alarm();
+            alarm.setId(cursor.getLong(idIndex));
+            alarm.setHour(cursor.getInt(hourIndex));
+            alarm.setMinute(cursor.getInt(minuteIndex));
+            if (labelIndex >= 0 && !cursor.isNull(labelIndex)) {
+                alarm.setLabel(cursor.getString(labelIndex));
+            }
+            if (enabledIndex >= 0) {
+                alarm.setEnabled(cursor.getInt(enabledIndex) == 1);
+            }
+            if (ringtoneUriIndex >= 0 && !cursor.isNull(ringtoneUriIndex)) {
+                alarm.setRingtoneUri(cursor.getString(ringtoneUriIndex));
+            }
+            if (createdAtIndex >= 0) {
+                alarm.setCreatedAt(cursor.getLong(createdAtIndex));
+            }
+            if (nextTriggerAtIndex >= 0) {
+                alarm.setNextTriggerAt(cursor.getLong(nextTriggerAtIndex));
+            }
+            if (repeatDaysIndex >= 0) {
+                alarm.setRepeatDays(cursor.getInt(repeatDaysIndex));
+            }
+            return alarm;
+        }
+    }
 }
@@ -0,0 +1,336 @@
+package com.furaxx37.reveilletoi;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Versioned, non-destructive schema migrations for the alarms database. Schema
+ * changes run in onUpgrade; per-row work is backfilled in batches afterwards.
+ */
+final class DatabaseMigrations {
+
+    private static final String TAG = "DatabaseMigrations";
+
+    // Rows handled per backfill transaction
+    static final int BACKFILL_BATCH_SIZE = 500;
+
+    private static final String TABLE_PENDING_BACKFILLS = "pending_backfills";
+
+    private static final String CREATE_TABLE_PENDING_BACKFILLS =
+        "CREATE TABLE IF NOT EXISTS " + TABLE_PENDING_BACKFILLS + " (version INTEGER PRIMARY KEY)";
+
+    // Resume point for backfills that walk a table in key order
+    private static final String TABLE_BACKFILL_PROGRESS = "backfill_progress";
+
+    private static final String CREATE_TABLE_BACKFILL_PROGRESS =
+        "CREATE TABLE IF NOT EXISTS " + TABLE_BACKFILL_PROGRESS +
+        " (version INTEGER PRIMARY KEY, last_key INTEGER NOT NULL)";
+
+    /**
+     * One schema version step
+     */
+    abstract static class Migration {
+        final int toVersion;
+
+        Migration(int toVersion) {
+            this.toVersion = toVersion;
+        }
+
+        /**
+         * Change the schema from toVersion - 1 to toVersion. Must not touch every row.
+         */
+        abstract void migrate(SQLiteDatabase db);
+
+        /**
+         * Whether this step leaves per-row work for {@link #backfill}
+         */
+        boolean hasBackfill() {
+            return false;
+        }
+
+        /**
+         * Process at most {@code batchSize} rows. Returns the number of rows handled,
+         * 0 once there is nothing left to do.
+         */
+        int backfill(SQLiteDatabase db, int batchSize) {
+            return 0;
+        }
+    }
+
+    // Ordered by toVersion, one entry for every version after 1. Steps spell out their SQL rather
+    // than reuse DatabaseHelper constants, so they keep describing the schema of their version.
+    static final Migration[] MIGRATIONS = {
+        new Migration(2) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("ALTER TABLE alarms ADD COLUMN next_trigger_at INTEGER");
+                db.execSQL("CREATE INDEX IF NOT EXISTS idx_alarms_enabled_next_trigger " +
+                    "ON alarms (enabled, next_trigger_at)");
+            }
+
+            @Override
+            boolean hasBackfill() {
+                return true;
+            }
+
+            @Override
+            int backfill(SQLiteDatabase db, int batchSize) {
+                long now = System.currentTimeMillis();
+                Alarm alarm = new Alarm();
+                int count = 0;
+                Cursor cursor = db.rawQuery("SELECT id, hour, minute FROM alarms " +
+                    "WHERE next_trigger_at IS NULL LIMIT " + batchSize, null);
+                SQLiteStatement update = db.compileStatement(
+                    "UPDATE alarms SET next_trigger_at = ? WHERE id = ?");
+                try {
+                    while (cursor.moveToNext()) {
+                        alarm.setHour(cursor.getInt(1));
+                        alarm.setMinute(cursor.getInt(2));
+                        update.bindLong(1, alarm.nextTriggerAfter(now));
+                        update.bindLong(2, cursor.getLong(0));
+                        update.executeUpdateDelete();
+                        count++;
+                    }
+                } finally {
+                    cursor.close();
+                    update.close();
+                }
+                return count;
+            }
+        },
+        new Migration(3) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("CREATE INDEX IF NOT EXISTS idx_alarms_time ON alarms (hour, minute, id)");
+            }
+        },
+        new Migration(4) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS alarms_fts USING fts4(label)");
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS alarms_fts_insert AFTER INSERT ON alarms BEGIN " +
+                    "INSERT INTO alarms_fts (docid, label) VALUES (new.id, new.label); END");
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS alarms_fts_update AFTER UPDATE OF label ON alarms BEGIN " +
+                    "DELETE FROM alarms_fts WHERE docid = old.id; " +
+                    "INSERT INTO alarms_fts (docid, label) VALUES (new.id, new.label); END");
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS alarms_fts_delete AFTER DELETE ON alarms BEGIN " +
+                    "DELETE FROM alarms_fts WHERE docid = old.id; END");
+            }
+
+            @Override
+            boolean hasBackfill() {
+                return true;
+            }
+
+            @Override
+            int backfill(SQLiteDatabase db, int batchSize) {
+                // Walk the table by id. Rows the triggers already indexed are replaced,
+                // so a batch can be rerun safely.
+                long lastId = readProgress(db, 4);
+                long batchEnd = lastId;
+                Cursor cursor = db.rawQuery("SELECT id FROM alarms WHERE id > ? ORDER BY id LIMIT " + batchSize,
+                    new String[]{String.valueOf(lastId)});
+                int count = 0;
+                try {
+                    while (cursor.moveToNext()) {
+                        batchEnd = cursor.getLong(0);
+                        count++;
+                    }
+                } finally {
+                    cursor.close();
+                }
+                if (count == 0) {
+                    return 0;
+                }
+                
+                String[] range = {String.valueOf(lastId), String.valueOf(batchEnd)};
+                db.execSQL("DELETE FROM alarms_fts WHERE docid > ? AND docid <= ?", range);
+                db.execSQL("INSERT INTO alarms_fts (docid, label) " +
+                    "SELECT id, label FROM alarms WHERE id > ? AND id <= ?", range);
+                writeProgress(db, 4, batchEnd);
+                return count;
+            }
+        },
+        new Migration(5) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("CREATE TABLE IF NOT EXISTS firing_history (" +
+                    "id INTEGER PRIMARY KEY AUTOINCREMENT, alarm_id INTEGER NOT NULL, " +
+                    "event INTEGER NOT NULL, event_at INTEGER NOT NULL, ring_ms INTEGER NOT NULL DEFAULT 0)");
+                db.execSQL("CREATE TABLE IF NOT EXISTS alarm_stats (" +
+                    "alarm_id INTEGER PRIMARY KEY, fire_count INTEGER NOT NULL DEFAULT 0, " +
+                    "snooze_count INTEGER NOT NULL DEFAULT 0, dismiss_count INTEGER NOT NULL DEFAULT 0, " +
+                    "dismiss_ring_ms INTEGER NOT NULL DEFAULT 0)");
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS alarm_stats_delete AFTER DELETE ON alarms BEGIN " +
+                    "DELETE FROM alarm_stats WHERE alarm_id = old.id; END");
+            }
+        },
+        new Migration(6) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                // Existing alarms stay one-shot
+                db.execSQL("ALTER TABLE alarms ADD COLUMN repeat_days INTEGER NOT NULL DEFAULT 0");
+            }
+        },
+        new Migration(7) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("CREATE TABLE IF NOT EXISTS alarm_profiles (" +
+                    "id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, " +
+                    "active INTEGER NOT NULL DEFAULT 0)");
+                db.execSQL("CREATE TABLE IF NOT EXISTS alarm_profile_members (" +
+                    "profile_id INTEGER NOT NULL, alarm_id INTEGER NOT NULL, " +
+                    "PRIMARY KEY (profile_id, alarm_id))");
+                db.execSQL("CREATE INDEX IF NOT EXISTS idx_alarm_profile_members_alarm " +
+                    "ON alarm_profile_members (alarm_id)");
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS alarm_profile_members_alarm_delete " +
+                    "AFTER DELETE ON alarms BEGIN " +
+                    "DELETE FROM alarm_profile_members WHERE alarm_id = old.id; END");
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS alarm_profile_members_profile_delete " +
+                    "AFTER DELETE ON alarm_profiles BEGIN " +
+                    "DELETE FROM alarm_profile_members WHERE profile_id = old.id; END");
+            }
+        },
+        new Migration(8) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("CREATE TABLE IF NOT EXISTS wakeup_stats (" +
+                    "day INTEGER PRIMARY KEY, wakeups INTEGER NOT NULL DEFAULT 0, " +
+                    "triggers INTEGER NOT NULL DEFAULT 0)");
+            }
+        },
+        new Migration(9) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                // Earlier firings weren't measured and stay out of the energy totals
+                db.execSQL("ALTER TABLE alarm_stats ADD COLUMN metered_count INTEGER NOT NULL DEFAULT 0");
+                db.execSQL("ALTER TABLE alarm_stats ADD COLUMN wake_lock_ms INTEGER NOT NULL DEFAULT 0");
+                db.execSQL("ALTER TABLE alarm_stats ADD COLUMN audio_ms INTEGER NOT NULL DEFAULT 0");
+                db.execSQL("ALTER TABLE alarm_stats ADD COLUMN vibration_ms INTEGER NOT NULL DEFAULT 0");
+            }
+        },
+        new Migration(10) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("CREATE TABLE IF NOT EXISTS boot_stats (" +
+                    "id INTEGER PRIMARY KEY AUTOINCREMENT, booted_at INTEGER NOT NULL, " +
+                    "received_ms INTEGER NOT NULL, armed_ms INTEGER NOT NULL)");
+            }
+        },
+    };
+
+    private DatabaseMigrations() {
+    }
+
+    /**
+     * Create the bookkeeping table used to track unfinished backfills
+     */
+    static void ensureBookkeeping(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE_PENDING_BACKFILLS);
+        db.execSQL(CREATE_TABLE_BACKFILL_PROGRESS);
+    }
+
+    /**
+     * Apply every schema step between the two versions, in order.
+     * Runs inside the onUpgrade transaction, which also records the pending
+     * backfills, so an interrupted backfill resumes on the next open.
+     */
+    static void upgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        ensureBookkeeping(db);
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            Migration migration = find(version);
+            if (migration == null) {
+                throw new IllegalStateException("No migration to database version " + version);
+            }
+            migration.migrate(db);
+            if (migration.hasBackfill()) {
+                db.execSQL("INSERT OR IGNORE INTO " + TABLE_PENDING_BACKFILLS +
+                    " (version) VALUES (" + version + ")");
+            }
+            Log.d(TAG, "Migrated schema to version " + version);
+        }
+    }
+
+    /**
+     * Whether any backfill is still outstanding
+     */
+    static boolean hasPendingBackfills(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT 1 FROM " + TABLE_PENDING_BACKFILLS + " LIMIT 1", null);
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Run one bounded batch of the oldest outstanding backfill in its own transaction.
+     * Returns true while work remains. Must not be called from inside a transaction.
+     */
+    static boolean runBackfillBatch(SQLiteDatabase db) {
+        for (Migration migration : MIGRATIONS) {
+            if (!isPending(db, migration.toVersion)) {
+                continue;
+            }
+            
+            int handled;
+            db.beginTransactionNonExclusive();
+            try {
+                handled = migration.backfill(db, BACKFILL_BATCH_SIZE);
+                if (handled == 0) {
+                    String[] version = {String.valueOf(migration.toVersion)};
+                    db.delete(TABLE_PENDING_BACKFILLS, "version = ?", version);
+                    db.delete(TABLE_BACKFILL_PROGRESS, "version = ?", version);
+                    Log.d(TAG, "Backfill for version " + migration.toVersion + " complete");
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Last key a backfill finished, or 0 before its first batch
+     */
+    static long readProgress(SQLiteDatabase db, int version) {
+        Cursor cursor = db.rawQuery("SELECT last_key FROM " + TABLE_BACKFILL_PROGRESS + " WHERE version = ?",
+            new String[]{String.valueOf(version)});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Record the last key a backfill finished, in the same transaction as the batch
+     */
+    static void writeProgress(SQLiteDatabase db, int version, long lastKey) {
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_BACKFILL_PROGRESS + " (version, last_key) VALUES (?, ?)",
+            new Object[]{version, lastKey});
+    }
+
+    private static boolean isPending(SQLiteDatabase db, int version) {
+        Cursor cursor = db.rawQuery("SELECT 1 FROM " + TABLE_PENDING_BACKFILLS + " WHERE version = ?",
+            new String[]{String.valueOf(version)});
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Migration find(int version) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.toVersion == version) {
+                return migration;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,128 @@
+package com.furaxx37.reveilletoi;
+
+import android.os.SystemClock;
+import java.util.LinkedHashMap;
+
+/**
+ * Charges the wake lock, audio and vibration time of a firing session to the
+ * alarms that were ringing. Not thread-safe; used from the service's main thread.
+ */
+final class EnergyLedger {
+
+    // Typical draw in mW of the CPU held awake, the speaker at alarm volume and the vibrator. Estimates
+    // compare alarms and builds on one device rather than giving absolute figures.
+    static final int WAKE_LOCK_MW = 50;
+    static final int AUDIO_MW = 300;
+    static final int VIBRATION_MW = 200;
+
+    /**
+     * Resource time charged to one alarm
+     */
+    static final class Usage {
+        long wakeLockMs;
+        long audioMs;
+        long vibrationMs;
+
+        boolean isEmpty() {
+            return wakeLockMs == 0 && audioMs == 0 && vibrationMs == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "wake lock " + wakeLockMs + " ms, audio " + audioMs + " ms, vibration " + vibrationMs +
+                " ms, ~" + estimateMj(wakeLockMs, audioMs, vibrationMs) + " mJ";
+        }
+    }
+
+    /**
+     * Estimated energy in millijoules for the given resource times
+     */
+    static long estimateMj(long wakeLockMs, long audioMs, long vibrationMs) {
+        return (wakeLockMs * WAKE_LOCK_MW + audioMs * AUDIO_MW + vibrationMs * VIBRATION_MW) / 1000;
+    }
+
+    // Charges of the active alarms, by id
+    private final LinkedHashMap<Long, Usage> charges = new LinkedHashMap<>();
+    private Usage unattributed = new Usage();
+
+    private boolean wakeLockHeld;
+    private boolean audioOn;
+    private boolean vibrating;
+    private long markedAt = SystemClock.elapsedRealtime();
+
+    void setWakeLockHeld(boolean held) {
+        advance();
+        wakeLockHeld = held;
+    }
+
+    void setAudioOn(boolean on) {
+        advance();
+        audioOn = on;
+    }
+
+    void setVibrating(boolean on) {
+        advance();
+        vibrating = on;
+    }
+
+    void alarmJoined(long alarmId) {
+        advance();
+        if (charges.containsKey(alarmId)) {
+            return;
+        }
+        charges.put(alarmId, unattributed);
+        unattributed = new Usage();
+    }
+
+    /**
+     * Stop charging an alarm and return what it was charged, or null if it
+     * wasn't active
+     */
+    Usage alarmLeft(long alarmId) {
+        advance();
+        return charges.remove(alarmId);
+    }
+
+    /**
+     * Take the time no alarm was charged for, e.g. a warm-up nothing followed
+     */
+    Usage takeUnattributed() {
+        advance();
+        Usage usage = unattributed;
+        unattributed = new Usage();
+        return usage;
+    }
+
+    // Charge the time since the last change to whatever was on, split evenly between the active alarms
+    // the way BatteryStats splits a shared wake lock. Time before any alarm joins, such as a warm-up,
+    // goes to the first alarm that does.
+    private void advance() {
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - markedAt;
+        markedAt = now;
+        if (elapsed <= 0 || (!wakeLockHeld && !audioOn && !vibrating)) {
+            return;
+        }
+
+        if (charges.isEmpty()) {
+            charge(unattributed, elapsed);
+            return;
+        }
+        long share = elapsed / charges.size();
+        for (Usage usage : charges.values()) {
+            charge(usage, share);
+        }
+    }
+
+    private void charge(Usage usage, long ms) {
+        if (wakeLockHeld) {
+            usage.wakeLockMs += ms;
+        }
+        if (audioOn) {
+            usage.audioMs += ms;
+        }
+        if (vibrating) {
+            usage.vibrationMs += ms;
+        }
+    }
+}
@@ -0,0 +1,577 @@
+package com.furaxx37.reveilletoi;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import android.util.LongSparseArray;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only log of alarm firings and their outcomes, with per-alarm and
+ * per-day aggregates.
+ */
+public final class FiringHistory {
+
+    private static final String TAG = "FiringHistory";
+
+    // Oldest rows beyond this are dropped after each flush
+    static final int MAX_HISTORY_ROWS = 5000;
+
+    // Event types
+    public static final int EVENT_FIRED = 0;
+    public static final int EVENT_SNOOZED = 1;
+    public static final int EVENT_DISMISSED = 2;
+
+    // Days of wakeup statistics kept
+    static final int WAKEUP_STATS_DAYS = 90;
+    // Boots whose rescheduling latency is kept
+    static final int MAX_BOOT_STATS_ROWS = 50;
+
+    static final String TABLE_FIRING_HISTORY = "firing_history";
+    static final String TABLE_ALARM_STATS = "alarm_stats";
+    static final String TABLE_WAKEUP_STATS = "wakeup_stats";
+    static final String TABLE_BOOT_STATS = "boot_stats";
+
+    static final String CREATE_TABLE_FIRING_HISTORY =
+        "CREATE TABLE IF NOT EXISTS " + TABLE_FIRING_HISTORY + " (" +
+        "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+        "alarm_id INTEGER NOT NULL, " +
+        "event INTEGER NOT NULL, " +
+        "event_at INTEGER NOT NULL, " +
+        "ring_ms INTEGER NOT NULL DEFAULT 0)";
+
+    // Updated in the same transaction as the events, so reading statistics never scans the log and
+    // is unaffected by retention. Also sums the energy EnergyLedger measured for each firing.
+    static final String CREATE_TABLE_ALARM_STATS =
+        "CREATE TABLE IF NOT EXISTS " + TABLE_ALARM_STATS + " (" +
+        "alarm_id INTEGER PRIMARY KEY, " +
+        "fire_count INTEGER NOT NULL DEFAULT 0, " +
+        "snooze_count INTEGER NOT NULL DEFAULT 0, " +
+        "dismiss_count INTEGER NOT NULL DEFAULT 0, " +
+        "dismiss_ring_ms INTEGER NOT NULL DEFAULT 0, " +
+        "metered_count INTEGER NOT NULL DEFAULT 0, " +
+        "wake_lock_ms INTEGER NOT NULL DEFAULT 0, " +
+        "audio_ms INTEGER NOT NULL DEFAULT 0, " +
+        "vibration_ms INTEGER NOT NULL DEFAULT 0)";
+
+    // System wakeups that fired alarms, and the triggers they fired, per local day
+    static final String CREATE_TABLE_WAKEUP_STATS =
+        "CREATE TABLE IF NOT EXISTS " + TABLE_WAKEUP_STATS + " (" +
+        "day INTEGER PRIMARY KEY, " +
+        "wakeups INTEGER NOT NULL DEFAULT 0, " +
+        "triggers INTEGER NOT NULL DEFAULT 0)";
+
+    // booted_at is wall-clock time; received_ms and armed_ms are elapsed realtime since boot
+    static final String CREATE_TABLE_BOOT_STATS =
+        "CREATE TABLE IF NOT EXISTS " + TABLE_BOOT_STATS + " (" +
+        "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+        "booted_at INTEGER NOT NULL, " +
+        "received_ms INTEGER NOT NULL, " +
+        "armed_ms INTEGER NOT NULL)";
+
+    // Statistics go with the alarm; the log itself is left to retention
+    static final String CREATE_TRIGGER_ALARM_STATS_DELETE =
+        "CREATE TRIGGER IF NOT EXISTS alarm_stats_delete AFTER DELETE ON alarms BEGIN " +
+        "DELETE FROM " + TABLE_ALARM_STATS + " WHERE alarm_id = old.id; END";
+
+    private static final String SQL_INSERT_EVENT =
+        "INSERT INTO " + TABLE_FIRING_HISTORY + " (alarm_id, event, event_at, ring_ms) VALUES (?, ?, ?, ?)";
+
+    private static final String SQL_ENSURE_STATS =
+        "INSERT OR IGNORE INTO " + TABLE_ALARM_STATS + " (alarm_id) VALUES (?)";
+
+    private static final String SQL_UPDATE_STATS =
+        "UPDATE " + TABLE_ALARM_STATS + " SET " +
+        "fire_count = fire_count + ?, snooze_count = snooze_count + ?, " +
+        "dismiss_count = dismiss_count + ?, dismiss_ring_ms = dismiss_ring_ms + ? " +
+        "WHERE alarm_id = ?";
+
+    private static final String SQL_UPDATE_ENERGY =
+        "UPDATE " + TABLE_ALARM_STATS + " SET metered_count = metered_count + 1, " +
+        "wake_lock_ms = wake_lock_ms + ?, audio_ms = audio_ms + ?, vibration_ms = vibration_ms + ? " +
+        "WHERE alarm_id = ?";
+
+    private static final String SQL_ENSURE_WAKEUP_STATS =
+        "INSERT OR IGNORE INTO " + TABLE_WAKEUP_STATS + " (day) VALUES (?)";
+
+    private static final String SQL_UPDATE_WAKEUP_STATS =
+        "UPDATE " + TABLE_WAKEUP_STATS + " SET wakeups = wakeups + ?, triggers = triggers + ? WHERE day = ?";
+
+    private static final String SQL_INSERT_BOOT_STATS =
+        "INSERT INTO " + TABLE_BOOT_STATS + " (booted_at, received_ms, armed_ms) VALUES (?, ?, ?)";
+
+    private static volatile FiringHistory instance;
+
+    private final Context appContext;
+    private final DatabaseHelper databaseHelper;
+    private final IoExecutor ioExecutor;
+
+    // Guarded by this
+    private final List<Event> pending = new ArrayList<>();
+    private final List<EnergyCharge> pendingEnergy = new ArrayList<>();
+    // Wakeups not flushed yet, by local epoch day: {wakeups, triggers}
+    private final LongSparseArray<int[]> pendingWakeups = new LongSparseArray<>();
+    private final List<BootStats> pendingBoots = new ArrayList<>();
+    private boolean flushQueued;
+
+    /**
+     * Rolling per-alarm statistics
+     */
+    public static final class Stats {
+        public final long alarmId;
+        public final int fireCount;
+        public final int snoozeCount;
+        public final int dismissCount;
+        public final long dismissRingMs;
+        // Firings whose resource time was measured, and its totals
+        public final int meteredCount;
+        public final long wakeLockMs;
+        public final long audioMs;
+        public final long vibrationMs;
+
+        Stats(long alarmId, int fireCount, int snoozeCount, int dismissCount, long dismissRingMs,
+              int meteredCount, long wakeLockMs, long audioMs, long vibrationMs) {
+            this.alarmId = alarmId;
+            this.fireCount = fireCount;
+            this.snoozeCount = snoozeCount;
+            this.dismissCount = dismissCount;
+            this.dismissRingMs = dismissRingMs;
+            this.meteredCount = meteredCount;
+            this.wakeLockMs = wakeLockMs;
+            this.audioMs = audioMs;
+            this.vibrationMs = vibrationMs;
+        }
+
+        /**
+         * Mean time from firing to dismissal, or 0 if never dismissed
+         */
+        public long meanRingToDismissMs() {
+            return dismissCount == 0 ? 0 : dismissRingMs / dismissCount;
+        }
+
+        /**
+         * Fraction of firings that were snoozed
+         */
+        public float snoozeRate() {
+            return fireCount == 0 ? 0f : (float) snoozeCount / fireCount;
+        }
+
+        /**
+         * Estimated energy of every measured firing, in millijoules
+         */
+        public long energyMj() {
+            return EnergyLedger.estimateMj(wakeLockMs, audioMs, vibrationMs);
+        }
+
+        /**
+         * Estimated energy of one firing, or 0 if none was measured
+         */
+        public long meanEnergyPerFiringMj() {
+            return meteredCount == 0 ? 0 : energyMj() / meteredCount;
+        }
+    }
+
+    /**
+     * System wakeups that fired alarms on one local day
+     */
+    public static final class WakeupStats {
+        public final long epochDay;
+        public final int wakeups;
+        public final int triggers;
+
+        WakeupStats(long epochDay, int wakeups, int triggers) {
+            this.epochDay = epochDay;
+            this.wakeups = wakeups;
+            this.triggers = triggers;
+        }
+
+        /**
+         * Wakeups avoided compared with one wakeup per trigger
+         */
+        public int wakeupsSaved() {
+            return triggers - wakeups;
+        }
+    }
+
+    /**
+     * How long rescheduling took to arm the earliest alarm after one boot
+     */
+    public static final class BootStats {
+        public final long bootedAt;
+        public final long receivedMs;
+        public final long armedMs;
+
+        BootStats(long bootedAt, long receivedMs, long armedMs) {
+            this.bootedAt = bootedAt;
+            this.receivedMs = receivedMs;
+            this.armedMs = armedMs;
+        }
+
+        /**
+         * Time from the boot broadcast to the earliest alarm being armed
+         */
+        public long armedAfterBroadcastMs() {
+            return armedMs - receivedMs;
+        }
+    }
+
+    private static final class Event {
+        final long alarmId;
+        final int type;
+        final long eventAt;
+        final long ringMs;
+
+        Event(long alarmId, int type, long eventAt, long ringMs) {
+            this.alarmId = alarmId;
+            this.type = type;
+            this.eventAt = eventAt;
+            this.ringMs = ringMs;
+        }
+    }
+
+    private static final class EnergyCharge {
+        final long alarmId;
+        final long wakeLockMs;
+        final long audioMs;
+        final long vibrationMs;
+
+        EnergyCharge(long alarmId, long wakeLockMs, long audioMs, long vibrationMs) {
+            this.alarmId = alarmId;
+            this.wakeLockMs = wakeLockMs;
+            this.audioMs = audioMs;
+            this.vibrationMs = vibrationMs;
+        }
+    }
+
+    /**
+     * Get the shared history, creating it on first use
+     */
+    public static FiringHistory getInstance(Context context) {
+        if (instance == null) {
+            synchronized (FiringHistory.class) {
+                if (instance == null) {
+                    instance = new FiringHistory(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private FiringHistory(Context appContext) {
+        this.appContext = appContext;
+        this.databaseHelper = DatabaseHelper.getInstance(appContext);
+        this.ioExecutor = IoExecutor.getInstance();
+    }
+
+    /**
+     * Create the history tables. Called from DatabaseHelper.onCreate.
+     */
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE_FIRING_HISTORY);
+        db.execSQL(CREATE_TABLE_ALARM_STATS);
+        db.execSQL(CREATE_TRIGGER_ALARM_STATS_DELETE);
+        db.execSQL(CREATE_TABLE_WAKEUP_STATS);
+        db.execSQL(CREATE_TABLE_BOOT_STATS);
+    }
+
+    public void recordFired(long alarmId, long firedAt) {
+        append(new Event(alarmId, EVENT_FIRED, firedAt, 0));
+    }
+
+    public void recordSnoozed(long alarmId, long firedAt, long snoozedAt) {
+        append(new Event(alarmId, EVENT_SNOOZED, snoozedAt, ringTime(firedAt, snoozedAt)));
+    }
+
+    public void recordDismissed(long alarmId, long firedAt, long dismissedAt) {
+        append(new Event(alarmId, EVENT_DISMISSED, dismissedAt, ringTime(firedAt, dismissedAt)));
+    }
+
+    /**
+     * Add the resource time one firing of an alarm cost
+     */
+    public void recordEnergy(long alarmId, long wakeLockMs, long audioMs, long vibrationMs) {
+        if (!AlarmSnapshot.isUserUnlocked(appContext)) {
+            return;
+        }
+        synchronized (this) {
+            pendingEnergy.add(new EnergyCharge(alarmId, wakeLockMs, audioMs, vibrationMs));
+        }
+        queueFlush();
+    }
+
+    /**
+     * Count one system wakeup that fired {@code triggers} alarms
+     */
+    public void recordWakeup(long wokeAt, int triggers) {
+        if (!AlarmSnapshot.isUserUnlocked(appContext)) {
+            return;
+        }
+        long day = TriggerTimeEngine.forDefaultZone().epochDay(wokeAt);
+        synchronized (this) {
+            int[] counts = pendingWakeups.get(day);
+            if (counts == null) {
+                counts = new int[2];
+                pendingWakeups.put(day, counts);
+            }
+            counts[0]++;
+            counts[1] += triggers;
+        }
+        queueFlush();
+    }
+
+    /**
+     * Record a boot, at wall-clock {@code bootedAt}, whose broadcast arrived
+     * {@code receivedMs} and whose earliest alarm was armed {@code armedMs}
+     * after it, both in elapsed realtime
+     */
+    public void recordBoot(long bootedAt, long receivedMs, long armedMs) {
+        if (!AlarmSnapshot.isUserUnlocked(appContext)) {
+            return;
+        }
+        synchronized (this) {
+            pendingBoots.add(new BootStats(bootedAt, receivedMs, armedMs));
+        }
+        queueFlush();
+    }
+
+    /**
+     * Read the most recent boot, or null if none was recorded. Must run off the
+     * main thread.
+     */
+    public BootStats getLastBootStats() {
+        Cursor cursor = null;
+        try {
+            cursor = databaseHelper.getReadableDatabase().rawQuery(
+                "SELECT booted_at, received_ms, armed_ms FROM " + TABLE_BOOT_STATS + " ORDER BY id DESC LIMIT 1",
+                null);
+            if (cursor.moveToFirst()) {
+                return new BootStats(cursor.getLong(0), cursor.getLong(1), cursor.getLong(2));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading boot stats", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read the wakeup counts for one local day. Must run off the main thread.
+     */
+    public WakeupStats getWakeupStats(long epochDay) {
+        Cursor cursor = null;
+        try {
+            cursor = databaseHelper.getReadableDatabase().rawQuery(
+                "SELECT wakeups, triggers FROM " + TABLE_WAKEUP_STATS + " WHERE day = ?",
+                new String[]{String.valueOf(epochDay)});
+            if (cursor.moveToFirst()) {
+                return new WakeupStats(epochDay, cursor.getInt(0), cursor.getInt(1));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading wakeup stats", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return new WakeupStats(epochDay, 0, 0);
+    }
+
+    /**
+     * Read the aggregates for one alarm. Must run off the main thread.
+     */
+    public Stats getStats(long alarmId) {
+        Cursor cursor = null;
+        try {
+            cursor = databaseHelper.getReadableDatabase().rawQuery(
+                "SELECT fire_count, snooze_count, dismiss_count, dismiss_ring_ms, " +
+                "metered_count, wake_lock_ms, audio_ms, vibration_ms FROM " +
+                TABLE_ALARM_STATS + " WHERE alarm_id = ?", new String[]{String.valueOf(alarmId)});
+            if (cursor.moveToFirst()) {
+                return new Stats(alarmId, cursor.getInt(0), cursor.getInt(1), cursor.getInt(2), cursor.getLong(3),
+                    cursor.getInt(4), cursor.getLong(5), cursor.getLong(6), cursor.getLong(7));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading alarm stats", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return new Stats(alarmId, 0, 0, 0, 0, 0, 0, 0, 0);
+    }
+
+    private static void flushWakeups(SQLiteDatabase db, LongSparseArray<int[]> wakeups) {
+        SQLiteStatement ensure = db.compileStatement(SQL_ENSURE_WAKEUP_STATS);
+        SQLiteStatement update = db.compileStatement(SQL_UPDATE_WAKEUP_STATS);
+        try {
+            long latestDay = Long.MIN_VALUE;
+            for (int i = 0; i < wakeups.size(); i++) {
+                long day = wakeups.keyAt(i);
+                int[] counts = wakeups.valueAt(i);
+                ensure.bindLong(1, day);
+                ensure.executeInsert();
+                update.bindLong(1, counts[0]);
+                update.bindLong(2, counts[1]);
+                update.bindLong(3, day);
+                update.executeUpdateDelete();
+                latestDay = Math.max(latestDay, day);
+            }
+            db.execSQL("DELETE FROM " + TABLE_WAKEUP_STATS + " WHERE day <= ?",
+                new Object[]{latestDay - WAKEUP_STATS_DAYS});
+        } finally {
+            ensure.close();
+            update.close();
+        }
+    }
+
+    private static void flushBoots(SQLiteDatabase db, List<BootStats> boots) {
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_BOOT_STATS);
+        try {
+            long lastRowId = -1;
+            for (BootStats boot : boots) {
+                insert.bindLong(1, boot.bootedAt);
+                insert.bindLong(2, boot.receivedMs);
+                insert.bindLong(3, boot.armedMs);
+                lastRowId = insert.executeInsert();
+            }
+            if (lastRowId > MAX_BOOT_STATS_ROWS) {
+                db.execSQL("DELETE FROM " + TABLE_BOOT_STATS + " WHERE id <= ?",
+                    new Object[]{lastRowId - MAX_BOOT_STATS_ROWS});
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    private static void flushEnergy(SQLiteDatabase db, SQLiteStatement ensureStats, List<EnergyCharge> charges) {
+        SQLiteStatement update = db.compileStatement(SQL_UPDATE_ENERGY);
+        try {
+            for (EnergyCharge charge : charges) {
+                ensureStats.bindLong(1, charge.alarmId);
+                ensureStats.executeInsert();
+                update.bindLong(1, charge.wakeLockMs);
+                update.bindLong(2, charge.audioMs);
+                update.bindLong(3, charge.vibrationMs);
+                update.bindLong(4, charge.alarmId);
+                update.executeUpdateDelete();
+            }
+        } finally {
+            update.close();
+        }
+    }
+
+    private static long ringTime(long firedAt, long endedAt) {
+        return firedAt > 0 && endedAt > firedAt ? endedAt - firedAt : 0;
+    }
+
+    // Before unlock the database is not readable, so events are dropped
+    private void append(Event event) {
+        if (!AlarmSnapshot.isUserUnlocked(appContext)) {
+            Log.d(TAG, "Device locked, not recording event for alarm " + event.alarmId);
+            return;
+        }
+        synchronized (this) {
+            pending.add(event);
+        }
+        queueFlush();
+    }
+
+    // Events arriving while a flush is queued share its transaction
+    private void queueFlush() {
+        synchronized (this) {
+            if (flushQueued) {
+                return;
+            }
+            flushQueued = true;
+        }
+        ioExecutor.write(this::flush);
+    }
+
+    // Runs on the writer thread
+    private void flush() {
+        List<Event> events;
+        List<EnergyCharge> energy;
+        LongSparseArray<int[]> wakeups;
+        List<BootStats> boots;
+        synchronized (this) {
+            events = new ArrayList<>(pending);
+            pending.clear();
+            energy = new ArrayList<>(pendingEnergy);
+            pendingEnergy.clear();
+            wakeups = pendingWakeups.clone();
+            pendingWakeups.clear();
+            boots = new ArrayList<>(pendingBoots);
+            pendingBoots.clear();
+            flushQueued = false;
+        }
+        if (events.isEmpty() && energy.isEmpty() && wakeups.size() == 0 && boots.isEmpty()) {
+            return;
+        }
+
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        SQLiteStatement insert = null;
+        SQLiteStatement ensureStats = null;
+        SQLiteStatement updateStats = null;
+        db.beginTransactionNonExclusive();
+        try {
+            insert = db.compileStatement(SQL_INSERT_EVENT);
+            ensureStats = db.compileStatement(SQL_ENSURE_STATS);
+            updateStats = db.compileStatement(SQL_UPDATE_STATS);
+            long lastRowId = -1;
+            for (Event event : events) {
+                insert.bindLong(1, event.alarmId);
+                insert.bindLong(2, event.type);
+                insert.bindLong(3, event.eventAt);
+                insert.bindLong(4, event.ringMs);
+                lastRowId = insert.executeInsert();
+
+                ensureStats.bindLong(1, event.alarmId);
+                ensureStats.executeInsert();
+                updateStats.bindLong(1, event.type == EVENT_FIRED ? 1 : 0);
+                updateStats.bindLong(2, event.type == EVENT_SNOOZED ? 1 : 0);
+                updateStats.bindLong(3, event.type == EVENT_DISMISSED ? 1 : 0);
+                updateStats.bindLong(4, event.type == EVENT_DISMISSED ? event.ringMs : 0);
+                updateStats.bindLong(5, event.alarmId);
+                updateStats.executeUpdateDelete();
+            }
+
+            // Ids only grow, so everything this far below the newest row is the oldest
+            if (lastRowId > MAX_HISTORY_ROWS) {
+                db.execSQL("DELETE FROM " + TABLE_FIRING_HISTORY + " WHERE id <= ?",
+                    new Object[]{lastRowId - MAX_HISTORY_ROWS});
+            }
+
+            if (!energy.isEmpty()) {
+                flushEnergy(db, ensureStats, energy);
+            }
+            if (wakeups.size() > 0) {
+                flushWakeups(db, wakeups);
+            }
+            if (!boots.isEmpty()) {
+                flushBoots(db, boots);
+            }
+            db.setTransactionSuccessful();
+            Log.d(TAG, "Flushed " + events.size() + " firing events, " + energy.size() + " energy charges, " +
+                wakeups.size() + " days of wakeups and " + boots.size() + " boots");
+        } catch (Exception e) {
+            Log.e(TAG, "Error writing firing history", e);
+        } finally {
+            db.endTransaction();
+            if (insert != null) {
+                insert.close();
+            }
+            if (ensureStats != null) {
+                ensureStats.close();
+            }
+            if (updateStats != null) {
+                updateStats.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.furaxx37.reveilletoi;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs database and scheduling work off the main thread. Results are
+ * delivered on the main thread.
+ */
+public final class IoExecutor {
+
+    private static final String TAG = "IoExecutor";
+    private static final int READER_THREADS = 2;
+    // Tasks slower than this (queue wait plus run time) are logged
+    private static final long SLOW_TASK_MS = 100;
+
+    private static volatile IoExecutor instance;
+
+    // One thread, so writes apply in submission order and never contend for the SQLite write lock
+    private final ThreadPoolExecutor writer;
+    // WAL lets these run alongside the writer
+    private final ThreadPoolExecutor readers;
+    private final ThreadPoolExecutor urgent;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // So slow disk work shows up in the logs
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong completedTasks = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * Work to run on an I/O thread
+     */
+    public interface Task<T> {
+        T run();
+    }
+
+    /**
+     * Receives a task's result on the main thread
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    /**
+     * Point-in-time view of the executor's metrics
+     */
+    public static final class Metrics {
+        public final int writeQueueDepth;
+        public final int readQueueDepth;
+        public final int maxQueueDepth;
+        public final long completedTasks;
+        public final long averageLatencyMs;
+        public final long maxLatencyMs;
+
+        Metrics(int writeQueueDepth, int readQueueDepth, int maxQueueDepth,
+                long completedTasks, long averageLatencyMs, long maxLatencyMs) {
+            this.writeQueueDepth = writeQueueDepth;
+            this.readQueueDepth = readQueueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.completedTasks = completedTasks;
+            this.averageLatencyMs = averageLatencyMs;
+            this.maxLatencyMs = maxLatencyMs;
+        }
+
+        @Override
+        public String toString() {
+            return "IoExecutor.Metrics{" +
+                    "writeQueue=" + writeQueueDepth +
+                    ", readQueue=" + readQueueDepth +
+                    ", maxQueue=" + maxQueueDepth +
+                    ", completed=" + completedTasks +
+                    ", avgLatencyMs=" + averageLatencyMs +
+                    ", maxLatencyMs=" + maxLatencyMs +
+                    '}';
+        }
+    }
+
+    public static IoExecutor getInstance() {
+        if (instance == null) {
+            synchronized (IoExecutor.class) {
+                if (instance == null) {
+                    instance = new IoExecutor();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private IoExecutor() {
+        writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("IoWriter", Thread.NORM_PRIORITY - 1));
+        readers = new ThreadPoolExecutor(READER_THREADS, READER_THREADS, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("IoReader", Thread.NORM_PRIORITY - 1));
+        readers.allowCoreThreadTimeOut(true);
+        urgent = new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("IoUrgent", Thread.NORM_PRIORITY));
+        urgent.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run a read on the reader pool and deliver its result on the main thread
+     */
+    public <T> void read(Task<T> task, Callback<T> callback) {
+        submit(readers, task, callback);
+    }
+
+    /**
+     * Run a write on the writer thread and deliver its result on the main thread
+     */
+    public <T> void write(Task<T> task, Callback<T> callback) {
+        submit(writer, task, callback);
+    }
+
+    /**
+     * Run a write on the writer thread without a result
+     */
+    public void write(final Runnable runnable) {
+        submit(writer, new Task<Void>() {
+            @Override
+            public Void run() {
+                runnable.run();
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * Run time-critical work on its own thread, ahead of queued writes. It must
+     * not write the database: SQLite would serialize the rows, but not the
+     * caches updated alongside them, so writes belong on {@link #write}.
+     */
+    public void urgent(final Runnable runnable) {
+        submit(urgent, new Task<Void>() {
+            @Override
+            public Void run() {
+                runnable.run();
+                return null;
+            }
+        }, null);
+    }
+
+    public Metrics getMetrics() {
+        long completed = completedTasks.get();
+        long average = completed == 0 ? 0 : totalLatencyNanos.get() / completed / 1000000;
+        return new Metrics(writer.getQueue().size(), readers.getQueue().size(), maxQueueDepth.get(),
+                completed, average, maxLatencyNanos.get() / 1000000);
+    }
+
+    private <T> void submit(ThreadPoolExecutor executor, final Task<T> task, final Callback<T> callback) {
+        final long enqueuedAt = System.nanoTime();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                T result = null;
+                try {
+                    result = task.run();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error running I/O task", e);
+                } finally {
+                    record(enqueuedAt);
+                }
+                
+                if (callback != null) {
+                    final T delivered = result;
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onResult(delivered);
+                        }
+                    });
+                }
+            }
+        });
+        
+        int depth = executor.getQueue().size();
+        int max;
+        while (depth > (max = maxQueueDepth.get())) {
+            if (maxQueueDepth.compareAndSet(max, depth)) {
+                break;
+            }
+        }
+    }
+
+    private void record(long enqueuedAt) {
+        long latency = System.nanoTime() - enqueuedAt;
+        completedTasks.incrementAndGet();
+        totalLatencyNanos.addAndGet(latency);
+        
+        long max;
+        while (latency > (max = maxLatencyNanos.get())) {
+            if (maxLatencyNanos.compareAndSet(max, latency)) {
+                break;
+            }
+        }
+        
+        if (latency / 1000000 >= SLOW_TASK_MS) {
+            Log.w(TAG, "Slow I/O task: " + latency / 1000000 + " ms, " + getMetrics());
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final int priority;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name, int priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setPriority(priority);
+            return thread;
+        }
+    }
+}
@@ -1,47 +1,240 @@
 package com.furaxx37.reveilletoi;
 
+import android.content.Context;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+import android.util.Log;
 import android.view.View;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
+import com.google.android.material.appbar.MaterialToolbar;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
+import android.widget.EditText;
 import android.widget.TextView;
+import android.widget.Toast;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.DateFormatSymbols;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.List;
+import java.util.Locale;
 
-public class MainActivity extends AppCompatActivity implements AlarmAdapter.OnAlarmInteractionListener {
+public class MainActivity extends AppCompatActivity
+        implements AlarmAdapter.OnAlarmInteractionListener, AlarmAdapter.PageLoader,
+        AlarmRepository.Listener {
+    
+    private static final String TAG = "MainActivity";
+    
+    // Wait for typing to pause before querying
+    private static final long SEARCH_DEBOUNCE_MS = 150;
+    private static final int SEARCH_LIMIT = 200;
+    
+    private static final int REQUEST_CODE_EXPORT_BINARY = 1003;
+    private static final int REQUEST_CODE_EXPORT_JSON = 1004;
+    private static final int REQUEST_CODE_IMPORT = 1005;
     
     private RecyclerView recyclerViewAlarms;
     private TextView textViewNoAlarms;
     private FloatingActionButton fabAddAlarm;
     private AlarmAdapter alarmAdapter;
-    private DatabaseHelper databaseHelper;
-    private List<Alarm> alarmList;
+    private AlarmRepository alarmRepository;
+    private IoExecutor ioExecutor;
+    private EditText editTextSearch;
+    private MaterialToolbar toolbar;
+    
+    private final Handler searchHandler = new Handler(Looper.getMainLooper());
+    private final Runnable searchRunnable = this::runSearch;
+    private String searchQuery = "";
+    // Identifies the latest search; results from older ones are dropped
+    private int searchSequence;
+    private CancellationSignal searchCancellation;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         
+        alarmRepository = AlarmRepository.getInstance(this);
+        ioExecutor = IoExecutor.getInstance();
+        
         initViews();
+        setupToolbar();
         setupRecyclerView();
         setupClickListeners();
+        setupSearch();
         
-        databaseHelper = new DatabaseHelper(this);
+        // Stay subscribed while the activity exists, so returning to it needs no reload
+        alarmRepository.addListener(this);
         loadAlarms();
     }
 
+    @Override
+    protected void onDestroy() {
+        alarmRepository.removeListener(this);
+        searchHandler.removeCallbacks(searchRunnable);
+        cancelRunningSearch();
+        super.onDestroy();
+    }
+
     private void initViews() {
         recyclerViewAlarms = findViewById(R.id.recyclerViewAlarms);
         textViewNoAlarms = findViewById(R.id.textViewNoAlarms);
         fabAddAlarm = findViewById(R.id.fabAddAlarm);
+        editTextSearch = findViewById(R.id.editTextSearch);
+    }
+
+    private void setupToolbar() {
+        toolbar = findViewById(R.id.toolbar);
+        toolbar.inflateMenu(R.menu.menu_main);
+        toolbar.setOnMenuItemClickListener(item -> {
+            int id = item.getItemId();
+            if (id == R.id.action_export_binary) {
+                createDocument("application/octet-stream", "reveille-toi.rta", REQUEST_CODE_EXPORT_BINARY);
+                return true;
+            } else if (id == R.id.action_export_json) {
+                createDocument("text/plain", "reveille-toi.jsonl", REQUEST_CODE_EXPORT_JSON);
+                return true;
+            } else if (id == R.id.action_profiles) {
+                showProfiles();
+                return true;
+            } else if (id == R.id.action_import) {
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("*/*");
+                startActivityForResult(intent, REQUEST_CODE_IMPORT);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void showProfiles() {
+        final AlarmProfiles alarmProfiles = AlarmProfiles.getInstance(this);
+        ioExecutor.read(alarmProfiles::getProfiles, profiles -> {
+            if (isFinishing() || profiles == null) {
+                return;
+            }
+            AlertDialog.Builder builder = new AlertDialog.Builder(this)
+                    .setTitle(R.string.profiles)
+                    .setNeutralButton(R.string.new_profile, (dialog, which) -> showCreateProfile())
+                    .setNegativeButton(R.string.cancel, null);
+            if (profiles.isEmpty()) {
+                builder.setMessage(R.string.no_profiles);
+            } else {
+                String[] names = new String[profiles.size()];
+                int checked = -1;
+                for (int i = 0; i < names.length; i++) {
+                    AlarmProfiles.Profile profile = profiles.get(i);
+                    names[i] = getResources().getQuantityString(R.plurals.profile_summary,
+                            profile.alarmCount, profile.name, profile.alarmCount);
+                    if (profile.active) {
+                        checked = i;
+                    }
+                }
+                builder.setSingleChoiceItems(names, checked, (dialog, which) -> {
+                    dialog.dismiss();
+                    switchProfile(profiles.get(which));
+                });
+            }
+            builder.show();
+        });
+    }
+
+    // Save the currently enabled alarms as a new profile
+    private void showCreateProfile() {
+        final EditText input = new EditText(this);
+        input.setHint(R.string.profile_name_hint);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.new_profile)
+                .setView(input)
+                .setPositiveButton(R.string.save_alarm, (dialog, which) -> {
+                    final String name = input.getText().toString().trim();
+                    if (name.isEmpty()) {
+                        return;
+                    }
+                    final Context appContext = getApplicationContext();
+                    ioExecutor.write(() -> {
+                        List<Long> alarmIds = new ArrayList<>();
+                        for (Alarm alarm : alarmRepository.getEnabledAlarms()) {
+                            alarmIds.add(alarm.getId());
+                        }
+                        AlarmProfiles.getInstance(appContext).createProfile(name, alarmIds);
+                    });
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
+    private void switchProfile(final AlarmProfiles.Profile profile) {
+        final Context appContext = getApplicationContext();
+        ioExecutor.write(() -> {
+            // One transaction, one published change and one scheduler pass for the whole switch
+            List<Alarm> changed = alarmRepository.switchProfile(profile.id);
+            if (changed != null) {
+                AlarmScheduler.scheduleAlarms(appContext, changed);
+            }
+            return changed;
+        }, changed -> {
+            if (changed != null) {
+                Toast.makeText(appContext, getString(R.string.profile_activated, profile.name),
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    private void createDocument(String mimeType, String fileName, int requestCode) {
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType(mimeType);
+        intent.putExtra(Intent.EXTRA_TITLE, fileName);
+        startActivityForResult(intent, requestCode);
+    }
+
+    private void transferAlarms(final Uri uri, final int requestCode) {
+        final Context appContext = getApplicationContext();
+        ioExecutor.write(() -> {
+            try {
+                if (requestCode == REQUEST_CODE_IMPORT) {
+                    try (InputStream in = appContext.getContentResolver().openInputStream(uri)) {
+                        return AlarmTransfer.importAlarms(appContext, in);
+                    }
+                }
+                try (OutputStream out = appContext.getContentResolver().openOutputStream(uri)) {
+                    return requestCode == REQUEST_CODE_EXPORT_BINARY
+                            ? AlarmTransfer.exportBinary(appContext, out)
+                            : AlarmTransfer.exportJsonLines(appContext, out);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error transferring alarms", e);
+                return null;
+            }
+        }, stats -> {
+            String message;
+            if (stats == null) {
+                message = getString(R.string.transfer_failed);
+            } else if (requestCode == REQUEST_CODE_IMPORT) {
+                message = getString(R.string.alarms_imported, stats.alarms);
+            } else {
+                message = getString(R.string.alarms_exported, stats.alarms);
+            }
+            Toast.makeText(appContext, message, Toast.LENGTH_SHORT).show();
+        });
     }
 
     private void setupRecyclerView() {
-        alarmList = new ArrayList<>();
-        alarmAdapter = new AlarmAdapter(alarmList, this);
+        alarmAdapter = new AlarmAdapter(new ArrayList<>(), this);
+        alarmAdapter.setPageLoader(this);
         recyclerViewAlarms.setLayoutManager(new LinearLayoutManager(this));
         recyclerViewAlarms.setAdapter(alarmAdapter);
     }
@@ -56,12 +249,109 @@ public class MainActivity extends AppCompatActivity implements AlarmAdapter.OnAl
         });
     }
 
+    private void setupSearch() {
+        editTextSearch.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                searchQuery = s.toString().trim();
+                searchHandler.removeCallbacks(searchRunnable);
+                if (searchQuery.isEmpty()) {
+                    loadAlarms();
+                } else {
+                    searchHandler.postDelayed(searchRunnable, SEARCH_DEBOUNCE_MS);
+                }
+            }
+        });
+    }
+
     private void loadAlarms() {
-        alarmList.clear();
-        alarmList.addAll(databaseHelper.getAllAlarms());
-        alarmAdapter.notifyDataSetChanged();
+        if (!searchQuery.isEmpty()) {
+            runSearch();
+            return;
+        }
+        searchSequence++;
+        cancelRunningSearch();
+        alarmAdapter.reload();
+        updateNextAlarm();
+    }
+
+    // Show the next enabled alarm under the title, with its weekday unless it is today or tomorrow
+    private void updateNextAlarm() {
+        Calendar now = Calendar.getInstance();
+        // Calendar counts from Sunday = 1, the index from Monday = 0
+        final int today = (now.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+        final int nowMinute = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+        ioExecutor.read(() -> alarmRepository.getNextAlarmInWeek(today, nowMinute), next -> {
+            if (isFinishing() || next == null) {
+                return;
+            }
+            if (next < 0) {
+                toolbar.setSubtitle(null);
+                return;
+            }
+            int day = next / MinuteOfDayIndex.MINUTES_PER_DAY;
+            int minute = next % MinuteOfDayIndex.MINUTES_PER_DAY;
+            String time = String.format(Locale.getDefault(), "%02d:%02d", minute / 60, minute % 60);
+            int daysAhead = (day - today + 7) % 7;
+            if (daysAhead > 1 || (daysAhead == 0 && minute <= nowMinute)) {
+                time = DateFormatSymbols.getInstance().getWeekdays()[(day + 1) % 7 + 1] + " " + time;
+            }
+            toolbar.setSubtitle(getString(R.string.alarm_set_for, time));
+        });
+    }
+
+    private void runSearch() {
+        cancelRunningSearch();
+        final int sequence = ++searchSequence;
+        final String query = searchQuery;
+        final CancellationSignal cancellation = new CancellationSignal();
+        searchCancellation = cancellation;
         
-        if (alarmList.isEmpty()) {
+        ioExecutor.read(() -> alarmRepository.searchAlarms(query, SEARCH_LIMIT, cancellation), results -> {
+            if (sequence != searchSequence || results == null || isFinishing()) {
+                return;
+            }
+            searchCancellation = null;
+            alarmAdapter.showAlarms(results);
+            updateEmptyState();
+        });
+    }
+
+    private void cancelRunningSearch() {
+        if (searchCancellation != null) {
+            searchCancellation.cancel();
+            searchCancellation = null;
+        }
+    }
+
+    @Override
+    public void loadPage(final Alarm lastLoaded, final int limit) {
+        final int generation = alarmAdapter.getGeneration();
+        ioExecutor.read(() -> {
+            if (lastLoaded == null) {
+                return alarmRepository.getAlarmsAfter(-1, -1, -1, limit);
+            }
+            return alarmRepository.getAlarmsAfter(lastLoaded.getHour(), lastLoaded.getMinute(),
+                    lastLoaded.getId(), limit);
+        }, page -> {
+            if (isFinishing() || page == null) {
+                return;
+            }
+            alarmAdapter.appendPage(generation, page);
+            updateEmptyState();
+        });
+    }
+
+    private void updateEmptyState() {
+        if (alarmAdapter.getItemCount() == 0) {
             textViewNoAlarms.setVisibility(View.VISIBLE);
             recyclerViewAlarms.setVisibility(View.GONE);
         } else {
@@ -71,63 +361,134 @@ public class MainActivity extends AppCompatActivity implements AlarmAdapter.OnAl
     }
 
     @Override
-    protected void onResume() {
-        super.onResume();
-        loadAlarms();
+    public void onAlarmsChanged(AlarmRepository.ChangeSet changes) {
+        if (changes.reset) {
+            loadAlarms();
+            return;
+        }
+        updateNextAlarm();
+        if (!searchQuery.isEmpty()) {
+            // Any change can add or drop matches, so search again
+            runSearch();
+            return;
+        }
+        for (long alarmId : changes.removed) {
+            alarmAdapter.removeAlarmById(alarmId);
+        }
+        // Writes went through the cache, so these lookups never hit the disk
+        for (long alarmId : changes.added) {
+            upsertFromCache(alarmId);
+        }
+        for (long alarmId : changes.updated) {
+            upsertFromCache(alarmId);
+        }
+        updateEmptyState();
+    }
+
+    private void upsertFromCache(long alarmId) {
+        Alarm alarm = alarmRepository.peekAlarm(alarmId);
+        if (alarm != null) {
+            alarmAdapter.upsertAlarm(alarm);
+        }
     }
 
     @Override
-    public void onAlarmToggle(Alarm alarm, boolean isEnabled) {
+    public void onAlarmToggle(final Alarm alarm, final boolean isEnabled) {
         alarm.setEnabled(isEnabled);
-        databaseHelper.updateAlarm(alarm);
-        
-        if (isEnabled) {
-            AlarmScheduler.scheduleAlarm(this, alarm);
-        } else {
-            AlarmScheduler.cancelAlarm(this, alarm);
-        }
+        final Context appContext = getApplicationContext();
+        ioExecutor.write(() -> {
+            if (!alarmRepository.setAlarmEnabled(alarm.getId(), isEnabled)) {
+                Log.e(TAG, "Alarm " + alarm.getId() + " not toggled, leaving its schedule alone");
+                return false;
+            }
+            if (isEnabled) {
+                AlarmScheduler.scheduleAlarm(appContext, alarm);
+            } else {
+                AlarmScheduler.cancelAlarm(appContext, alarm);
+            }
+            return true;
+        }, toggled -> {
+            if (!Boolean.TRUE.equals(toggled) && !isFinishing()) {
+                // Put the switch back to what is stored
+                alarm.setEnabled(!isEnabled);
+                alarmAdapter.upsertAlarm(alarm);
+            }
+        });
     }
 
     @Override
-    public void onAlarmDelete(Alarm alarm) {
-        AlarmScheduler.cancelAlarm(this, alarm);
-        databaseHelper.deleteAlarm(alarm.getId());
-        loadAlarms();
+    public void onAlarmDelete(final Alarm alarm) {
+        alarmAdapter.removeAlarmById(alarm.getId());
+        updateEmptyState();
+        
+        final Context appContext = getApplicationContext();
+        ioExecutor.write(() -> {
+            AlarmScheduler.cancelAlarm(appContext, alarm);
+            alarmRepository.deleteAlarm(alarm.getId());
+        });
     }
 
     @Override
     public void onAlarmEdit(Alarm alarm) {
         Intent intent = new Intent(MainActivity.this, AddAlarmActivity.class);
-        intent.putExtra("alarm_id", alarm.getId());
+        intent.putExtra(AddAlarmActivity.EXTRA_IS_EDIT, true);
+        intent.putExtra(AddAlarmActivity.EXTRA_ALARM, alarm);
         startActivityForResult(intent, 1002); // REQUEST_CODE_EDIT_ALARM
     }
 
+    // Whether two versions of an alarm would queue the same trigger
+    private static boolean isSameSchedule(Alarm a, Alarm b) {
+        return a.isEnabled() == b.isEnabled()
+                && a.getHour() == b.getHour()
+                && a.getMinute() == b.getMinute()
+                && a.getRepeatDays() == b.getRepeatDays()
+                && TextUtils.equals(a.getLabel(), b.getLabel())
+                && TextUtils.equals(a.getRingtoneUri(), b.getRingtoneUri());
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
         
         if (resultCode == RESULT_OK && data != null) {
-            if (requestCode == 1001) { // REQUEST_CODE_ADD_ALARM
+            if (requestCode == REQUEST_CODE_EXPORT_BINARY || requestCode == REQUEST_CODE_EXPORT_JSON
+                    || requestCode == REQUEST_CODE_IMPORT) {
+                if (data.getData() != null) {
+                    transferAlarms(data.getData(), requestCode);
+                }
+            } else if (requestCode == 1001) { // REQUEST_CODE_ADD_ALARM
                 // Handle new alarm creation
-                Alarm newAlarm = (Alarm) data.getSerializableExtra(AddAlarmActivity.EXTRA_ALARM);
+                final Alarm newAlarm = (Alarm) data.getSerializableExtra(AddAlarmActivity.EXTRA_ALARM);
                 if (newAlarm != null) {
-                    long alarmId = databaseHelper.insertAlarm(newAlarm);
-                    newAlarm.setId(alarmId);
-                    if (newAlarm.isEnabled()) {
-                        AlarmScheduler.scheduleAlarm(this, newAlarm);
-                    }
-                    loadAlarms();
+                    final Context appContext = getApplicationContext();
+                    ioExecutor.write(() -> {
+                        long alarmId = alarmRepository.insertAlarm(newAlarm);
+                        if (alarmId == -1) {
+                            Log.e(TAG, "Alarm not saved, not scheduling it");
+                            return;
+                        }
+                        newAlarm.setId(alarmId);
+                        if (newAlarm.isEnabled()) {
+                            AlarmScheduler.scheduleAlarm(appContext, newAlarm);
+                        }
+                    });
                 }
             } else if (requestCode == 1002) { // REQUEST_CODE_EDIT_ALARM
                 // Handle alarm editing
-                Alarm updatedAlarm = (Alarm) data.getSerializableExtra("alarm");
+                final Alarm updatedAlarm = (Alarm) data.getSerializableExtra(AddAlarmActivity.EXTRA_ALARM);
                 if (updatedAlarm != null) {
-                    databaseHelper.updateAlarm(updatedAlarm);
-                    AlarmScheduler.cancelAlarm(this, updatedAlarm);
-                    if (updatedAlarm.isEnabled()) {
-                        AlarmScheduler.scheduleAlarm(this, updatedAlarm);
-                    }
-                    loadAlarms();
+                    final Context appContext = getApplicationContext();
+                    ioExecutor.write(() -> {
+                        Alarm previous = alarmRepository.getAlarm(updatedAlarm.getId());
+                        if (!alarmRepository.updateAlarm(updatedAlarm)) {
+                            Log.e(TAG, "Alarm " + updatedAlarm.getId() + " not saved, not rescheduling it");
+                            return;
+                        }
+                        // Scheduling replaces the queued trigger; skip it when nothing it uses changed
+                        if (previous == null || !isSameSchedule(previous, updatedAlarm)) {
+                            AlarmScheduler.scheduleAlarm(appContext, updatedAlarm);
+                        }
+                    });
                 }
             }
         }
@@ -0,0 +1,250 @@
+package com.furaxx37.reveilletoi;
+
+import java.util.Arrays;
+
+/**
+ * Enabled alarms bucketed by minute of day (hour * 60 + minute). Not
+ * thread-safe; {@link AlarmRepository} guards it with its own lock.
+ */
+final class MinuteOfDayIndex {
+
+    static final int MINUTES_PER_DAY = 24 * 60;
+    static final int DAYS_PER_WEEK = 7;
+
+    private static final int WORDS = (MINUTES_PER_DAY + 63) / 64;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Minutes holding at least one alarm; the next one is at most WORDS words away, found without allocating
+    private final long[] occupied = new long[WORDS];
+    // WORDS words per weekday, Monday first, from the alarms' repeat days; one-shot alarms count on every day
+    private final long[] occupiedByDay = new long[DAYS_PER_WEEK * WORDS];
+    private final long[][] slotIds = new long[MINUTES_PER_DAY][];
+    private final int[] slotCounts = new int[MINUTES_PER_DAY];
+    // Minute of day and days of every indexed alarm, to find it again on removal:
+    // a linear probing table of ids, minute + 1 (0 marks a free cell) and day mask
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private int[] slotsPlusOne = new int[INITIAL_CAPACITY];
+    private int[] dayMasks = new int[INITIAL_CAPACITY];
+    private int size;
+
+    static int minuteOfDay(int hour, int minute) {
+        return hour * 60 + minute;
+    }
+
+    /**
+     * Index an alarm at a minute of day, on the days in {@code repeatDays} or
+     * every day for a one-shot alarm, moving it if it was already indexed
+     */
+    void put(long alarmId, int minuteOfDay, int repeatDays) {
+        int days = Recurrence.isRepeating(repeatDays) ? repeatDays : Recurrence.EVERY_DAY;
+        int cell = find(alarmId);
+        if (slotsPlusOne[cell] != 0) {
+            int current = slotsPlusOne[cell] - 1;
+            if (current == minuteOfDay) {
+                if (dayMasks[cell] != days) {
+                    dayMasks[cell] = days;
+                    updateDays(minuteOfDay);
+                }
+                return;
+            }
+            removeFromSlot(alarmId, current);
+            slotsPlusOne[cell] = minuteOfDay + 1;
+            dayMasks[cell] = days;
+            updateDays(current);
+        } else {
+            keys[cell] = alarmId;
+            slotsPlusOne[cell] = minuteOfDay + 1;
+            dayMasks[cell] = days;
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+        }
+
+        long[] ids = slotIds[minuteOfDay];
+        int count = slotCounts[minuteOfDay];
+        if (ids == null) {
+            ids = new long[2];
+        } else if (count == ids.length) {
+            ids = Arrays.copyOf(ids, count * 2);
+        }
+        ids[count] = alarmId;
+        slotIds[minuteOfDay] = ids;
+        slotCounts[minuteOfDay] = count + 1;
+        occupied[minuteOfDay >>> 6] |= 1L << minuteOfDay;
+        updateDays(minuteOfDay);
+    }
+
+    void remove(long alarmId) {
+        int cell = find(alarmId);
+        if (slotsPlusOne[cell] != 0) {
+            int minuteOfDay = slotsPlusOne[cell] - 1;
+            removeFromSlot(alarmId, minuteOfDay);
+            deleteCell(cell);
+            size--;
+            updateDays(minuteOfDay);
+        }
+    }
+
+    void clear() {
+        Arrays.fill(occupied, 0);
+        Arrays.fill(occupiedByDay, 0);
+        Arrays.fill(slotIds, null);
+        Arrays.fill(slotCounts, 0);
+        Arrays.fill(slotsPlusOne, 0);
+        size = 0;
+    }
+
+    /**
+     * First occupied minute strictly after {@code minuteOfDay}, wrapping past
+     * midnight and ending with {@code minuteOfDay} itself. -1 when empty.
+     * Repeat days are ignored.
+     */
+    int nextAfter(int minuteOfDay) {
+        int start = minuteOfDay + 1;
+        int found = firstSetFrom(occupied, 0, start == MINUTES_PER_DAY ? 0 : start);
+        if (found < 0 && start < MINUTES_PER_DAY) {
+            found = firstSetFrom(occupied, 0, 0);
+        }
+        return found;
+    }
+
+    /**
+     * First minute strictly after {@code minuteOfDay} on {@code dayOfWeek}
+     * (0 for Monday) at which an alarm fires, wrapping past the end of the week
+     * and ending with the same minute a week later. Returned as a minute of
+     * the week, day * 1440 + minute of day, or -1 when empty.
+     */
+    int nextInWeekAfter(int dayOfWeek, int minuteOfDay) {
+        for (int i = 0; i <= DAYS_PER_WEEK; i++) {
+            int day = (dayOfWeek + i) % DAYS_PER_WEEK;
+            int from = i == 0 ? minuteOfDay + 1 : 0;
+            int found = from < MINUTES_PER_DAY ? firstSetFrom(occupiedByDay, day * WORDS, from) : -1;
+            if (found >= 0 && (i < DAYS_PER_WEEK || found <= minuteOfDay)) {
+                return day * MINUTES_PER_DAY + found;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Number of alarms at a minute of day
+     */
+    int countAt(int minuteOfDay) {
+        return slotCounts[minuteOfDay];
+    }
+
+    /**
+     * Id of the {@code index}-th alarm at a minute of day, in no particular order
+     */
+    long idAt(int minuteOfDay, int index) {
+        return slotIds[minuteOfDay][index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    // First set bit at or after from in the WORDS words at base, without wrapping
+    private static int firstSetFrom(long[] bitSet, int base, int from) {
+        int word = from >>> 6;
+        long bits = bitSet[base + word] & (-1L << from);
+        while (true) {
+            if (bits != 0) {
+                int bit = (word << 6) + Long.numberOfTrailingZeros(bits);
+                return bit < MINUTES_PER_DAY ? bit : -1;
+            }
+            if (++word == WORDS) {
+                return -1;
+            }
+            bits = bitSet[base + word];
+        }
+    }
+
+    // Set a minute's weekday bits from the days of the alarms left in it
+    private void updateDays(int minuteOfDay) {
+        int days = 0;
+        long[] ids = slotIds[minuteOfDay];
+        for (int i = 0; i < slotCounts[minuteOfDay]; i++) {
+            days |= dayMasks[find(ids[i])];
+        }
+        int word = minuteOfDay >>> 6;
+        long bit = 1L << minuteOfDay;
+        for (int day = 0; day < DAYS_PER_WEEK; day++) {
+            if ((days & (1 << day)) != 0) {
+                occupiedByDay[day * WORDS + word] |= bit;
+            } else {
+                occupiedByDay[day * WORDS + word] &= ~bit;
+            }
+        }
+    }
+
+    // Cell holding alarmId, or the free cell where it would go
+    private int find(long alarmId) {
+        int mask = keys.length - 1;
+        int cell = hash(alarmId) & mask;
+        while (slotsPlusOne[cell] != 0 && keys[cell] != alarmId) {
+            cell = (cell + 1) & mask;
+        }
+        return cell;
+    }
+
+    // Free a cell, shifting back later entries of its probe run so lookups don't stop early
+    private void deleteCell(int cell) {
+        int mask = keys.length - 1;
+        int next = cell;
+        while (true) {
+            next = (next + 1) & mask;
+            if (slotsPlusOne[next] == 0) {
+                break;
+            }
+            int home = hash(keys[next]) & mask;
+            // Move it unless its home lies cyclically in (cell, next]
+            if (cell <= next ? (home <= cell || home > next) : (home <= cell && home > next)) {
+                keys[cell] = keys[next];
+                slotsPlusOne[cell] = slotsPlusOne[next];
+                dayMasks[cell] = dayMasks[next];
+                cell = next;
+            }
+        }
+        slotsPlusOne[cell] = 0;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldSlots = slotsPlusOne;
+        int[] oldDays = dayMasks;
+        keys = new long[oldKeys.length * 2];
+        slotsPlusOne = new int[oldKeys.length * 2];
+        dayMasks = new int[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldSlots[i] != 0) {
+                int cell = find(oldKeys[i]);
+                keys[cell] = oldKeys[i];
+                slotsPlusOne[cell] = oldSlots[i];
+                dayMasks[cell] = oldDays[i];
+            }
+        }
+    }
+
+    private static int hash(long alarmId) {
+        long h = alarmId * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void removeFromSlot(long alarmId, int minuteOfDay) {
+        long[] ids = slotIds[minuteOfDay];
+        int count = slotCounts[minuteOfDay];
+        for (int i = 0; i < count; i++) {
+            if (ids[i] == alarmId) {
+                ids[i] = ids[count - 1];
+                count--;
+                break;
+            }
+        }
+        slotCounts[minuteOfDay] = count;
+        if (count == 0) {
+            slotIds[minuteOfDay] = null;
+            occupied[minuteOfDay >>> 6] &= ~(1L << minuteOfDay);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.furaxx37.reveilletoi;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.util.Log;
+import java.nio.ByteBuffer;
+
+/**
+ * Loops a ringtone from {@link RingtoneCache} through an {@link AudioTrack}. Not
+ * thread-safe; {@link #start} and {@link #release} are called from the main thread.
+ */
+final class PcmRingtonePlayer {
+
+    private static final String TAG = "PcmRingtonePlayer";
+
+    // About 20 ms of 48 kHz stereo
+    private static final int CHUNK_BYTES = 4096;
+
+    private final RingtoneCache.Entry ringtone;
+    private final AudioTrack track;
+    // Streams the mapped samples in small chunks, so sound starts with the first chunk
+    private Thread writer;
+    private volatile boolean playing;
+
+    /**
+     * Create the track. Throws IllegalArgumentException or
+     * UnsupportedOperationException if the format can't be played.
+     */
+    PcmRingtonePlayer(RingtoneCache.Entry ringtone) {
+        this.ringtone = ringtone;
+        int channelMask = ringtone.channelCount == 1
+            ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        int minBufferSize = AudioTrack.getMinBufferSize(ringtone.sampleRate, channelMask,
+            AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0 || ringtone.channelCount < 1 || ringtone.channelCount > 2) {
+            throw new IllegalArgumentException("Unsupported format: " + ringtone.sampleRate + " Hz, " +
+                ringtone.channelCount + " channels");
+        }
+
+        AudioAttributes attributes = new AudioAttributes.Builder()
+            .setUsage(AudioAttributes.USAGE_ALARM)
+            .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+            .build();
+        AudioFormat format = new AudioFormat.Builder()
+            .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+            .setSampleRate(ringtone.sampleRate)
+            .setChannelMask(channelMask)
+            .build();
+        track = new AudioTrack(attributes, format, Math.max(minBufferSize * 2, CHUNK_BYTES * 2),
+            AudioTrack.MODE_STREAM, AudioManager.AUDIO_SESSION_ID_GENERATE);
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            track.release();
+            throw new UnsupportedOperationException("AudioTrack failed to initialize");
+        }
+    }
+
+    void start() {
+        if (playing) {
+            return;
+        }
+        playing = true;
+        track.play();
+        writer = new Thread(this::writeLoop, TAG);
+        writer.setPriority(Thread.MAX_PRIORITY);
+        writer.start();
+    }
+
+    void release() {
+        playing = false;
+        // Unblocks a pending write
+        track.pause();
+        track.flush();
+        if (writer != null) {
+            try {
+                writer.join(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+        track.stop();
+        track.release();
+    }
+
+    private void writeLoop() {
+        ByteBuffer samples = ringtone.pcm.duplicate();
+        while (playing) {
+            if (!samples.hasRemaining()) {
+                samples.rewind();
+            }
+            ByteBuffer chunk = samples.duplicate();
+            chunk.limit(Math.min(samples.limit(), samples.position() + CHUNK_BYTES));
+            int written = track.write(chunk, chunk.remaining(), AudioTrack.WRITE_BLOCKING);
+            if (written < 0) {
+                Log.e(TAG, "AudioTrack write failed: " + written);
+                return;
+            }
+            samples.position(samples.position() + written);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.furaxx37.reveilletoi;
+
+/**
+ * Days-of-week repetition for alarms, as a mask with one bit per weekday.
+ */
+public final class Recurrence {
+
+    // Monday first; occurrences are computed by TriggerTimeEngine
+    public static final int MONDAY = 1;
+    public static final int TUESDAY = 1 << 1;
+    public static final int WEDNESDAY = 1 << 2;
+    public static final int THURSDAY = 1 << 3;
+    public static final int FRIDAY = 1 << 4;
+    public static final int SATURDAY = 1 << 5;
+    public static final int SUNDAY = 1 << 6;
+    public static final int EVERY_DAY = 0x7F;
+    // Fires at the next hh:mm whatever the day
+    public static final int ONE_SHOT = 0;
+
+    private Recurrence() {
+    }
+
+    /**
+     * Weekday of an epoch day, 0 for Monday through 6 for Sunday
+     */
+    static int dayOfWeek(long epochDay) {
+        // 1970-01-01 was a Thursday
+        int day = (int) ((epochDay + 3) % 7);
+        return day < 0 ? day + 7 : day;
+    }
+
+    public static boolean isRepeating(int repeatDays) {
+        return repeatDays != ONE_SHOT;
+    }
+}
@@ -0,0 +1,59 @@
+package com.furaxx37.reveilletoi;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Finishes a reschedule that {@link BootReceiver} couldn't complete within its
+ * time budget: queues the remaining alarms, stores the triggers left stale and
+ * rewrites the snapshot.
+ */
+public class RescheduleJobService extends JobService {
+
+    private static final String TAG = "RescheduleJobService";
+
+    private static final int JOB_ID = 1;
+    private static final long MAX_DELAY_MS = 60 * 1000L;
+
+    /**
+     * Schedule the follow-up job, replacing one already pending
+     */
+    public static void schedule(Context context) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null) {
+            return;
+        }
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, RescheduleJobService.class))
+            .setOverrideDeadline(MAX_DELAY_MS)
+            .build();
+        if (jobScheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+            Log.e(TAG, "Could not schedule follow-up reschedule");
+        }
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final Context appContext = getApplicationContext();
+        IoExecutor.getInstance().write(() -> {
+            try {
+                AlarmScheduler.finishLoading(appContext, Long.MAX_VALUE);
+                AlarmSnapshot.getInstance(appContext).rewrite();
+                Log.d(TAG, "Finished rescheduling");
+            } finally {
+                jobFinished(params, false);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The write can't be interrupted; if it didn't finish, the queue loads on next use
+        return false;
+    }
+}
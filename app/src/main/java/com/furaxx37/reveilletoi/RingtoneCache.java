@@ -0,0 +1,400 @@
+package com.furaxx37.reveilletoi;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.MediaStore;
+import android.util.Log;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ringtones decoded ahead of time to raw 16-bit PCM, so an alarm can ring
+ * without going through the media provider or a decoder.
+ */
+public final class RingtoneCache {
+
+    private static final String TAG = "RingtoneCache";
+    private static final String DIR_NAME = "ringtone_cache";
+    private static final String SUFFIX = ".pcm";
+
+    // Big-endian header: magic, format version, sample rate, channel count and the URI as
+    // modified UTF-8, then the PCM samples in native byte order
+    private static final int MAGIC = 0x5254504d; // "RTPM"
+    private static final int FORMAT_VERSION = 1;
+
+    // Oldest-used files are evicted past this
+    static final long MAX_CACHE_BYTES = 24L * 1024 * 1024;
+    // About 45 s of 44.1 kHz stereo; longer ringtones are cut, since they loop anyway
+    static final long MAX_PCM_BYTES = 8L * 1024 * 1024;
+
+    private static final long CODEC_TIMEOUT_US = 10000;
+
+    private static volatile RingtoneCache instance;
+
+    private final Context appContext;
+    // Device-protected, so alarms ringing before unlock can use it
+    private final File dir;
+    // One ringtone at a time on a thread of its own, so decoding never holds up the I/O pools
+    private final ThreadPoolExecutor decoder;
+    // URIs queued on the decoder and not prepared yet
+    private final Set<String> pending = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * A decoded ringtone, mapped read-only
+     */
+    public static final class Entry {
+        public final int sampleRate;
+        public final int channelCount;
+        public final MappedByteBuffer pcm;
+
+        Entry(int sampleRate, int channelCount, MappedByteBuffer pcm) {
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+            this.pcm = pcm;
+        }
+    }
+
+    public static RingtoneCache getInstance(Context context) {
+        if (instance == null) {
+            synchronized (RingtoneCache.class) {
+                if (instance == null) {
+                    instance = new RingtoneCache(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private RingtoneCache(Context appContext) {
+        this.appContext = appContext;
+        Context storageContext = appContext;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            storageContext = appContext.createDeviceProtectedStorageContext();
+        }
+        this.dir = new File(storageContext.getFilesDir(), DIR_NAME);
+        this.decoder = new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), runnable -> {
+                Thread thread = new Thread(runnable, "RingtoneDecoder");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+        this.decoder.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Decode a ringtone into the cache on the decoder thread, unless an
+     * up-to-date copy is already there or it is already queued
+     */
+    public void prepareAsync(final String ringtoneUri) {
+        if (ringtoneUri == null || ringtoneUri.isEmpty() || !pending.add(ringtoneUri)) {
+            return;
+        }
+        decoder.execute(() -> {
+            try {
+                prepare(ringtoneUri);
+            } finally {
+                pending.remove(ringtoneUri);
+            }
+        });
+    }
+
+    /**
+     * {@link #prepareAsync} for each of several ringtones
+     */
+    public void prepareAllAsync(Collection<String> ringtoneUris) {
+        for (String ringtoneUri : ringtoneUris) {
+            prepareAsync(ringtoneUri);
+        }
+    }
+
+    /**
+     * Map the cached copy of a ringtone, or return null if there is none.
+     * Reads only the cache file, never the ringtone's source.
+     */
+    public Entry open(String ringtoneUri) {
+        File file = find(ringtoneUri);
+        if (file == null) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            in = new DataInputStream(stream);
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                Log.w(TAG, "Ignoring cache file with unknown format: " + file.getName());
+                return null;
+            }
+            int sampleRate = in.readInt();
+            int channelCount = in.readInt();
+            if (!ringtoneUri.equals(in.readUTF())) {
+                // Another URI with the same key
+                return null;
+            }
+
+            FileChannel channel = stream.getChannel();
+            long dataStart = channel.position();
+            MappedByteBuffer pcm = channel.map(FileChannel.MapMode.READ_ONLY, dataStart, channel.size() - dataStart);
+            file.setLastModified(System.currentTimeMillis());
+            return new Entry(sampleRate, channelCount, pcm);
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening cached ringtone", e);
+            return null;
+        } finally {
+            // The mapping stays valid after the file is closed
+            try {
+                if (in != null) {
+                    in.close();
+                } else if (stream != null) {
+                    stream.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Files are keyed by URI and the source's modification stamp, so an edited ringtone is
+    // decoded again and the stale copy dropped
+    private synchronized void prepare(String ringtoneUri) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Could not create " + dir);
+            return;
+        }
+
+        String prefix = key(ringtoneUri) + "_";
+        File target = new File(dir, prefix + modificationStamp(Uri.parse(ringtoneUri)) + SUFFIX);
+        if (target.exists()) {
+            target.setLastModified(System.currentTimeMillis());
+            return;
+        }
+
+        long start = System.nanoTime();
+        File temp = new File(dir, target.getName() + ".tmp");
+        try {
+            if (!decode(ringtoneUri, temp) || !temp.renameTo(target)) {
+                temp.delete();
+                return;
+            }
+        } catch (IOException | RuntimeException e) {
+            // Decoders throw IllegalStateException for unsupported content
+            Log.e(TAG, "Error decoding ringtone", e);
+            temp.delete();
+            return;
+        }
+        Log.d(TAG, "Decoded " + target.length() + " bytes in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        // Older decodes of the same ringtone
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(prefix) && !file.equals(target)) {
+                    file.delete();
+                }
+            }
+        }
+        evict();
+    }
+
+    private boolean decode(String ringtoneUri, File out) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        RandomAccessFile file = null;
+        try {
+            extractor.setDataSource(appContext, Uri.parse(ringtoneUri), null);
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat trackFormat = extractor.getTrackFormat(i);
+                String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = trackFormat;
+                    break;
+                }
+            }
+            if (format == null) {
+                Log.w(TAG, "No audio track in " + ringtoneUri);
+                return false;
+            }
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            // Header first with the input format; rewritten at the end if the decoder reports another
+            file = new RandomAccessFile(out, "rw");
+            file.setLength(0);
+            writeHeader(file, sampleRate, channelCount, ringtoneUri);
+            FileChannel channel = file.getChannel();
+            channel.position(file.getFilePointer());
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            boolean inputDone = false;
+            long written = 0;
+            while (written < MAX_PCM_BYTES) {
+                if (!inputDone) {
+                    int inputIndex = codec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        int size = extractor.readSampleData(codec.getInputBuffer(inputIndex), 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inputIndex, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int outputIndex = codec.dequeueOutputBuffer(info, CODEC_TIMEOUT_US);
+                if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channelCount = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                } else if (outputIndex >= 0) {
+                    ByteBuffer output = codec.getOutputBuffer(outputIndex);
+                    if (output != null && info.size > 0) {
+                        output.position(info.offset);
+                        output.limit(info.offset + info.size);
+                        while (output.hasRemaining()) {
+                            written += channel.write(output);
+                        }
+                    }
+                    codec.releaseOutputBuffer(outputIndex, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                }
+            }
+            if (written == 0) {
+                return false;
+            }
+
+            file.seek(0);
+            writeHeader(file, sampleRate, channelCount, ringtoneUri);
+            file.getFD().sync();
+            return true;
+        } finally {
+            if (codec != null) {
+                codec.release();
+            }
+            extractor.release();
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    private static void writeHeader(RandomAccessFile file, int sampleRate, int channelCount, String ringtoneUri)
+            throws IOException {
+        file.writeInt(MAGIC);
+        file.writeInt(FORMAT_VERSION);
+        file.writeInt(sampleRate);
+        file.writeInt(channelCount);
+        file.writeUTF(ringtoneUri);
+    }
+
+    // Drop the least recently used files until the cache fits
+    private void evict() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= MAX_CACHE_BYTES) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (total <= MAX_CACHE_BYTES) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                Log.d(TAG, "Evicted " + file.getName());
+            }
+        }
+    }
+
+    private File find(String ringtoneUri) {
+        if (ringtoneUri == null || ringtoneUri.isEmpty()) {
+            return null;
+        }
+        String prefix = key(ringtoneUri) + "_";
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return null;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && name.endsWith(SUFFIX)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    // When the source was last changed, or 0 if that can't be told
+    private long modificationStamp(Uri uri) {
+        if ("file".equals(uri.getScheme())) {
+            return new File(uri.getPath()).lastModified();
+        }
+        Cursor cursor = null;
+        try {
+            cursor = appContext.getContentResolver().query(uri,
+                new String[]{MediaStore.MediaColumns.DATE_MODIFIED}, null, null, null);
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+        } catch (RuntimeException e) {
+            // Providers without the column throw
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return 0;
+    }
+
+    // 64-bit FNV-1a of the URI, as a file name prefix
+    private static String key(String ringtoneUri) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < ringtoneUri.length(); i++) {
+            hash ^= ringtoneUri.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return Long.toHexString(hash);
+    }
+}
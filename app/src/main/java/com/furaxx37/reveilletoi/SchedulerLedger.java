@@ -0,0 +1,226 @@
+package com.furaxx37.reveilletoi;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.AtomicFile;
+import android.util.Log;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What is actually registered with the system alarm service, and the pending
+ * snoozes, kept in device-protected storage so they survive process death.
+ * Not thread-safe; {@link AlarmScheduler} serializes access.
+ */
+final class SchedulerLedger {
+
+    private static final String TAG = "SchedulerLedger";
+    private static final String FILE_NAME = "scheduler_ledger.bin";
+
+    private static final int MAGIC = 0x52544c31; // "RTL1"
+    private static final int FORMAT_VERSION = 2;
+    // Before snoozes were kept
+    private static final int FORMAT_VERSION_NO_SNOOZES = 1;
+
+    // Codes below this were used by earlier versions: 0 for dispatch, alarm ids for per-alarm intents
+    private static final int FIRST_REQUEST_CODE = 1 << 30;
+
+    static final long NOT_REGISTERED = -1;
+
+    private final AtomicFile file;
+    // Slot name to request code, including slots with nothing registered. Codes come from a
+    // persisted counter and stay with their slot for good, so two slots never share one.
+    private final Map<String, Integer> requestCodes = new HashMap<>();
+    // Slot name to registered trigger time
+    private final Map<String, Long> registered = new HashMap<>();
+    // Alarm id to pending snooze; snoozes exist nowhere else, so they would die with the process
+    private final Map<Long, TriggerQueue.Entry> snoozes = new HashMap<>();
+    private int nextRequestCode = FIRST_REQUEST_CODE;
+    private boolean loaded;
+
+    SchedulerLedger(Context context) {
+        Context storageContext = context.getApplicationContext();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            storageContext = storageContext.createDeviceProtectedStorageContext();
+        }
+        this.file = new AtomicFile(new File(storageContext.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * Ledger kept in memory only, which starts loaded and empty
+     */
+    SchedulerLedger() {
+        this.file = null;
+        this.loaded = true;
+    }
+
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Read the ledger from disk. A missing or unreadable file leaves it empty,
+     * so the next reconciliation registers everything it wants.
+     */
+    void load() {
+        loaded = true;
+        if (file == null) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(file.openRead());
+            int version = in.readInt() == MAGIC ? in.readInt() : -1;
+            if (version != FORMAT_VERSION && version != FORMAT_VERSION_NO_SNOOZES) {
+                Log.w(TAG, "Ignoring ledger with unknown format");
+                return;
+            }
+            int next = in.readInt();
+            int count = in.readInt();
+            Map<String, Integer> codes = new HashMap<>();
+            Map<String, Long> times = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String slot = in.readUTF();
+                codes.put(slot, in.readInt());
+                long triggerAt = in.readLong();
+                if (triggerAt != NOT_REGISTERED) {
+                    times.put(slot, triggerAt);
+                }
+            }
+            Map<Long, TriggerQueue.Entry> pending = new HashMap<>();
+            if (version != FORMAT_VERSION_NO_SNOOZES) {
+                int snoozeCount = in.readInt();
+                for (int i = 0; i < snoozeCount; i++) {
+                    long alarmId = in.readLong();
+                    long triggerAt = in.readLong();
+                    int hour = in.readUnsignedByte();
+                    int minute = in.readUnsignedByte();
+                    String label = in.readUTF();
+                    String ringtoneUri = in.readUTF();
+                    pending.put(alarmId, new TriggerQueue.Entry(alarmId, true, triggerAt, hour, minute,
+                        Recurrence.ONE_SHOT, label, ringtoneUri));
+                }
+            }
+            nextRequestCode = next;
+            requestCodes.putAll(codes);
+            registered.putAll(times);
+            snoozes.putAll(pending);
+        } catch (FileNotFoundException e) {
+            // Nothing registered yet
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading scheduler ledger", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Request code of a slot, allocating a fresh one the first time it is asked for
+     */
+    int requestCode(String slot) {
+        Integer code = requestCodes.get(slot);
+        if (code == null) {
+            code = nextRequestCode++;
+            requestCodes.put(slot, code);
+            save();
+        }
+        return code;
+    }
+
+    /**
+     * Trigger time registered for a slot, or {@link #NOT_REGISTERED}
+     */
+    long registeredAt(String slot) {
+        Long triggerAt = registered.get(slot);
+        return triggerAt != null ? triggerAt : NOT_REGISTERED;
+    }
+
+    /**
+     * Record that a slot is now registered for {@code triggerAt}, or nothing
+     * when it is {@link #NOT_REGISTERED}
+     */
+    void setRegistered(String slot, long triggerAt) {
+        if (registeredAt(slot) == triggerAt) {
+            return;
+        }
+        if (triggerAt == NOT_REGISTERED) {
+            registered.remove(slot);
+        } else {
+            registered.put(slot, triggerAt);
+        }
+        save();
+    }
+
+    /**
+     * Pending snoozes, in no particular order
+     */
+    Collection<TriggerQueue.Entry> snoozes() {
+        return Collections.unmodifiableCollection(snoozes.values());
+    }
+
+    /**
+     * Record a snooze, replacing any earlier one of the same alarm
+     */
+    void putSnooze(TriggerQueue.Entry entry) {
+        snoozes.put(entry.alarmId, entry);
+        save();
+    }
+
+    /**
+     * Forget the snooze of an alarm, if it has one
+     */
+    void removeSnooze(long alarmId) {
+        if (snoozes.remove(alarmId) != null) {
+            save();
+        }
+    }
+
+    private void save() {
+        if (file == null) {
+            return;
+        }
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(nextRequestCode);
+            out.writeInt(requestCodes.size());
+            for (Map.Entry<String, Integer> entry : requestCodes.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+                out.writeLong(registeredAt(entry.getKey()));
+            }
+            out.writeInt(snoozes.size());
+            for (TriggerQueue.Entry snooze : snoozes.values()) {
+                out.writeLong(snooze.alarmId);
+                out.writeLong(snooze.triggerAt);
+                out.writeByte(snooze.hour);
+                out.writeByte(snooze.minute);
+                out.writeUTF(snooze.label != null ? snooze.label : "");
+                out.writeUTF(snooze.ringtoneUri != null ? snooze.ringtoneUri : "");
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing scheduler ledger", e);
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+        }
+    }
+}
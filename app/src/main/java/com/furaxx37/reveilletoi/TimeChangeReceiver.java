@@ -0,0 +1,58 @@
+package com.furaxx37.reveilletoi;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves alarm triggers after the wall clock is set or the time zone changes.
+ * DST transitions need nothing here, as {@link TriggerTimeEngine} accounts for them.
+ */
+public class TimeChangeReceiver extends BroadcastReceiver {
+
+    private static final String TAG = "TimeChangeReceiver";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        if (!Intent.ACTION_TIME_CHANGED.equals(action) && !Intent.ACTION_TIMEZONE_CHANGED.equals(action)) {
+            return;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        final PendingResult pendingResult = goAsync();
+        IoExecutor.getInstance().write(() -> {
+            try {
+                recompute(appContext);
+            } finally {
+                pendingResult.finish();
+            }
+        });
+    }
+
+    // Works out the moved triggers from the in-memory queue and re-arms once; only those rows are
+    // written back, in one transaction, and the snapshot is rewritten if anything moved
+    private static void recompute(Context context) {
+        long start = System.nanoTime();
+        List<TriggerQueue.Entry> moved = new ArrayList<>();
+        AlarmScheduler.recomputeTriggers(context, moved);
+        Log.d(TAG, moved.size() + " triggers moved, recomputed in " +
+                (System.nanoTime() - start) / 1000 + " us");
+        if (moved.isEmpty() || !AlarmSnapshot.isUserUnlocked(context)) {
+            // Before unlock, the rows and the snapshot are refreshed by BOOT_COMPLETED
+            return;
+        }
+
+        long[] ids = new long[moved.size()];
+        long[] triggerTimes = new long[moved.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = moved.get(i).alarmId;
+            triggerTimes[i] = moved.get(i).triggerAt;
+        }
+        DatabaseHelper.getInstance(context).updateNextTriggers(ids, triggerTimes);
+        AlarmSnapshot.getInstance(context).rewrite();
+    }
+}
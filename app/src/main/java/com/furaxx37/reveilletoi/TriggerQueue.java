@@ -0,0 +1,155 @@
+package com.furaxx37.reveilletoi;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Upcoming alarm triggers ordered by time. Not thread-safe;
+ * {@link AlarmScheduler} serializes access.
+ */
+final class TriggerQueue {
+
+    /**
+     * One queued trigger. Hour, minute and repeat days let a repeating trigger be
+     * re-armed after it fires without reading the database.
+     */
+    static final class Entry {
+        final long alarmId;
+        final boolean snooze;
+        final long triggerAt;
+        final int hour;
+        final int minute;
+        final int repeatDays;
+        final String label;
+        final String ringtoneUri;
+
+        Entry(long alarmId, boolean snooze, long triggerAt, int hour, int minute, int repeatDays,
+              String label, String ringtoneUri) {
+            this.alarmId = alarmId;
+            this.snooze = snooze;
+            this.triggerAt = triggerAt;
+            this.hour = hour;
+            this.minute = minute;
+            this.repeatDays = repeatDays;
+            this.label = label;
+            this.ringtoneUri = ringtoneUri;
+        }
+    }
+
+    private final Comparator<Entry> order = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            comparisons++;
+            if (a.triggerAt != b.triggerAt) {
+                return a.triggerAt < b.triggerAt ? -1 : 1;
+            }
+            if (a.alarmId != b.alarmId) {
+                return a.alarmId < b.alarmId ? -1 : 1;
+            }
+            return Boolean.compare(a.snooze, b.snooze);
+        }
+    };
+
+    // Sorted for the earliest-first view, with per-kind id maps for lookup, so adding, moving or
+    // removing one alarm costs O(log n). An alarm can have a regular and a snooze trigger at once.
+    private final TreeSet<Entry> queue = new TreeSet<>(order);
+    private final Map<Long, Entry> regular = new HashMap<>();
+    private final Map<Long, Entry> snoozed = new HashMap<>();
+    private boolean loaded;
+    private long comparisons;
+
+    /**
+     * Whether the queue holds every enabled alarm, as opposed to being empty
+     * because the process just started
+     */
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    void setLoaded(boolean loaded) {
+        this.loaded = loaded;
+    }
+
+    /**
+     * Add an entry, replacing any entry of the same kind for the same alarm
+     */
+    void put(Entry entry) {
+        Map<Long, Entry> byId = entry.snooze ? snoozed : regular;
+        Entry previous = byId.put(entry.alarmId, entry);
+        if (previous != null) {
+            queue.remove(previous);
+        }
+        queue.add(entry);
+    }
+
+    /**
+     * Remove the regular and snooze entries of an alarm
+     */
+    void remove(long alarmId) {
+        Entry entry = regular.remove(alarmId);
+        if (entry != null) {
+            queue.remove(entry);
+        }
+        entry = snoozed.remove(alarmId);
+        if (entry != null) {
+            queue.remove(entry);
+        }
+    }
+
+    void clear() {
+        queue.clear();
+        regular.clear();
+        snoozed.clear();
+        loaded = false;
+    }
+
+    /**
+     * Regular (not snoozed) entry of an alarm, or null
+     */
+    Entry get(long alarmId) {
+        return regular.get(alarmId);
+    }
+
+    /**
+     * Live view of the regular (not snoozed) entries, in no particular order.
+     * Must not be iterated while the queue is modified.
+     */
+    Collection<Entry> regularEntries() {
+        return Collections.unmodifiableCollection(regular.values());
+    }
+
+    /**
+     * Earliest entry, or null when nothing is queued
+     */
+    Entry peek() {
+        return queue.isEmpty() ? null : queue.first();
+    }
+
+    /**
+     * Remove every entry due at or before {@code now} and add it to {@code due},
+     * earliest first
+     */
+    void pollDue(long now, List<Entry> due) {
+        while (!queue.isEmpty() && queue.first().triggerAt <= now) {
+            Entry entry = queue.pollFirst();
+            (entry.snooze ? snoozed : regular).remove(entry.alarmId);
+            due.add(entry);
+        }
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    /**
+     * Entries compared so far, which is how many one update touched
+     */
+    long comparisons() {
+        return comparisons;
+    }
+}
@@ -0,0 +1,221 @@
+package com.furaxx37.reveilletoi;
+
+import java.util.TimeZone;
+
+/**
+ * Turns an alarm's wall-clock time and repeat days into the instant it should
+ * next fire, as a primitive epoch-millis long. Instances are thread-safe.
+ */
+public final class TriggerTimeEngine {
+
+    static final long MINUTE_MS = 60 * 1000L;
+    static final long DAY_MS = 24 * 60 * MINUTE_MS;
+
+    // Transitions are assumed at least this far apart, which holds for every zone in use today
+    private static final long PROBE_STEP_MS = 7 * DAY_MS;
+    // How far a cached window may reach on either side of the instant that built it
+    private static final long MAX_WINDOW_MS = 366 * DAY_MS;
+    // A power of two, and more than one: a conversion near a transition looks on both sides of it
+    private static final int CACHED_WINDOWS = 4;
+
+    /**
+     * Source of the current time
+     */
+    public interface Clock {
+        long currentTimeMillis();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private static volatile TriggerTimeEngine defaultEngine;
+
+    private final TimeZone zone;
+    // A parameter so callers and tests can pin "now"
+    private final Clock clock;
+    // Filled round-robin. Races only cost a rebuild: windows are immutable, and a
+    // window another thread wrote but this one can't see yet is just a miss.
+    private final OffsetWindow[] windows = new OffsetWindow[CACHED_WINDOWS];
+    private int nextWindow;
+
+    // Instants in [start, end) all have the same offset
+    private static final class OffsetWindow {
+        final long start;
+        final long end;
+        final int offset;
+
+        OffsetWindow(long start, long end, int offset) {
+            this.start = start;
+            this.end = end;
+            this.offset = offset;
+        }
+    }
+
+    public TriggerTimeEngine(TimeZone zone, Clock clock) {
+        this.zone = zone;
+        this.clock = clock;
+    }
+
+    /**
+     * Shared engine for the device's current zone and the system clock. The
+     * offset cache is kept for as long as the zone doesn't change.
+     */
+    public static TriggerTimeEngine forDefaultZone() {
+        TimeZone zone = TimeZone.getDefault();
+        TriggerTimeEngine engine = defaultEngine;
+        if (engine == null || !engine.zone.getID().equals(zone.getID())) {
+            engine = new TriggerTimeEngine(zone, SYSTEM_CLOCK);
+            defaultEngine = engine;
+        }
+        return engine;
+    }
+
+    public long now() {
+        return clock.currentTimeMillis();
+    }
+
+    /**
+     * Next trigger after the clock's current time
+     */
+    public long nextTrigger(int hour, int minute, int repeatDays) {
+        return nextTriggerAfter(hour, minute, repeatDays, clock.currentTimeMillis());
+    }
+
+    /**
+     * First instant strictly after {@code now} at which hh:mm falls on one of the
+     * days in {@code repeatDays}, or on any day for a one-shot alarm
+     */
+    public long nextTriggerAfter(int hour, int minute, int repeatDays, long now) {
+        int days = Recurrence.isRepeating(repeatDays) ? repeatDays : Recurrence.EVERY_DAY;
+        long epochDay = floorDiv(now + offsetAt(now), DAY_MS);
+        long timeOfDay = hour * 60 * MINUTE_MS + minute * MINUTE_MS;
+
+        // Today through the same weekday next week; a DST shift can push today's slot into the past
+        for (int i = 0; i <= 7; i++) {
+            long day = epochDay + i;
+            if ((days & (1 << Recurrence.dayOfWeek(day))) == 0) {
+                continue;
+            }
+            long trigger = localToUtc(day * DAY_MS + timeOfDay);
+            if (trigger > now) {
+                return trigger;
+            }
+        }
+        // Only reachable with no weekday bit set
+        return localToUtc((epochDay + 1) * DAY_MS + timeOfDay);
+    }
+
+    /**
+     * Local day at an instant, as days since 1970-01-01
+     */
+    public long epochDay(long instant) {
+        return floorDiv(instant + offsetAt(instant), DAY_MS);
+    }
+
+    /**
+     * Minute of the local day (hour * 60 + minute) at an instant
+     */
+    public int minuteOfDay(long instant) {
+        long local = instant + offsetAt(instant);
+        return (int) ((local - floorDiv(local, DAY_MS) * DAY_MS) / MINUTE_MS);
+    }
+
+    /**
+     * Convert a local wall time, as millis since the local epoch, to an instant.
+     * A wall time skipped by a forward jump fires the same distance past the jump
+     * (02:30 on a 02:00 to 03:00 night fires at 03:30); one that happens twice on
+     * a backward jump fires at its first occurrence.
+     */
+    public long localToUtc(long localMillis) {
+        int offsetBefore = offsetAt(localMillis - DAY_MS);
+        int offsetAfter = offsetAt(localMillis + DAY_MS);
+        if (offsetBefore == offsetAfter) {
+            return localMillis - offsetBefore;
+        }
+
+        // Near a transition: the larger offset gives the earlier instant, so try it first
+        int first = Math.max(offsetBefore, offsetAfter);
+        int second = Math.min(offsetBefore, offsetAfter);
+        if (offsetAt(localMillis - first) == first) {
+            return localMillis - first;
+        }
+        if (offsetAt(localMillis - second) == second) {
+            return localMillis - second;
+        }
+        // Skipped by the transition: keep the offset from before it, landing just past the jump
+        return localMillis - offsetBefore;
+    }
+
+    /**
+     * Zone offset at an instant, from a cached window when one covers it
+     */
+    public int offsetAt(long instant) {
+        for (int i = 0; i < CACHED_WINDOWS; i++) {
+            OffsetWindow cached = windows[i];
+            if (cached != null && instant >= cached.start && instant < cached.end) {
+                return cached.offset;
+            }
+        }
+        OffsetWindow built = buildWindow(instant);
+        windows[nextWindow++ & (CACHED_WINDOWS - 1)] = built;
+        return built.offset;
+    }
+
+    private OffsetWindow buildWindow(long instant) {
+        int offset = zone.getOffset(instant);
+
+        // Step outwards until the offset changes, then bisect to the transition
+        long end = instant;
+        while (end - instant < MAX_WINDOW_MS && zone.getOffset(end + PROBE_STEP_MS) == offset) {
+            end += PROBE_STEP_MS;
+        }
+        if (end - instant < MAX_WINDOW_MS) {
+            end = firstChange(end, end + PROBE_STEP_MS, offset);
+        }
+
+        long start = instant;
+        while (instant - start < MAX_WINDOW_MS && zone.getOffset(start - PROBE_STEP_MS) == offset) {
+            start -= PROBE_STEP_MS;
+        }
+        if (instant - start < MAX_WINDOW_MS) {
+            start = lastChange(start - PROBE_STEP_MS, start, offset) + 1;
+        }
+        return new OffsetWindow(start, end, offset);
+    }
+
+    // First instant in (low, high] whose offset differs, given offset(low) == offset
+    private long firstChange(long low, long high, int offset) {
+        while (high - low > 1) {
+            long mid = low + (high - low) / 2;
+            if (zone.getOffset(mid) == offset) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return high;
+    }
+
+    // Last instant in [low, high) whose offset differs, given offset(high) == offset
+    private long lastChange(long low, long high, int offset) {
+        while (high - low > 1) {
+            long mid = low + (high - low) / 2;
+            if (zone.getOffset(mid) == offset) {
+                high = mid;
+            } else {
+                low = mid;
+            }
+        }
+        return low;
+    }
+
+    // Math.floorDiv needs API 24
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+}
@@ -0,0 +1,101 @@
+package com.furaxx37.reveilletoi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import org.junit.Test;
+
+/**
+ * Rebuilding the queue in a fresh process, as a dispatch does after the
+ * process was killed while an alarm was armed
+ */
+public class AlarmSchedulerTest {
+
+    private static final TriggerTimeEngine ENGINE =
+        new TriggerTimeEngine(TimeZone.getTimeZone("Europe/Paris"), TriggerTimeEngine.SYSTEM_CLOCK);
+    // 2024-03-04 12:00 UTC, a Monday
+    private static final long START = 1709553600000L;
+    private static final long WINDOW_MS = 1000;
+
+    @Test
+    public void reloadAtTheTriggerInstantKeepsTheDueAlarm() {
+        for (int repeatDays : new int[]{Recurrence.ONE_SHOT, Recurrence.EVERY_DAY, Recurrence.MONDAY}) {
+            Alarm alarm = alarm(1, 7, 0, repeatDays);
+            long registeredAt = AlarmScheduler.entryFor(alarm, START, ENGINE).triggerAt;
+
+            // Delivered on time, and late as in Doze
+            for (long now : new long[]{registeredAt, registeredAt + 5 * 60 * 1000L}) {
+                List<TriggerQueue.Entry> due = dispatchInFreshProcess(alarm, registeredAt, now);
+                assertEquals("repeat " + repeatDays + " at " + now, 1, due.size());
+                assertEquals(registeredAt, due.get(0).triggerAt);
+            }
+        }
+    }
+
+    @Test
+    public void reloadAfterNowWouldMissTheDueAlarm() {
+        // What loading relative to now did: the due trigger moves to its next occurrence
+        Alarm alarm = alarm(1, 7, 0, Recurrence.EVERY_DAY);
+        long registeredAt = AlarmScheduler.entryFor(alarm, START, ENGINE).triggerAt;
+        TriggerQueue queue = new TriggerQueue();
+        queue.put(AlarmScheduler.entryFor(alarm, registeredAt, ENGINE));
+        List<TriggerQueue.Entry> due = new ArrayList<>();
+        queue.pollDue(registeredAt + WINDOW_MS, due);
+        assertTrue(due.isEmpty());
+    }
+
+    @Test
+    public void laterAlarmsStayQueued() {
+        Alarm first = alarm(1, 7, 0, Recurrence.EVERY_DAY);
+        Alarm later = alarm(2, 7, 30, Recurrence.EVERY_DAY);
+        long registeredAt = AlarmScheduler.entryFor(first, START, ENGINE).triggerAt;
+        long since = AlarmScheduler.loadReference(registeredAt, registeredAt);
+
+        TriggerQueue queue = new TriggerQueue();
+        queue.put(AlarmScheduler.entryFor(first, since, ENGINE));
+        queue.put(AlarmScheduler.entryFor(later, since, ENGINE));
+        List<TriggerQueue.Entry> due = new ArrayList<>();
+        queue.pollDue(registeredAt + WINDOW_MS, due);
+
+        assertEquals(1, due.size());
+        assertEquals(1, due.get(0).alarmId);
+        assertEquals(registeredAt + 30 * 60 * 1000L, queue.peek().triggerAt);
+    }
+
+    @Test
+    public void loadReferenceIgnoresMissingOrFutureRegistrations() {
+        assertEquals(START, AlarmScheduler.loadReference(SchedulerLedger.NOT_REGISTERED, START));
+        assertEquals(START, AlarmScheduler.loadReference(START + 1, START));
+        assertEquals(START - 1, AlarmScheduler.loadReference(START, START));
+    }
+
+    @Test
+    public void restoredSnoozesExpireAfterAnHour() {
+        TriggerQueue.Entry snooze = new TriggerQueue.Entry(1, true, START, 12, 0, Recurrence.ONE_SHOT,
+            "label", null);
+        assertFalse(AlarmScheduler.isSnoozeExpired(snooze, START + 60 * 60 * 1000L));
+        assertTrue(AlarmScheduler.isSnoozeExpired(snooze, START + 60 * 60 * 1000L + 1));
+    }
+
+    private static List<TriggerQueue.Entry> dispatchInFreshProcess(Alarm alarm, long registeredAt, long now) {
+        TriggerQueue queue = new TriggerQueue();
+        queue.put(AlarmScheduler.entryFor(alarm, AlarmScheduler.loadReference(registeredAt, now), ENGINE));
+        List<TriggerQueue.Entry> due = new ArrayList<>();
+        queue.pollDue(now + WINDOW_MS, due);
+        return due;
+    }
+
+    private static Alarm alarm(long id, int hour, int minute, int repeatDays) {
+        Alarm alarm = new Alarm();
+        alarm.setId(id);
+        alarm.setHour(hour);
+        alarm.setMinute(minute);
+        alarm.setRepeatDays(repeatDays);
+        alarm.setEnabled(true);
+        return alarm;
+    }
+}
@@ -0,0 +1,106 @@
+package com.furaxx37.reveilletoi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.TimeZone;
+import org.junit.Test;
+
+/**
+ * Encodes and parses snapshot files without touching storage
+ */
+public class AlarmSnapshotTest {
+
+    private static final TimeZone PARIS = TimeZone.getTimeZone("Europe/Paris");
+    private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+    // 2024-01-15 12:00 UTC, a Monday
+    private static final long NOON_UTC = 1705320000000L;
+
+    @Test
+    public void futureTriggersAreKept() throws IOException {
+        TriggerTimeEngine engine = engine(PARIS);
+        Alarm alarm = alarm(1, 7, 30, Recurrence.EVERY_DAY, "content://ring");
+        long trigger = engine.nextTriggerAfter(7, 30, Recurrence.EVERY_DAY, NOON_UTC);
+
+        AlarmSnapshot.Entries entries = AlarmSnapshot.parse(file(alarm, trigger), NOON_UTC, engine);
+
+        assertEquals(1, entries.size());
+        assertEquals(1, entries.ids[0]);
+        assertEquals(trigger, entries.triggerTimes[0]);
+        assertEquals(7, entries.hours[0]);
+        assertEquals(30, entries.minutes[0]);
+        assertEquals(Recurrence.EVERY_DAY, entries.repeatDays[0]);
+        assertEquals("content://ring", entries.ringtoneUris[0]);
+    }
+
+    @Test
+    public void pastTriggersKeepTheirWallClockTimeAcrossAZoneChange() throws IOException {
+        // Written in Paris for 07:00, read after the device moved to New York
+        Alarm alarm = alarm(2, 7, 0, Recurrence.ONE_SHOT, null);
+        long writtenTrigger = engine(PARIS).nextTriggerAfter(7, 0, Recurrence.ONE_SHOT,
+            NOON_UTC - TriggerTimeEngine.DAY_MS);
+        TriggerTimeEngine newYork = engine(NEW_YORK);
+
+        AlarmSnapshot.Entries entries = AlarmSnapshot.parse(file(alarm, writtenTrigger), NOON_UTC, newYork);
+
+        assertEquals(7, entries.hours[0]);
+        assertEquals(0, entries.minutes[0]);
+        assertEquals(newYork.nextTriggerAfter(7, 0, Recurrence.ONE_SHOT, NOON_UTC), entries.triggerTimes[0]);
+        assertNull(entries.ringtoneUris[0]);
+    }
+
+    @Test
+    public void versionTwoFilesAreStillRead() {
+        TriggerTimeEngine engine = engine(PARIS);
+        long trigger = engine.nextTriggerAfter(6, 45, Recurrence.ONE_SHOT, NOON_UTC);
+        byte[] uri = "content://old".getBytes();
+        ByteBuffer data = ByteBuffer.allocate(12 + 8 + 8 + 1 + 2 + uri.length);
+        data.putInt(0x52545331).putInt(2).putInt(0);
+        data.putLong(3).putLong(trigger).put((byte) 0).putShort((short) uri.length).put(uri);
+
+        AlarmSnapshot.Entries entries = AlarmSnapshot.parse(
+            ByteBuffer.wrap(AlarmSnapshot.seal(data.array(), 1)), NOON_UTC, engine);
+
+        assertArrayEquals(new long[]{3}, entries.ids);
+        assertEquals(6, entries.hours[0]);
+        assertEquals(45, entries.minutes[0]);
+        assertEquals("content://old", entries.ringtoneUris[0]);
+    }
+
+    @Test
+    public void corruptFilesAreIgnored() throws IOException {
+        TriggerTimeEngine engine = engine(PARIS);
+        ByteBuffer file = file(alarm(1, 7, 0, Recurrence.ONE_SHOT, null), NOON_UTC);
+        file.put(20, (byte) (file.get(20) ^ 1));
+        assertNull(AlarmSnapshot.parse(file, NOON_UTC, engine));
+        assertNull(AlarmSnapshot.parse(ByteBuffer.allocate(4), NOON_UTC, engine));
+    }
+
+    private static ByteBuffer file(Alarm alarm, long trigger) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        AlarmSnapshot.writeHeader(out);
+        AlarmSnapshot.writeRecord(out, alarm, trigger);
+        out.flush();
+        return ByteBuffer.wrap(AlarmSnapshot.seal(bytes.toByteArray(), 1));
+    }
+
+    private static Alarm alarm(long id, int hour, int minute, int repeatDays, String ringtoneUri) {
+        Alarm alarm = new Alarm();
+        alarm.setId(id);
+        alarm.setHour(hour);
+        alarm.setMinute(minute);
+        alarm.setRepeatDays(repeatDays);
+        alarm.setRingtoneUri(ringtoneUri);
+        return alarm;
+    }
+
+    private static TriggerTimeEngine engine(TimeZone zone) {
+        return new TriggerTimeEngine(zone, TriggerTimeEngine.SYSTEM_CLOCK);
+    }
+}
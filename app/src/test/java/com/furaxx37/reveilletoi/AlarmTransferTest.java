@@ -0,0 +1,128 @@
+package com.furaxx37.reveilletoi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+
+/**
+ * Round-trips alarms through both file formats without a database. The 100k
+ * alarm runs print their throughput.
+ */
+public class AlarmTransferTest {
+
+    private static final int ALARMS = 100_000;
+
+    @Test
+    public void binaryRoundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        writeAll(AlarmTransfer.binaryWriter(out));
+        long writeNs = System.nanoTime() - start;
+
+        AlarmTransfer.RecordReader reader = AlarmTransfer.openReader(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(reader.isBinary());
+        start = System.nanoTime();
+        readAll(reader);
+        report("Binary", out.size(), writeNs, System.nanoTime() - start);
+    }
+
+    @Test
+    public void jsonLinesRoundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        writeAll(AlarmTransfer.jsonLinesWriter(out));
+        long writeNs = System.nanoTime() - start;
+
+        AlarmTransfer.RecordReader reader = AlarmTransfer.openReader(new ByteArrayInputStream(out.toByteArray()));
+        assertFalse(reader.isBinary());
+        start = System.nanoTime();
+        readAll(reader);
+        report("JSON lines", out.size(), writeNs, System.nanoTime() - start);
+    }
+
+    @Test
+    public void emptyFileHasNoAlarms() throws IOException {
+        assertNull(AlarmTransfer.openReader(new ByteArrayInputStream(new byte[0])).next());
+        assertNull(AlarmTransfer.openReader(new ByteArrayInputStream("\n\n".getBytes("UTF-8"))).next());
+    }
+
+    @Test
+    public void missingJsonFieldsTakeDefaults() throws IOException {
+        byte[] line = "{\"hour\":7,\"minute\":30}\n".getBytes("UTF-8");
+        Alarm alarm = AlarmTransfer.openReader(new ByteArrayInputStream(line)).next();
+        assertEquals(7, alarm.getHour());
+        assertEquals(30, alarm.getMinute());
+        assertTrue(alarm.isEnabled());
+        assertEquals("", alarm.getLabel());
+        assertEquals(Recurrence.ONE_SHOT, alarm.getRepeatDays());
+    }
+
+    @Test
+    public void invalidRecordsAreRejected() throws IOException {
+        expectCorrupt("{\"hour\":24,\"minute\":0}\n".getBytes("UTF-8"));
+        expectCorrupt("{\"hour\":7,\"minute\":0,\"repeat_days\":128}\n".getBytes("UTF-8"));
+        expectCorrupt("not json\n".getBytes("UTF-8"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AlarmTransfer.binaryWriter(out).finish();
+        byte[] bytes = out.toByteArray();
+        bytes[bytes.length - 1] = 9; // unknown record marker in place of END
+        expectCorrupt(bytes);
+    }
+
+    private static void writeAll(AlarmTransfer.RecordWriter writer) throws IOException {
+        for (int i = 0; i < ALARMS; i++) {
+            writer.write(alarm(i));
+        }
+        writer.finish();
+    }
+
+    private static void readAll(AlarmTransfer.RecordReader reader) throws IOException {
+        for (int i = 0; i < ALARMS; i++) {
+            Alarm expected = alarm(i);
+            Alarm actual = reader.next();
+            assertEquals("hour " + i, expected.getHour(), actual.getHour());
+            assertEquals("minute " + i, expected.getMinute(), actual.getMinute());
+            assertEquals("enabled " + i, expected.isEnabled(), actual.isEnabled());
+            assertEquals("created at " + i, expected.getCreatedAt(), actual.getCreatedAt());
+            assertEquals("label " + i, expected.getLabel(), actual.getLabel());
+            assertEquals("ringtone " + i, expected.getRingtoneUri(), actual.getRingtoneUri());
+            assertEquals("repeat days " + i, expected.getRepeatDays(), actual.getRepeatDays());
+        }
+        assertNull(reader.next());
+    }
+
+    // Varied enough to cover one-shot and repeating records, empty and non-ASCII strings
+    private static Alarm alarm(int i) {
+        Alarm alarm = new Alarm();
+        alarm.setHour(i % 24);
+        alarm.setMinute(i * 7 % 60);
+        alarm.setEnabled(i % 3 != 0);
+        alarm.setCreatedAt(1_600_000_000_000L + i * 1000L);
+        alarm.setLabel(i % 5 == 0 ? "" : "Réveil \"" + i + "\"");
+        alarm.setRingtoneUri(i % 2 == 0 ? "" : "content://media/internal/audio/media/" + i);
+        alarm.setRepeatDays(i % 4 == 0 ? Recurrence.ONE_SHOT : i % Recurrence.EVERY_DAY + 1);
+        return alarm;
+    }
+
+    private static void expectCorrupt(byte[] bytes) {
+        try {
+            AlarmTransfer.openReader(new ByteArrayInputStream(bytes)).next();
+            fail("accepted a corrupt record");
+        } catch (IOException expected) {
+            // ok
+        }
+    }
+
+    private static void report(String format, int bytes, long writeNs, long readNs) {
+        System.out.println(format + ": " + ALARMS + " alarms, " + bytes / ALARMS + " bytes each, write " +
+            ALARMS * 1_000_000_000L / writeNs + "/s, read " + ALARMS * 1_000_000_000L / readNs + "/s");
+    }
+}
@@ -0,0 +1,195 @@
+package com.furaxx37.reveilletoi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Test;
+
+public class MinuteOfDayIndexTest {
+
+    private static final int DAY = MinuteOfDayIndex.MINUTES_PER_DAY;
+    private static final int LAST_MINUTE = DAY - 1;
+    private static final int SATURDAY = 5;
+
+    @Test
+    public void emptyIndexHasNoNextMinute() {
+        MinuteOfDayIndex index = new MinuteOfDayIndex();
+        assertEquals(-1, index.nextAfter(0));
+        assertEquals(-1, index.nextAfter(LAST_MINUTE));
+    }
+
+    @Test
+    public void nextAfterWrapsPastMidnight() {
+        MinuteOfDayIndex index = new MinuteOfDayIndex();
+        index.put(1, 0, Recurrence.ONE_SHOT);
+        index.put(2, 7 * 60, Recurrence.ONE_SHOT);
+        assertEquals(7 * 60, index.nextAfter(0));
+        assertEquals(0, index.nextAfter(7 * 60));
+        assertEquals(0, index.nextAfter(LAST_MINUTE));
+    }
+
+    @Test
+    public void onlyMinuteIsFoundLastFromItself() {
+        MinuteOfDayIndex index = new MinuteOfDayIndex();
+        index.put(1, 600, Recurrence.ONE_SHOT);
+        assertEquals(600, index.nextAfter(600));
+        assertEquals(600, index.nextAfter(599));
+    }
+
+    @Test
+    public void wordBoundaries() {
+        MinuteOfDayIndex index = new MinuteOfDayIndex();
+        index.put(1, 63, Recurrence.ONE_SHOT);
+        index.put(2, 64, Recurrence.ONE_SHOT);
+        index.put(3, LAST_MINUTE, Recurrence.ONE_SHOT);
+        assertEquals(63, index.nextAfter(62));
+        assertEquals(64, index.nextAfter(63));
+        assertEquals(LAST_MINUTE, index.nextAfter(64));
+        assertEquals(63, index.nextAfter(LAST_MINUTE));
+
+        index.remove(2);
+        assertEquals(LAST_MINUTE, index.nextAfter(63));
+        index.remove(3);
+        assertEquals(63, index.nextAfter(63));
+        assertEquals(63, index.nextAfter(LAST_MINUTE));
+    }
+
+    @Test
+    public void putMovesAnAlarmAndRemoveEmptiesItsSlot() {
+        MinuteOfDayIndex index = new MinuteOfDayIndex();
+        index.put(1, 100, Recurrence.ONE_SHOT);
+        index.put(2, 100, Recurrence.ONE_SHOT);
+        index.put(1, 200, Recurrence.ONE_SHOT);
+        assertEquals(1, index.countAt(100));
+        assertEquals(2, index.idAt(100, 0));
+        assertEquals(1, index.countAt(200));
+        assertEquals(2, index.size());
+
+        index.remove(2);
+        index.remove(2);
+        assertEquals(0, index.countAt(100));
+        assertEquals(200, index.nextAfter(0));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void weekdayAlarmIsNotNextOnTheWeekend() {
+        MinuteOfDayIndex index = new MinuteOfDayIndex();
+        int weekdays = Recurrence.MONDAY | Recurrence.TUESDAY | Recurrence.WEDNESDAY |
+            Recurrence.THURSDAY | Recurrence.FRIDAY;
+        index.put(1, 7 * 60, weekdays);
+        index.put(2, 9 * 60, Recurrence.SATURDAY | Recurrence.SUNDAY);
+        // Saturday 06:00: the weekend alarm at 09:00, not Monday's 07:00
+        assertEquals(SATURDAY * DAY + 9 * 60, index.nextInWeekAfter(SATURDAY, 6 * 60));
+        // Sunday 10:00: Monday 07:00
+        assertEquals(7 * 60, index.nextInWeekAfter(SATURDAY + 1, 10 * 60));
+        // The day-agnostic lookup still sees both
+        assertEquals(7 * 60, index.nextAfter(6 * 60));
+    }
+
+    @Test
+    public void weekWrapsBackToTheSameMinute() {
+        MinuteOfDayIndex index = new MinuteOfDayIndex();
+        index.put(1, 8 * 60, Recurrence.WEDNESDAY);
+        int wednesday = 2;
+        assertEquals(wednesday * DAY + 8 * 60, index.nextInWeekAfter(wednesday, 8 * 60));
+        assertEquals(wednesday * DAY + 8 * 60, index.nextInWeekAfter(wednesday, 7 * 60));
+        assertEquals(wednesday * DAY + 8 * 60, index.nextInWeekAfter(6, LAST_MINUTE));
+        assertEquals(-1, new MinuteOfDayIndex().nextInWeekAfter(0, 0));
+    }
+
+    @Test
+    public void changingOnlyTheDaysMovesTheAlarm() {
+        MinuteOfDayIndex index = new MinuteOfDayIndex();
+        index.put(1, 600, Recurrence.MONDAY);
+        index.put(2, 600, Recurrence.MONDAY);
+        index.put(1, 600, Recurrence.FRIDAY);
+        assertEquals(600, index.nextInWeekAfter(0, 0));
+        index.remove(2);
+        assertEquals(4 * DAY + 600, index.nextInWeekAfter(0, 0));
+    }
+
+    @Test
+    public void matchesAReferenceModelUnderRandomChurn() {
+        Random random = new Random(42);
+        MinuteOfDayIndex index = new MinuteOfDayIndex();
+        Map<Long, Integer> minuteById = new HashMap<>();
+        Map<Long, Integer> daysById = new HashMap<>();
+        for (int step = 0; step < 50_000; step++) {
+            // Ids clustered and spread out, so probe runs collide and wrap
+            long id = random.nextBoolean() ? random.nextInt(500) : random.nextLong();
+            if (random.nextInt(3) == 0) {
+                index.remove(id);
+                minuteById.remove(id);
+                daysById.remove(id);
+            } else {
+                int minute = random.nextInt(MinuteOfDayIndex.MINUTES_PER_DAY);
+                int repeatDays = random.nextInt(Recurrence.EVERY_DAY + 1);
+                index.put(id, minute, repeatDays);
+                minuteById.put(id, minute);
+                daysById.put(id, Recurrence.isRepeating(repeatDays) ? repeatDays : Recurrence.EVERY_DAY);
+            }
+            if (step % 1000 == 0) {
+                assertMatches(index, minuteById);
+                assertWeekMatches(index, minuteById, daysById, random);
+            }
+        }
+        assertMatches(index, minuteById);
+        assertWeekMatches(index, minuteById, daysById, random);
+        index.clear();
+        assertEquals(0, index.size());
+        assertEquals(-1, index.nextAfter(0));
+    }
+
+    private static void assertWeekMatches(MinuteOfDayIndex index, Map<Long, Integer> minuteById,
+                                          Map<Long, Integer> daysById, Random random) {
+        int[] daysAtMinute = new int[MinuteOfDayIndex.MINUTES_PER_DAY];
+        for (Map.Entry<Long, Integer> entry : minuteById.entrySet()) {
+            daysAtMinute[entry.getValue()] |= daysById.get(entry.getKey());
+        }
+        for (int i = 0; i < 50; i++) {
+            int day = random.nextInt(7);
+            int minute = random.nextInt(DAY);
+            int expected = -1;
+            for (int ahead = 1; ahead <= 7 * DAY; ahead++) {
+                int minuteOfWeek = (day * DAY + minute + ahead) % (7 * DAY);
+                if ((daysAtMinute[minuteOfWeek % DAY] & (1 << (minuteOfWeek / DAY))) != 0) {
+                    expected = minuteOfWeek;
+                    break;
+                }
+            }
+            assertEquals("after day " + day + " minute " + minute, expected, index.nextInWeekAfter(day, minute));
+        }
+    }
+
+    private static void assertMatches(MinuteOfDayIndex index, Map<Long, Integer> minuteById) {
+        assertEquals(minuteById.size(), index.size());
+        TreeMap<Integer, long[]> byMinute = new TreeMap<>();
+        for (Map.Entry<Long, Integer> entry : minuteById.entrySet()) {
+            long[] ids = byMinute.get(entry.getValue());
+            ids = ids == null ? new long[1] : Arrays.copyOf(ids, ids.length + 1);
+            ids[ids.length - 1] = entry.getKey();
+            byMinute.put(entry.getValue(), ids);
+        }
+        for (int minute = 0; minute < MinuteOfDayIndex.MINUTES_PER_DAY; minute++) {
+            long[] expected = byMinute.containsKey(minute) ? byMinute.get(minute) : new long[0];
+            long[] actual = new long[index.countAt(minute)];
+            for (int i = 0; i < actual.length; i++) {
+                actual[i] = index.idAt(minute, i);
+            }
+            Arrays.sort(expected);
+            Arrays.sort(actual);
+            assertEquals("minute " + minute, Arrays.toString(expected), Arrays.toString(actual));
+
+            Integer next = byMinute.higherKey(minute);
+            if (next == null) {
+                next = byMinute.isEmpty() ? -1 : byMinute.firstKey();
+            }
+            assertEquals("after " + minute, (int) next, index.nextAfter(minute));
+        }
+    }
+}
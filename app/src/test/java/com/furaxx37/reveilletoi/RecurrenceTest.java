@@ -0,0 +1,54 @@
+package com.furaxx37.reveilletoi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+import org.junit.Test;
+
+public class RecurrenceTest {
+
+    @Test
+    public void dayOfWeekMatchesCalendar() {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        // Before and after the epoch, so negative epoch days are covered
+        for (long epochDay = -1000; epochDay <= 30000; epochDay++) {
+            calendar.setTimeInMillis(epochDay * TriggerTimeEngine.DAY_MS);
+            int expected = (calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+            assertEquals("epoch day " + epochDay, expected, Recurrence.dayOfWeek(epochDay));
+        }
+    }
+
+    @Test
+    public void bitsFollowDayOfWeek() {
+        // 1970-01-05 was a Monday
+        assertEquals(Recurrence.MONDAY, 1 << Recurrence.dayOfWeek(4));
+        assertEquals(Recurrence.SUNDAY, 1 << Recurrence.dayOfWeek(10));
+        assertEquals(Recurrence.EVERY_DAY, Recurrence.MONDAY | Recurrence.TUESDAY | Recurrence.WEDNESDAY |
+            Recurrence.THURSDAY | Recurrence.FRIDAY | Recurrence.SATURDAY | Recurrence.SUNDAY);
+    }
+
+    @Test
+    public void oneShotIsNotRepeating() {
+        assertFalse(Recurrence.isRepeating(Recurrence.ONE_SHOT));
+        assertTrue(Recurrence.isRepeating(Recurrence.SATURDAY));
+        assertTrue(Recurrence.isRepeating(Recurrence.EVERY_DAY));
+    }
+
+    @Test
+    public void repeatingAlarmSkipsDaysOffItsMask() {
+        TriggerTimeEngine engine = new TriggerTimeEngine(TimeZone.getTimeZone("Europe/Paris"),
+            TriggerTimeEngine.SYSTEM_CLOCK);
+        // Saturday 2024-03-09 10:00 UTC
+        long saturday = 1709978400000L;
+        int weekdays = Recurrence.MONDAY | Recurrence.TUESDAY | Recurrence.WEDNESDAY |
+            Recurrence.THURSDAY | Recurrence.FRIDAY;
+        long trigger = engine.nextTriggerAfter(7, 0, weekdays, saturday);
+        assertEquals(Recurrence.MONDAY, 1 << Recurrence.dayOfWeek(engine.epochDay(trigger)));
+        assertEquals(7 * 60, engine.minuteOfDay(trigger));
+        // Monday 07:00 in Paris is 06:00 UTC
+        assertEquals(saturday + 2 * TriggerTimeEngine.DAY_MS - 4 * 60 * 60 * 1000L, trigger);
+    }
+}
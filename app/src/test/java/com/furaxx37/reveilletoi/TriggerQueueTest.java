@@ -0,0 +1,131 @@
+package com.furaxx37.reveilletoi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.TimeZone;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Updates one alarm out of 10k and checks it costs one system registration
+ * and a logarithmic number of touched entries.
+ */
+public class TriggerQueueTest {
+
+    private static final TriggerTimeEngine ENGINE =
+        new TriggerTimeEngine(TimeZone.getTimeZone("Europe/Paris"), TriggerTimeEngine.SYSTEM_CLOCK);
+    // 2024-03-04 00:00 in Paris, so every alarm's next trigger falls on that day
+    private static final long START = 1709506800000L;
+    private static final int ALARMS = 10_000;
+    // A red-black tree is at most 2 log2(n) deep, and moving an entry walks it twice
+    private static final long MAX_COMPARISONS = 4 * (32 - Integer.numberOfLeadingZeros(ALARMS));
+
+    private TriggerQueue queue;
+    private SchedulerLedger ledger;
+    private int registrations;
+    private final AlarmScheduler.Registrar registrar = new AlarmScheduler.Registrar() {
+        @Override
+        public void register(String slot, String action, long triggerAt, boolean allowWhileIdle) {
+            registrations++;
+            ledger.setRegistered(slot, triggerAt);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        queue = new TriggerQueue();
+        ledger = new SchedulerLedger();
+        // The head alone at 05:30, then several alarms a minute from 06:00
+        queue.put(AlarmScheduler.entryFor(alarm(1, 5, 30, Recurrence.EVERY_DAY), START, ENGINE));
+        for (int i = 1; i < ALARMS; i++) {
+            int minute = 6 * 60 + i % (18 * 60);
+            queue.put(AlarmScheduler.entryFor(alarm(i + 1, minute / 60, minute % 60, Recurrence.EVERY_DAY),
+                START, ENGINE));
+        }
+        AlarmScheduler.rearmDispatch(queue, ledger, registrar);
+        registrations = 0;
+    }
+
+    @Test
+    public void insertingAnEarlierAlarmRegistersOnce() {
+        TriggerQueue.Entry entry = AlarmScheduler.entryFor(alarm(ALARMS + 1, 5, 0, Recurrence.EVERY_DAY),
+            START, ENGINE);
+        long before = queue.comparisons();
+        queue.put(entry);
+        long touched = queue.comparisons() - before;
+        long target = AlarmScheduler.rearmDispatch(queue, ledger, registrar);
+
+        assertEquals(entry.triggerAt, target);
+        assertEquals(entry.triggerAt, ledger.registeredAt(AlarmScheduler.DISPATCH_SLOT));
+        assertEquals(1, registrations);
+        assertTrue(touched + " entries touched", touched <= MAX_COMPARISONS);
+    }
+
+    @Test
+    public void insertingALaterAlarmRegistersNothing() {
+        long registeredAt = ledger.registeredAt(AlarmScheduler.DISPATCH_SLOT);
+        long before = queue.comparisons();
+        queue.put(AlarmScheduler.entryFor(alarm(ALARMS + 1, 23, 59, Recurrence.EVERY_DAY), START, ENGINE));
+        long touched = queue.comparisons() - before;
+        AlarmScheduler.rearmDispatch(queue, ledger, registrar);
+
+        assertEquals(registeredAt, ledger.registeredAt(AlarmScheduler.DISPATCH_SLOT));
+        assertEquals(0, registrations);
+        assertTrue(touched + " entries touched", touched <= MAX_COMPARISONS);
+    }
+
+    @Test
+    public void movingTheHeadLaterRegistersOnce() {
+        TriggerQueue.Entry head = queue.peek();
+        TriggerQueue.Entry moved = AlarmScheduler.entryFor(alarm(head.alarmId, 23, 0, Recurrence.EVERY_DAY),
+            START, ENGINE);
+        long before = queue.comparisons();
+        queue.put(moved);
+        long touched = queue.comparisons() - before;
+        long target = AlarmScheduler.rearmDispatch(queue, ledger, registrar);
+
+        assertEquals(ALARMS, queue.size());
+        assertTrue(target > head.triggerAt);
+        assertEquals(queue.peek().triggerAt, ledger.registeredAt(AlarmScheduler.DISPATCH_SLOT));
+        assertEquals(1, registrations);
+        assertTrue(touched + " entries touched", touched <= MAX_COMPARISONS);
+    }
+
+    @Test
+    public void removingTheHeadRegistersOnce() {
+        TriggerQueue.Entry head = queue.peek();
+        long before = queue.comparisons();
+        queue.remove(head.alarmId);
+        long touched = queue.comparisons() - before;
+        long target = AlarmScheduler.rearmDispatch(queue, ledger, registrar);
+
+        assertEquals(ALARMS - 1, queue.size());
+        assertEquals(queue.peek().triggerAt, target);
+        assertEquals(target, ledger.registeredAt(AlarmScheduler.DISPATCH_SLOT));
+        assertEquals(1, registrations);
+        assertTrue(touched + " entries touched", touched <= MAX_COMPARISONS);
+    }
+
+    @Test
+    public void removingTheLastAlarmDisarms() {
+        TriggerQueue single = new TriggerQueue();
+        single.put(AlarmScheduler.entryFor(alarm(1, 7, 0, Recurrence.EVERY_DAY), START, ENGINE));
+        AlarmScheduler.rearmDispatch(single, ledger, registrar);
+        single.remove(1);
+        AlarmScheduler.rearmDispatch(single, ledger, registrar);
+
+        assertEquals(SchedulerLedger.NOT_REGISTERED, ledger.registeredAt(AlarmScheduler.DISPATCH_SLOT));
+        assertEquals(2, registrations);
+    }
+
+    private static Alarm alarm(long id, int hour, int minute, int repeatDays) {
+        Alarm alarm = new Alarm();
+        alarm.setId(id);
+        alarm.setHour(hour);
+        alarm.setMinute(minute);
+        alarm.setRepeatDays(repeatDays);
+        alarm.setEnabled(true);
+        return alarm;
+    }
+}
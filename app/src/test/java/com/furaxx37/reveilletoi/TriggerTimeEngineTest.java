@@ -0,0 +1,66 @@
+package com.furaxx37.reveilletoi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+import org.junit.Test;
+
+/**
+ * Checks the engine against java.util.Calendar for every minute of a year
+ * with DST transitions. Timings are in TriggerTimeBenchmarkTest.
+ */
+public class TriggerTimeEngineTest {
+
+    private static final String[] ZONES = {
+        "Europe/Paris", "America/New_York", "Australia/Sydney", "Australia/Lord_Howe", "Asia/Kolkata"
+    };
+    // 2024-01-01 and 2025-01-01 as local epoch days
+    private static final long FIRST_DAY = 19723;
+    private static final long LAST_DAY = 20089;
+
+    @Test
+    public void localToUtcMatchesCalendarForEveryMinuteOfTheYear() {
+        Calendar utc = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        for (String id : ZONES) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            TriggerTimeEngine engine = new TriggerTimeEngine(zone, TriggerTimeEngine.SYSTEM_CLOCK);
+            Calendar calendar = new GregorianCalendar(zone);
+            for (long day = FIRST_DAY; day < LAST_DAY; day++) {
+                utc.setTimeInMillis(day * TriggerTimeEngine.DAY_MS);
+                int year = utc.get(Calendar.YEAR);
+                int month = utc.get(Calendar.MONTH);
+                int dayOfMonth = utc.get(Calendar.DAY_OF_MONTH);
+                for (int minute = 0; minute < MinuteOfDayIndex.MINUTES_PER_DAY; minute++) {
+                    long local = day * TriggerTimeEngine.DAY_MS + minute * TriggerTimeEngine.MINUTE_MS;
+                    calendar.clear();
+                    calendar.set(year, month, dayOfMonth, minute / 60, minute % 60);
+                    long expected = firstOccurrence(zone, calendar.getTimeInMillis(), local);
+                    assertEquals(id + " at local " + local, expected, engine.localToUtc(local));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void offsetMatchesZoneForEveryMinuteOfTheYear() {
+        for (String id : ZONES) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            TriggerTimeEngine engine = new TriggerTimeEngine(zone, TriggerTimeEngine.SYSTEM_CLOCK);
+            for (long instant = FIRST_DAY * TriggerTimeEngine.DAY_MS; instant < LAST_DAY * TriggerTimeEngine.DAY_MS;
+                 instant += TriggerTimeEngine.MINUTE_MS) {
+                assertEquals(id + " at " + instant, zone.getOffset(instant), engine.offsetAt(instant));
+            }
+        }
+    }
+
+    // Calendar takes the second occurrence of a repeated wall time; the engine fires at the first
+    private static long firstOccurrence(TimeZone zone, long calendarInstant, long local) {
+        long earlier = calendarInstant - zone.getDSTSavings();
+        if (zone.getDSTSavings() > 0 && earlier + zone.getOffset(earlier) == local) {
+            return earlier;
+        }
+        return calendarInstant;
+    }
+}